@@ -0,0 +1,112 @@
+package thilanka.org.companion;
+
+import android.support.test.runner.AndroidJUnit4;
+import android.util.Log;
+
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.thilanka.device.pin.PinDirection;
+import org.thilanka.device.pin.PinProperty;
+import org.thilanka.device.pin.PinValue;
+import org.thilanka.messaging.domain.Action;
+import org.thilanka.messaging.domain.Message;
+import org.thilanka.messaging.domain.Payload;
+import org.thilanka.messaging.domain.PeripheralIO;
+
+import java.nio.charset.Charset;
+
+import static org.junit.Assert.*;
+
+/**
+ * Benchmark of the command decoder against the Gson parsing it replaces, meant to be run on the
+ * board itself. The results are in the logcat under the CommandDecoderBenchmark tag, for a GPIO
+ * command, a PWM command with a request ID and a rule with an escaped label.
+ */
+@RunWith(AndroidJUnit4.class)
+public class CommandDecoderBenchmark {
+
+    private static final String TAG = CommandDecoderBenchmark.class.getSimpleName();
+
+    private static final Charset UTF_8 = Charset.forName("UTF-8");
+
+    private static final int WARMUP_ITERATIONS = 20000;
+
+    private static final int ITERATIONS = 20000;
+
+    @Test
+    public void decodeGpioCommand() throws Exception {
+        Payload payload = new Payload();
+        payload.setPeripheralIO(PeripheralIO.GPIO);
+        payload.setAction(Action.EVENT);
+        payload.setName("BCM21");
+        payload.setProperty(PinProperty.PIN_STATE);
+        payload.setValue(PinValue.HIGH);
+        payload.setDirection(PinDirection.OUT);
+        run("gpio command", Message.constructMessage(payload));
+    }
+
+    @Test
+    public void decodePwmCommand() throws Exception {
+        run("pwm command", "{\"mRequestId\":\"r42\",\"mClientId\":\"app-7\","
+                + "\"mPeripheralIO\":\"PWM\",\"mAction\":\"EVENT\",\"mName\":\"PWM0\","
+                + "\"mProperty\":\"DUTY_CYCLE\",\"mLabel\":\"default\",\"mDoubleValue\":37.5}");
+    }
+
+    @Test
+    public void decodeRule() throws Exception {
+        Payload payload = new Payload();
+        payload.setAction(Action.REGISTER);
+        payload.setName("fan");
+        payload.setLabel("GPIO BCM4 HIGH -> GPIO BCM21 HIGH");
+        run("rule", Message.constructMessage(payload));
+    }
+
+    /**
+     * Measure the decoding of a message both ways and log the results.
+     */
+    private void run(String pName, String pMessage) throws Exception {
+        byte[] message = pMessage.getBytes(UTF_8);
+        CommandDecoder decoder = new CommandDecoder();
+        Command command = new Command();
+
+        assertTrue(decoder.decode(message, command));
+        Command expected = Command.parse(pMessage);
+        assertEquals(expected.getPeripheralIO(), command.getPeripheralIO());
+        assertEquals(expected.getAction(), command.getAction());
+        assertEquals(expected.getName(), command.getName());
+        assertEquals(expected.getProperty(), command.getProperty());
+        assertEquals(expected.getValue(), command.getValue());
+        assertEquals(expected.getDirection(), command.getDirection());
+        assertEquals(expected.getLabel(), command.getLabel());
+        assertEquals(expected.getDoubleValue(), command.getDoubleValue(), 0);
+        assertEquals(expected.getRequestId(), command.getRequestId());
+        assertEquals(expected.getClientId(), command.getClientId());
+
+        for (int i = 0; i < WARMUP_ITERATIONS; i++) {
+            decoder.decode(message, command);
+            Command.parse(new String(message, UTF_8));
+            Message.deconstrctMessage(new String(message, UTF_8));
+        }
+        long start = System.nanoTime();
+        for (int i = 0; i < ITERATIONS; i++) {
+            decoder.decode(message, command);
+        }
+        long decoderNanos = (System.nanoTime() - start) / ITERATIONS;
+
+        start = System.nanoTime();
+        for (int i = 0; i < ITERATIONS; i++) {
+            Command.parse(new String(message, UTF_8));
+        }
+        long commandNanos = (System.nanoTime() - start) / ITERATIONS;
+
+        start = System.nanoTime();
+        for (int i = 0; i < ITERATIONS; i++) {
+            Message.deconstrctMessage(new String(message, UTF_8));
+        }
+        long messageNanos = (System.nanoTime() - start) / ITERATIONS;
+
+        Log.i(TAG, pName + " (" + message.length + " bytes): decoder " + decoderNanos
+                + " ns, Gson Command " + commandNanos + " ns, Gson Message " + messageNanos
+                + " ns.");
+    }
+}
@@ -0,0 +1,126 @@
+package thilanka.org.companion;
+
+import android.support.test.runner.AndroidJUnit4;
+import android.util.Log;
+
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.thilanka.device.pin.PinDirection;
+import org.thilanka.device.pin.PinProperty;
+import org.thilanka.device.pin.PinValue;
+import org.thilanka.messaging.domain.Action;
+import org.thilanka.messaging.domain.Message;
+import org.thilanka.messaging.domain.Payload;
+import org.thilanka.messaging.domain.PeripheralIO;
+
+import java.util.Arrays;
+import java.util.zip.Deflater;
+
+import static org.junit.Assert.*;
+
+/**
+ * Benchmark of the CPU cost of the payload compression versus the bytes it saves, meant to be
+ * run on the board itself. The results are in the logcat under the PayloadCompressorBenchmark
+ * tag, for a single pin event, a history reply and an export chunk, with and without the preset
+ * dictionary.
+ */
+@RunWith(AndroidJUnit4.class)
+public class PayloadCompressorBenchmark {
+
+    private static final String TAG = PayloadCompressorBenchmark.class.getSimpleName();
+
+    private static final int WARMUP_ITERATIONS = 200;
+
+    private static final int ITERATIONS = 2000;
+
+    @Test
+    public void compressPinEvent() throws Exception {
+        Payload payload = new Payload();
+        payload.setPeripheralIO(PeripheralIO.GPIO);
+        payload.setAction(Action.EVENT);
+        payload.setName("BCM21");
+        payload.setProperty(PinProperty.PIN_STATE);
+        payload.setValue(PinValue.HIGH);
+        payload.setDirection(PinDirection.IN);
+        run("pin event", Message.constructMessage(payload).getBytes());
+    }
+
+    @Test
+    public void compressHistoryReply() throws Exception {
+        StringBuilder values = new StringBuilder();
+        for (int i = 0; i < 60; i++) {
+            values.append(i > 0 ? "," : "").append((float) (21.5 + Math.sin(i / 6.0)));
+        }
+        Payload payload = new Payload();
+        payload.setPeripheralIO(PeripheralIO.TEMPERATURE_SENSOR);
+        payload.setAction(Action.EVENT);
+        payload.setName("TEMPERATURE_SENSOR");
+        payload.setProperty(PinProperty.TEMPERATURE);
+        payload.setDoubleValue(600);
+        payload.setLabel("from=1508400000000;step_ms=10000;values=" + values);
+        run("history reply", Message.constructMessage(payload).getBytes());
+    }
+
+    @Test
+    public void compressExportChunk() throws Exception {
+        StringBuilder json = new StringBuilder("{\"mRecords\":[");
+        for (int i = 0; i < 200; i++) {
+            json.append(i > 0 ? "," : "").append('"').append(1508400000000L + i * 37)
+                    .append(",BCM").append(i % 4).append("/PIN_STATE,").append(i % 2)
+                    .append(".0\"");
+        }
+        json.append("],\"mRequestId\":\"r42\",\"mAction\":\"EVENT\",\"mName\":\"export\","
+                + "\"mLabel\":\"seq\\u003d0;count\\u003d200;last\\u003d0\","
+                + "\"mDoubleValue\":200.0}");
+        run("export chunk", json.toString().getBytes());
+    }
+
+    /**
+     * Measure the compression of a message and log the results.
+     */
+    private void run(String pName, byte[] pMessage) throws Exception {
+        PayloadCompressor compressor = new PayloadCompressor();
+        compressor.setThreshold(1);
+
+        byte[] encoded = compressor.encode(pMessage);
+        assertArrayEquals(pMessage, PayloadCompressor.decode(encoded));
+
+        for (int i = 0; i < WARMUP_ITERATIONS; i++) {
+            compressor.encode(pMessage);
+            deflateWithoutDictionary(pMessage);
+        }
+        long start = System.nanoTime();
+        for (int i = 0; i < ITERATIONS; i++) {
+            compressor.encode(pMessage);
+        }
+        long encodeNanos = (System.nanoTime() - start) / ITERATIONS;
+
+        start = System.nanoTime();
+        for (int i = 0; i < ITERATIONS; i++) {
+            PayloadCompressor.decode(encoded);
+        }
+        long decodeNanos = (System.nanoTime() - start) / ITERATIONS;
+
+        int plainSize = deflateWithoutDictionary(pMessage).length;
+
+        Log.i(TAG, pName + ": " + pMessage.length + " bytes -> " + encoded.length
+                + " with the dictionary (" + plainSize + " without), encode " + encodeNanos / 1000
+                + " us, decode " + decodeNanos / 1000 + " us, "
+                + (pMessage.length - encoded.length) * 1000L / Math.max(1, encodeNanos)
+                + " bytes saved per us of encoding.");
+        assertTrue(encoded.length <= pMessage.length);
+    }
+
+    /**
+     * Deflate a message the same way, but without the preset dictionary.
+     */
+    private static byte[] deflateWithoutDictionary(byte[] pMessage) {
+        Deflater deflater = new Deflater(Deflater.DEFAULT_COMPRESSION);
+        deflater.setInput(pMessage);
+        deflater.finish();
+        byte[] buffer = new byte[pMessage.length + 64];
+        int length = deflater.deflate(buffer);
+        deflater.end();
+        return Arrays.copyOf(buffer, length);
+    }
+}
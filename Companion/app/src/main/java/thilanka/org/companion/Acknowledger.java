@@ -0,0 +1,81 @@
+package thilanka.org.companion;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Acknowledges the commands that carry a request ID on the {@code ack} topic of the board, once
+ * they have been executed. Acknowledgments are published in the background like every other
+ * outbound message, so a client can pipeline commands without waiting for each one.
+ *
+ * An acknowledgment echoes the request ID, peripheral, action and name of the command. Its label
+ * holds {@code status=OK|ERROR|UNSUPPORTED|REJECTED|COALESCED|UNAVAILABLE;latency_us=..} (plus
+ * {@code ;error=..} on failure), and its double value is the execution latency in milliseconds,
+ * from the arrival of the message to the end of its handling.
+ *
+ * @author Thilanka Munasinghe (thilankawillbe@gmail.com)
+ */
+public class Acknowledger {
+
+    /* The sub-topic the acknowledgments are published on. */
+    public static final String ACK_SERVICE = "ack";
+
+    /* The command was executed. */
+    public static final String STATUS_OK = "OK";
+
+    /* The command failed. */
+    public static final String STATUS_ERROR = "ERROR";
+
+    /* No handler supports the command. */
+    public static final String STATUS_UNSUPPORTED = "UNSUPPORTED";
+
+    /* The command was refused, its client or peripheral being over its rate limit. */
+    public static final String STATUS_REJECTED = "REJECTED";
+
+    /* The command was dropped, a later command on the same pin superseding it. */
+    public static final String STATUS_COALESCED = "COALESCED";
+
+    /* The command was not run, its peripheral failing too often. */
+    public static final String STATUS_UNAVAILABLE = "UNAVAILABLE";
+
+    /* The publisher of the acknowledgments */
+    private final MessagePublisher mPublisher;
+
+    /**
+     * The Constructor.
+     * @param pPublisher
+     */
+    public Acknowledger(MessagePublisher pPublisher) {
+        mPublisher = pPublisher;
+    }
+
+    /**
+     * Acknowledge a command, if it has a request ID.
+     * @param pCommand
+     * @param pStatus
+     * @param pError the reason of the failure, or null.
+     * @param pReceivedAtNanos the {@link System#nanoTime()} at which the command arrived.
+     */
+    public void acknowledge(Command pCommand, String pStatus, String pError,
+                            long pReceivedAtNanos) {
+        if (pCommand == null || pCommand.getRequestId() == null) {
+            return;
+        }
+        long latencyNanos = System.nanoTime() - pReceivedAtNanos;
+
+        Command ack = new Command();
+        ack.setRequestId(pCommand.getRequestId());
+        ack.setPeripheralIO(pCommand.getPeripheralIO());
+        ack.setAction(pCommand.getAction());
+        ack.setName(pCommand.getName());
+        ack.setDoubleValue(latencyNanos / 1e6);
+        String label = "status=" + pStatus + ";latency_us="
+                + TimeUnit.NANOSECONDS.toMicros(latencyNanos);
+        if (pError != null) {
+            /* Keep the label parsable. */
+            label += ";error=" + pError.replace(';', ',').replace('=', ':');
+        }
+        ack.setLabel(label);
+
+        mPublisher.publishResponse(AndroidThingsActivity.getPublishTopic(ACK_SERVICE), ack);
+    }
+}
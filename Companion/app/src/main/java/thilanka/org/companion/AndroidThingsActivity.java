@@ -6,24 +6,28 @@ import android.content.SharedPreferences;
 import android.os.Build;
 import android.os.Bundle;
 import android.util.Log;
+import android.view.KeyEvent;
 
 import com.google.android.things.pio.PeripheralManager;
 
 
 import org.eclipse.paho.client.mqttv3.IMqttDeliveryToken;
-import org.eclipse.paho.client.mqttv3.MqttCallback;
-import org.eclipse.paho.client.mqttv3.MqttClient;
+import org.eclipse.paho.client.mqttv3.IMqttToken;
+import org.eclipse.paho.client.mqttv3.MqttCallbackExtended;
 import org.eclipse.paho.client.mqttv3.MqttConnectOptions;
 import org.eclipse.paho.client.mqttv3.MqttException;
 import org.eclipse.paho.client.mqttv3.MqttMessage;
-import org.eclipse.paho.client.mqttv3.persist.MemoryPersistence;
-import org.thilanka.messaging.domain.Message;
 import org.thilanka.messaging.domain.Payload;
 import org.thilanka.messaging.domain.PeripheralIO;
 import org.thilanka.messaging.domain.Topic;
 
+import java.io.File;
 import java.io.IOException;
+import java.nio.charset.Charset;
+import java.util.Arrays;
 import java.util.UUID;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
 
 /**
  * Entry Point for the MIT App Inventor clients connecting to the Android Things Hardware Devices.
@@ -31,7 +35,7 @@ import java.util.UUID;
  * @author Thilanka Munasinghe (thilankawillbe@gmail.com)
  */
 @SuppressWarnings("ALL")
-public class AndroidThingsActivity extends Activity implements MqttCallback {
+public class AndroidThingsActivity extends Activity implements MqttCallbackExtended {
 
     /**
      * QoS value set to 2. (QoS property of MQTT).
@@ -59,9 +63,10 @@ public class AndroidThingsActivity extends Activity implements MqttCallback {
     private static final String PORT = "1883";
 
     /**
-     * MQTT Client Id used for sending the MQTT messages back and forth.
+     * The default number of telemetry connections next to the command connection. With 0, the
+     * telemetry shares the command connection.
      */
-    private static final String CLIENT_ID = "AndroidThingSubscribingClient";
+    private static final int DEFAULT_TELEMETRY_CONNECTIONS = 1;
 
     /**
      * Shared Preference File for the Board.
@@ -73,6 +78,46 @@ public class AndroidThingsActivity extends Activity implements MqttCallback {
      */
     private static final String BOARD_IDENTIFIER = "BOARD_IDENTFIER";
 
+    /**
+     * Key used for the number of telemetry connections.
+     */
+    private static final String TELEMETRY_CONNECTIONS = "TELEMETRY_CONNECTIONS";
+
+    /**
+     * Sub topic on which App Inventor uploads the rules evaluated on the device.
+     */
+    public static final String RULES_SERVICE = "rules";
+
+    /**
+     * Sub topic on which App Inventor changes the telemetry filter settings.
+     */
+    public static final String FILTER_SERVICE = "filter";
+
+    /**
+     * Sub topic on which the cold start timing report is published.
+     */
+    public static final String STARTUP_SERVICE = "startup";
+
+    /**
+     * The services that receive their messages on their own sub topic of the subscribe topic.
+     */
+    private static final String[] SERVICES = {RULES_SERVICE, FILTER_SERVICE,
+            TimeSeriesStore.HISTORY_SERVICE, SegmentLog.EXPORT_SERVICE,
+            PayloadCompressor.COMPRESSION_SERVICE, ServoHandler.SERVO_SERVICE,
+            SpeakerHandler.SPEAKER_SERVICE, ButtonHandler.BUTTON_SERVICE,
+            SamplingLeases.LEASE_SERVICE, CircuitBreakers.HEALTH_SERVICE,
+            ShadowState.SHADOW_SERVICE};
+
+    /**
+     * The directory, under the files directory of the app, of the durable log.
+     */
+    private static final String LOG_DIRECTORY = "history";
+
+    /**
+     * The encoding of the messages.
+     */
+    private static final Charset UTF_8 = Charset.forName("UTF-8");
+
     /**
      * The Unique Identifier that identifies the board. Only the messages sent to this topic will
      * be intercepted.
@@ -80,9 +125,14 @@ public class AndroidThingsActivity extends Activity implements MqttCallback {
     private static String sBoardIdentifier;
 
     /**
-     * The MQTT Client.
+     * The connections to the broker.
      */
-    private MqttClient mMqttClient;
+    private MqttConnectionPool mConnectionPool;
+
+    /**
+     * The number of telemetry connections, from the shared preferences.
+     */
+    private int mTelemetryConnections = DEFAULT_TELEMETRY_CONNECTIONS;
 
     /**
      * Client connection options that includes auto reconnect.
@@ -109,17 +159,86 @@ public class AndroidThingsActivity extends Activity implements MqttCallback {
      */
     private TemperatureSensorHandler mTemperatureSensorHandler;
 
+    /**
+     * The owner of the I2C buses, created on first use.
+     */
+    private I2cBusManager mI2cBuses;
+
+    /**
+     * The Servo Handler, created on first use.
+     */
+    private ServoHandler mServoHandler;
+
+    /**
+     * The Speaker Handler, created on first use.
+     */
+    private SpeakerHandler mSpeakerHandler;
+
+    /**
+     * The Button Handler, created on first use. Volatile as the key events read it unlocked.
+     */
+    private volatile ButtonHandler mButtonHandler;
+
+    /**
+     * The publisher shared by the handlers for the outbound messages.
+     */
+    private MessagePublisher mPublisher;
+
+    /**
+     * Acknowledges the commands that carry a request ID.
+     */
+    private Acknowledger mAcknowledger;
+
+    /**
+     * Rate limits the commands and queues them for execution.
+     */
+    private CommandAdmission mAdmission;
+
+    /**
+     * Counts the interest of the clients in the sampled channels.
+     */
+    private SamplingLeases mLeases;
+
+    /**
+     * Isolates the peripherals that fail too often.
+     */
+    private CircuitBreakers mBreakers;
+
+    /**
+     * Reads the commands, on the MQTT callback thread only.
+     */
+    private final CommandDecoder mDecoder = new CommandDecoder();
+
+    /**
+     * The command being read, reused for every message on the MQTT callback thread.
+     */
+    private final Command mInboundCommand = new Command();
+
+    /**
+     * The rule engine that reacts to inputs without a round trip through the broker.
+     */
+    private RuleEngine mRuleEngine;
+
+    /**
+     * The cold start timing, by phase.
+     */
+    private final StartupTimer mStartupTimer = new StartupTimer();
+
+    /**
+     * Whether a command has been received since the start.
+     */
+    private volatile boolean mFirstCommandReceived;
+
     /**
      * The Constructor.
-     * @throws MqttException
      */
-    public AndroidThingsActivity() throws MqttException {
+    public AndroidThingsActivity() {
         mMQTTConnectOptions = new MqttConnectOptions();
 
         mPeripheralManager = PeripheralManager.getInstance();
 
         String serverUrl = "tcp://" + SERVER + ":" + PORT;
-        mMqttClient = new MqttClient(serverUrl, CLIENT_ID, new MemoryPersistence());
+        mConnectionPool = new MqttConnectionPool(serverUrl, mMQTTConnectOptions);
     }
 
     /**
@@ -129,6 +248,23 @@ public class AndroidThingsActivity extends Activity implements MqttCallback {
         mMQTTConnectOptions.setCleanSession(true);
         mMQTTConnectOptions.setAutomaticReconnect(true);
 
+        mPublisher = new MessagePublisher(mConnectionPool, new File(getFilesDir(),
+                LOG_DIRECTORY));
+        mAcknowledger = new Acknowledger(mPublisher);
+        mAdmission = new CommandAdmission(new CommandAdmission.Handler() {
+            @Override
+            public void execute(String pService, Command pCommand, long pReceivedAtNanos) {
+                AndroidThingsActivity.this.execute(pService, pCommand, pReceivedAtNanos);
+            }
+        }, mAcknowledger, mPublisher);
+        mLeases = new SamplingLeases(mPublisher);
+        mBreakers = new CircuitBreakers(mPublisher);
+    }
+
+    /**
+     * Read the board identifier from the shared preferences, generating it on the first start.
+     */
+    private void readBoardIdentifier() {
         /* Instantiate the Sharedpreference instance. */
         SharedPreferences sharedPrefs = getApplicationContext().getSharedPreferences
                 (PROPERTIES_FILE_NAME, Context.MODE_PRIVATE);
@@ -159,13 +295,8 @@ public class AndroidThingsActivity extends Activity implements MqttCallback {
                     sBoardIdentifier);
         }
 
-
-
-        mGpioHandler = new GpioHandler(this, mMqttClient, mPeripheralManager);
-        mPwmHandler = new PwmHandler(this, mMqttClient, mPeripheralManager);
-        mTemperatureSensorHandler = new TemperatureSensorHandler(this, mMqttClient);
-
-
+        mTelemetryConnections = sharedPrefs.getInt(TELEMETRY_CONNECTIONS,
+                DEFAULT_TELEMETRY_CONNECTIONS);
 
         Log.i(TAG, "*******************************************");
         Log.i(TAG, "Please use the following values when configuring your MIT App Inventor App.");
@@ -173,8 +304,177 @@ public class AndroidThingsActivity extends Activity implements MqttCallback {
         Log.i(TAG, "Hardware Platform Board = " + Build.MODEL);
         Log.i(TAG, "Messaging Host = " + SERVER);
         Log.i(TAG, "Messaging Port = " + PORT);
+        Log.i(TAG, "Client Id = " + MqttConnectionPool.getClientId(sBoardIdentifier, "cmd"));
         Log.i(TAG, "*******************************************");
+    }
 
+    /**
+     * Create the GPIO and PWM handlers and the rule engine that drives them, on first use.
+     */
+    private synchronized void createActuatorHandlers() {
+        if (mGpioHandler != null) {
+            return;
+        }
+        long start = mStartupTimer.now();
+        mGpioHandler = new GpioHandler(this, mPublisher, mPeripheralManager, mLeases,
+                mBreakers);
+        mPwmHandler = new PwmHandler(this, mPublisher, mPeripheralManager);
+        final GpioHandler gpioHandler = mGpioHandler;
+        final PwmHandler pwmHandler = mPwmHandler;
+        mBreakers.setRecovery(PeripheralIO.GPIO, new CircuitBreakers.Recovery() {
+            @Override
+            public void reopen(String pName) throws IOException {
+                gpioHandler.reopen(pName);
+            }
+        });
+        mBreakers.setRecovery(PeripheralIO.PWM, new CircuitBreakers.Recovery() {
+            @Override
+            public void reopen(String pName) throws IOException {
+                pwmHandler.reopen(pName);
+            }
+        });
+        mRuleEngine = new RuleEngine(mGpioHandler, mPwmHandler);
+        mGpioHandler.setRuleEngine(mRuleEngine);
+        if (mTemperatureSensorHandler != null) {
+            mTemperatureSensorHandler.setRuleEngine(mRuleEngine);
+        }
+        mStartupTimer.record("handlers", start);
+    }
+
+    /**
+     * The GPIO Handler, created on first use.
+     * @return the GPIO handler.
+     */
+    private synchronized GpioHandler getGpioHandler() {
+        createActuatorHandlers();
+        return mGpioHandler;
+    }
+
+    /**
+     * The PWM Handler, created on first use.
+     * @return the PWM handler.
+     */
+    private synchronized PwmHandler getPwmHandler() {
+        createActuatorHandlers();
+        return mPwmHandler;
+    }
+
+    /**
+     * The rule engine, created on first use.
+     * @return the rule engine.
+     */
+    private synchronized RuleEngine getRuleEngine() {
+        createActuatorHandlers();
+        return mRuleEngine;
+    }
+
+    /**
+     * The Temperature Sensor Handler, created on first use.
+     * @return the temperature sensor handler.
+     */
+    private synchronized TemperatureSensorHandler getTemperatureSensorHandler() {
+        if (mTemperatureSensorHandler == null) {
+            mTemperatureSensorHandler = new TemperatureSensorHandler(this, mPublisher,
+                    getI2cBuses(), mLeases);
+            mTemperatureSensorHandler.setRuleEngine(mRuleEngine);
+        }
+        return mTemperatureSensorHandler;
+    }
+
+    /**
+     * The owner of the I2C buses, created on first use.
+     * @return the I2C bus manager.
+     */
+    private synchronized I2cBusManager getI2cBuses() {
+        if (mI2cBuses == null) {
+            mI2cBuses = new I2cBusManager(mPublisher);
+        }
+        return mI2cBuses;
+    }
+
+    /**
+     * The Servo Handler, created on first use.
+     * @return the servo handler.
+     */
+    private synchronized ServoHandler getServoHandler() {
+        if (mServoHandler == null) {
+            mServoHandler = new ServoHandler(mPublisher);
+        }
+        return mServoHandler;
+    }
+
+    /**
+     * The Speaker Handler, created on first use.
+     * @return the speaker handler.
+     */
+    private synchronized SpeakerHandler getSpeakerHandler() {
+        if (mSpeakerHandler == null) {
+            mSpeakerHandler = new SpeakerHandler(mPublisher);
+        }
+        return mSpeakerHandler;
+    }
+
+    /**
+     * The Button Handler, created on first use.
+     * @return the button handler.
+     */
+    private synchronized ButtonHandler getButtonHandler() {
+        if (mButtonHandler == null) {
+            mButtonHandler = new ButtonHandler(mPublisher);
+        }
+        return mButtonHandler;
+    }
+
+    /**
+     * Reads the board identifier, then connects to the broker. Runs off the main thread.
+     */
+    private final Runnable mConnectTask = new Runnable() {
+        @Override
+        public void run() {
+            long start = mStartupTimer.now();
+            readBoardIdentifier();
+            mStartupTimer.record("preferences", start);
+
+            start = mStartupTimer.now();
+            connectMQTTClient();
+            mStartupTimer.record("connect", start);
+            mStartupTimer.mark("ready");
+            publishStartupReport();
+        }
+    };
+
+    /**
+     * Probes the board and its peripherals. Runs off the main thread, in parallel with the
+     * connection to the broker.
+     */
+    private final Runnable mProbeTask = new Runnable() {
+        @Override
+        public void run() {
+            long start = mStartupTimer.now();
+            Log.d(TAG, "Available GPIO: " + mPeripheralManager.getGpioList());
+            Log.d(TAG, "Available PWM: " + mPeripheralManager.getPwmList());
+            try {
+                Log.d(TAG, "I2C port: " + BoardDefaults.getI2CPort());
+            } catch (IllegalStateException e) {
+                Log.w(TAG, e.getLocalizedMessage());
+            }
+            mStartupTimer.record("probe", start);
+        }
+    };
+
+    /**
+     * Log the cold start timing and publish it for the App Inventor clients.
+     */
+    private void publishStartupReport() {
+        String report = mStartupTimer.report();
+        Log.i(TAG, "Cold start timing (ms): " + report);
+
+        Payload payload = new Payload();
+        payload.setName(STARTUP_SERVICE);
+        payload.setLabel(report);
+        payload.setDoubleValue(mStartupTimer.sinceProcessStart());
+        mPublisher.publish(OutboundScheduler.PriorityClass.BULK, getPublishTopic(STARTUP_SERVICE),
+                payload, false);
     }
 
     /**
@@ -189,9 +489,16 @@ public class AndroidThingsActivity extends Activity implements MqttCallback {
     protected void onStart() {
         super.onStart();
 
-        /* Begin listening for interrupt events */
+        /* Begin listening for interrupt events, if any pin has been registered yet */
+        GpioHandler gpioHandler;
+        synchronized (this) {
+            gpioHandler = mGpioHandler;
+        }
+        if (gpioHandler == null) {
+            return;
+        }
         try {
-            mGpioHandler.registerGpioCallback();
+            gpioHandler.registerGpioCallback();
         } catch (IOException e) {
             Log.e(TAG, e.getLocalizedMessage());
         }
@@ -199,28 +506,76 @@ public class AndroidThingsActivity extends Activity implements MqttCallback {
 
     @Override
     protected void onCreate(Bundle pSavedInstanceState) {
+        mStartupTimer.mark("created");
+        long start = mStartupTimer.now();
         super.onCreate(pSavedInstanceState);
         setContentView(R.layout.activity_main);
         setup();
-        connectMQTTClient();
+        mStartupTimer.record("layout", start);
+
+        /* Connect to the broker and probe the board in parallel, off the main thread. The
+        handlers are only created when the first message needs them. */
+        ExecutorService startup = Executors.newFixedThreadPool(2);
+        startup.execute(mConnectTask);
+        startup.execute(mProbeTask);
+        startup.shutdown();
     }
 
     /**
-     * Connect the MQTT client by setting this class to handle the callback events.
+     * Connect the MQTT clients, with this class handling the callback events of the command
+     * connection. The pool keeps retrying a connection that fails, and subscribes the command
+     * connection once it connects.
      */
     private void connectMQTTClient() {
         try {
-            mMqttClient.setCallback(this);
-            mMqttClient.connect(mMQTTConnectOptions);
+            mConnectionPool.connect(sBoardIdentifier, mTelemetryConnections, this,
+                    mSubscribeTask);
+        } catch (MqttException e) {
+            Log.e(TAG, e.getLocalizedMessage());
+        }
+    }
+
+    /**
+     * Subscribes the command connection once it first connects, and waits for the subscription.
+     */
+    private final Runnable mSubscribeTask = new Runnable() {
+        @Override
+        public void run() {
             try {
-                Thread.sleep(SLEEP_TIME);
-            } catch (InterruptedException e) {
+                subscribe().waitForCompletion();
+            } catch (MqttException e) {
                 Log.e(TAG, e.getLocalizedMessage());
             }
+        }
+    };
 
-            Log.d(TAG, "Listening to MIT App Inventor messages on " + getSubscribeTopic() );
-            mMqttClient.subscribe(getSubscribeTopic(), QOS);
+    /**
+     * Subscribe the command connection to the command topics.
+     * @return the token of the subscription.
+     * @throws MqttException
+     */
+    private IMqttToken subscribe() throws MqttException {
+        Log.d(TAG, "Listening to MIT App Inventor messages on " + getSubscribeTopic() );
+        String[] topics = new String[SERVICES.length + 1];
+        int[] qos = new int[topics.length];
+        topics[0] = getSubscribeTopic();
+        for (int i = 0; i < SERVICES.length; i++) {
+            topics[i + 1] = getSubscribeTopic(SERVICES[i]);
+        }
+        Arrays.fill(qos, QOS);
+        return mConnectionPool.subscribe(topics, qos);
+    }
 
+    @Override
+    public void connectComplete(boolean pReconnect, String pServerURI) {
+        if (!pReconnect) {
+            return;
+        }
+        /* The session is clean, so the subscriptions are gone. Not waited for, as this is a
+        callback. */
+        Log.d(TAG, "Successfully reconnected.");
+        try {
+            subscribe();
         } catch (MqttException e) {
             Log.e(TAG, e.getLocalizedMessage());
         }
@@ -228,9 +583,7 @@ public class AndroidThingsActivity extends Activity implements MqttCallback {
 
     @Override
     public void connectionLost(Throwable pCause) {
-        Log.e(TAG, "Connection with the MIT App Inventor Client Lost!");
-        connectMQTTClient();
-        Log.d(TAG, "Successfully reconnected.");
+        Log.e(TAG, "Connection with the MIT App Inventor Client Lost! Reconnecting.");
     }
 
     /**
@@ -238,41 +591,164 @@ public class AndroidThingsActivity extends Activity implements MqttCallback {
      * The payload is constructed from the android-things-messages library.
      * It may look like this:
      * {"mDirection":"OUT","mName":"GPIO_34","mProperty":"PIN_STATE","mValue":"LOW"}
+     * A command may also carry an "mRequestId", in which case it is acknowledged once handled,
+     * and an "mClientId", under which it is rate limited. The command is executed later, once
+     * admitted.
      * @param pTopic
      * @param pMessage
      */
     @Override
     public void messageArrived(String pTopic, MqttMessage pMessage) {
         Log.d(TAG, "Message " + pMessage + " on topic " + pTopic + " arrived.");
+        long receivedAt = System.nanoTime();
 
-        if (!pTopic.equals(getSubscribeTopic())) {
+        String service = getService(pTopic);
+        if (service == null) {
             /* No need to take any action if this is not the topic we want. */
             return;
         }
 
-        String payloadStr = new String(pMessage.getPayload());
+        byte[] message = pMessage.getPayload();
+        Command command = mInboundCommand;
+        if (!mDecoder.decode(message, command)) {
+            /* Not plain JSON, Gson is more lenient. */
+            command = Command.parse(new String(message, UTF_8));
+            if (command == null) {
+                Log.d(TAG, "Message not supported!");
+                return;
+            }
+        }
+        mAdmission.submit(service, command, receivedAt);
+    }
 
-        Payload payload = Message.deconstrctMessage(payloadStr);
-        PeripheralIO peripheralIOType = payload.getPeripheralIO();
+    /**
+     * Execute an admitted command and acknowledge it.
+     * @param pService the service of the command, or an empty string for a peripheral.
+     * @param pCommand
+     * @param pReceivedAtNanos the {@link System#nanoTime()} at which the command arrived.
+     */
+    private void execute(String pService, Command pCommand, long pReceivedAtNanos) {
+        String status = Acknowledger.STATUS_OK;
+        String error = null;
 
+        try {
+            switch (pService) {
+                case RULES_SERVICE:
+                    getRuleEngine().handleMessage(pCommand);
+                    break;
+                case FILTER_SERVICE:
+                    mPublisher.getTelemetryFilter().handleMessage(pCommand);
+                    break;
+                case TimeSeriesStore.HISTORY_SERVICE:
+                    mPublisher.getHistory().handleMessage(pCommand);
+                    break;
+                case SegmentLog.EXPORT_SERVICE:
+                    mPublisher.getSegmentLog().handleMessage(pCommand);
+                    break;
+                case PayloadCompressor.COMPRESSION_SERVICE:
+                    mPublisher.getCompressor().handleMessage(pCommand);
+                    break;
+                case SamplingLeases.LEASE_SERVICE:
+                    mLeases.handleMessage(pCommand);
+                    break;
+                case CircuitBreakers.HEALTH_SERVICE:
+                    mBreakers.handleMessage(pCommand);
+                    break;
+                case ShadowState.SHADOW_SERVICE:
+                    mPublisher.getShadow().handleMessage(pCommand);
+                    break;
+                case ServoHandler.SERVO_SERVICE:
+                    getServoHandler().handleMessage(pCommand);
+                    break;
+                case SpeakerHandler.SPEAKER_SERVICE:
+                    getSpeakerHandler().handleMessage(pCommand);
+                    break;
+                case ButtonHandler.BUTTON_SERVICE:
+                    getButtonHandler().handleMessage(pCommand);
+                    break;
+                default:
+                    if (!mFirstCommandReceived) {
+                        mFirstCommandReceived = true;
+                        mStartupTimer.mark("first_command");
+                        Log.i(TAG, "Cold start timing (ms): " + mStartupTimer.report());
+                    }
+                    if (!dispatch(pCommand)) {
+                        status = Acknowledger.STATUS_UNSUPPORTED;
+                    }
+                    break;
+            }
+        } catch (CircuitBreakers.OpenException e) {
+            status = Acknowledger.STATUS_UNAVAILABLE;
+            error = e.getLocalizedMessage();
+        } catch (Exception e) {
+            Log.e(TAG, "Unable to execute " + pCommand + ": " + e.getLocalizedMessage());
+            status = Acknowledger.STATUS_ERROR;
+            error = String.valueOf(e.getLocalizedMessage());
+        }
+        mAcknowledger.acknowledge(pCommand, status, error, pReceivedAtNanos);
+    }
+
+    /**
+     * The service a subscribed topic belongs to.
+     * @param pTopic
+     * @return the service, an empty string for the peripheral commands, or null if the topic is
+     * not one of ours.
+     */
+    private static String getService(String pTopic) {
+        if (pTopic.equals(getSubscribeTopic())) {
+            return "";
+        }
+        for (String service : SERVICES) {
+            if (pTopic.equals(getSubscribeTopic(service))) {
+                return service;
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Hand a command over to the handler of its peripheral, unless the breaker of the peripheral
+     * is open, or the shadow shows the output already in the requested state. The hardware
+     * failures are recorded by the breaker, the states set by the shadow.
+     * @param pPayload
+     * @return false if no handler supports the peripheral.
+     * @throws IOException
+     */
+    private boolean dispatch(Payload pPayload) throws IOException {
+        PeripheralIO peripheralIOType = pPayload.getPeripheralIO();
+        if (peripheralIOType == null) {
+            Log.d(TAG, "Message not supported!");
+            return false;
+        }
+        ShadowState shadow = mPublisher.getShadow();
+        if (shadow.isCurrent(pPayload)) {
+            Log.d(TAG, "Already in the requested state, skipping " + pPayload.getName());
+            return true;
+        }
+        String breaker = CircuitBreakers.keyOf(pPayload);
+        mBreakers.check(breaker);
         try {
             switch(peripheralIOType){
                 case GPIO:
-                    mGpioHandler.handleMessage(payload);
+                    getGpioHandler().handleMessage(pPayload);
                     break;
                 case PWM:
-                    mPwmHandler.handleMessage(payload);
+                    getPwmHandler().handleMessage(pPayload);
                     break;
                 case TEMPERATURE_SENSOR:
-                    mTemperatureSensorHandler.handleMessage(payload);
+                    getTemperatureSensorHandler().handleMessage(pPayload);
                     break;
                 default:
                     Log.d(TAG, "Message not supported!");
-                    break;
-                }
-            } catch (Exception e) {
-                e.printStackTrace();
+                    return false;
             }
+        } catch (IOException e) {
+            mBreakers.onFailure(peripheralIOType, breaker, e.getLocalizedMessage());
+            throw e;
+        }
+        mBreakers.onSuccess(breaker);
+        shadow.desire(pPayload);
+        return true;
     }
 
     @Override
@@ -282,16 +758,56 @@ public class AndroidThingsActivity extends Activity implements MqttCallback {
     }
 
     @Override
-    protected void onDestroy() {
+    protected synchronized void onDestroy() {
         super.onDestroy();
-        mGpioHandler.closeOpenGpioPins();
+        if (mGpioHandler != null) {
+            mGpioHandler.closeOpenGpioPins();
+            mPwmHandler.closeOpenPwms();
+        }
+        mAdmission.shutdown();
+        mLeases.shutdown();
+        mBreakers.shutdown();
+        if (mServoHandler != null) {
+            mServoHandler.closeAll();
+        }
+        if (mSpeakerHandler != null) {
+            mSpeakerHandler.closeAll();
+        }
+        if (mButtonHandler != null) {
+            mButtonHandler.closeAll();
+        }
+        if (mI2cBuses != null) {
+            mI2cBuses.shutdown();
+        }
+        mPublisher.shutdown();
+        mConnectionPool.disconnect();
     }
 
     @Override
-    protected void onStop() {
+    public boolean onKeyDown(int pKeyCode, KeyEvent pEvent) {
+        ButtonHandler buttonHandler = mButtonHandler;
+        if (buttonHandler != null && buttonHandler.onKey(pKeyCode, pEvent, true)) {
+            return true;
+        }
+        return super.onKeyDown(pKeyCode, pEvent);
+    }
+
+    @Override
+    public boolean onKeyUp(int pKeyCode, KeyEvent pEvent) {
+        ButtonHandler buttonHandler = mButtonHandler;
+        if (buttonHandler != null && buttonHandler.onKey(pKeyCode, pEvent, false)) {
+            return true;
+        }
+        return super.onKeyUp(pKeyCode, pEvent);
+    }
+
+    @Override
+    protected synchronized void onStop() {
         super.onStop();
         /* Interrupt events no longer necessary */
-        mGpioHandler.unregisterGpioCallback();
+        if (mGpioHandler != null) {
+            mGpioHandler.unregisterGpioCallback();
+        }
     }
 
     /**
@@ -302,6 +818,15 @@ public class AndroidThingsActivity extends Activity implements MqttCallback {
         return AndroidThingsActivity.getBoardIdentfier() + Topic.APP_INVENTOR;
     }
 
+    /**
+     * The sub topic of the publish topic that carries the messages of the given service.
+     * @param pService
+     * @return the topic
+     */
+    public static String getPublishTopic(String pService) {
+        return getPublishTopic() + pService;
+    }
+
     /**
      * The Topic the MQTTClient should subscribe to.
      * @return the topic
@@ -310,4 +835,13 @@ public class AndroidThingsActivity extends Activity implements MqttCallback {
         return AndroidThingsActivity.getBoardIdentfier() + Topic.ANDROID_THINGS;
     }
 
+    /**
+     * The sub topic of the subscribe topic that carries the messages of the given service.
+     * @param pService
+     * @return the topic
+     */
+    public static String getSubscribeTopic(String pService) {
+        return getSubscribeTopic() + pService;
+    }
+
 }
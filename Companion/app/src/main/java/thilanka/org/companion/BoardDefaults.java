@@ -20,7 +20,7 @@ public class BoardDefaults {
     private static final String DEVICE_IMX6UL_PICO = "imx6ul_pico";
     private static final String DEVICE_IMX6UL_VVDN = "imx6ul_iopb";
     private static final String DEVICE_IMX7D_PICO = "imx7d_pico";
-    private static String sBoardVariant = "";
+    private static volatile String sBoardVariant = "";
 
     /**
      * Return the preferred I2C port for each board.
@@ -46,23 +46,24 @@ public class BoardDefaults {
         }
     }
 
-    private static String getBoardVariant() {
+    private static synchronized String getBoardVariant() {
         if (!sBoardVariant.isEmpty()) {
             return sBoardVariant;
         }
-        sBoardVariant = Build.DEVICE;
+        String boardVariant = Build.DEVICE;
         // For the edison check the pin prefix
         // to always return Edison Breakout pin name when applicable.
-        if (sBoardVariant.equals(DEVICE_EDISON)) {
+        if (boardVariant.equals(DEVICE_EDISON)) {
             PeripheralManager pioService = PeripheralManager.getInstance();
             List<String> gpioList = pioService.getGpioList();
             if (gpioList.size() != 0) {
                 String pin = gpioList.get(0);
                 if (pin.startsWith("IO")) {
-                    sBoardVariant = DEVICE_EDISON_ARDUINO;
+                    boardVariant = DEVICE_EDISON_ARDUINO;
                 }
             }
         }
+        sBoardVariant = boardVariant;
         return sBoardVariant;
     }
 }
\ No newline at end of file
@@ -0,0 +1,358 @@
+package thilanka.org.companion;
+
+import android.os.SystemClock;
+import android.util.Log;
+import android.view.KeyEvent;
+
+import com.google.android.things.contrib.driver.button.Button;
+import com.google.android.things.contrib.driver.button.ButtonInputDriver;
+
+import org.thilanka.messaging.domain.Action;
+import org.thilanka.messaging.domain.Payload;
+import org.thilanka.messaging.domain.PeripheralIO;
+
+import java.io.IOException;
+import java.util.EnumSet;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Handles push buttons with the contrib button driver, which debounces the GPIO edges, and
+ * recognizes the gestures on the device so that a physical press is published as one event
+ * instead of one per edge.
+ *
+ * The messages are on the button sub-topic of the subscribe topic, the name being the GPIO pin:
+ * <ul>
+ *     <li>REGISTER opens the button, with the options {@code active=low|high} (the level of a
+ *     pressed button, low by default), {@code debounce_ms=..} (20 by default),
+ *     {@code long_press_ms=..} (600 by default), {@code double_click_ms=..} (300 by default, 0
+ *     to publish the clicks without waiting for a second one) and the gestures to publish,
+ *     {@code gestures=click,double_click,long_press} by default, out of press, release, click,
+ *     double_click and long_press. With {@code keycode=..}, the button goes through a button
+ *     input driver instead, which also injects the key into the Android input system.</li>
+ *     <li>SHUTDOWN closes the button.</li>
+ * </ul>
+ * The gestures are published on the button sub-topic of the publish topic, the label being the
+ * gesture and the double value the time the button was held, in milliseconds.
+ *
+ * @author Thilanka Munasinghe (thilankawillbe@gmail.com)
+ */
+public class ButtonHandler {
+
+    /* The Log Tag*/
+    private static final String TAG = ButtonHandler.class.getSimpleName();
+
+    /* The sub-topic the button messages are received and the gestures published on. */
+    public static final String BUTTON_SERVICE = "button";
+
+    /* The default gesture timings, in milliseconds. */
+    private static final long DEFAULT_DEBOUNCE_MS = 20;
+    private static final long DEFAULT_LONG_PRESS_MS = 600;
+    private static final long DEFAULT_DOUBLE_CLICK_MS = 300;
+
+    /* The gestures published by default. */
+    private static final String DEFAULT_GESTURES = "click,double_click,long_press";
+
+    /**
+     * The gestures of a button.
+     */
+    enum Gesture {
+        PRESS, RELEASE, CLICK, DOUBLE_CLICK, LONG_PRESS;
+
+        /* The name of the gesture in the messages. */
+        private final String mLabel = name().toLowerCase();
+    }
+
+    /* The publisher of the gestures */
+    private final MessagePublisher mPublisher;
+
+    /* The buttons, by pin name. */
+    private final Map<String, ButtonChannel> mButtons = new HashMap<>();
+
+    /* The buttons going through an input driver, by key code. */
+    private final Map<Integer, ButtonChannel> mKeys = new HashMap<>();
+
+    /* Fires the long presses and the clicks that no second click followed. */
+    private final ScheduledExecutorService mTimer = Executors.newSingleThreadScheduledExecutor();
+
+    /**
+     * The Constructor.
+     * @param pPublisher
+     */
+    public ButtonHandler(MessagePublisher pPublisher) {
+        mPublisher = pPublisher;
+    }
+
+    /**
+     * Handle the messages intended for the buttons.
+     * @param pPayload
+     * @throws IOException
+     */
+    public void handleMessage(Payload pPayload) throws IOException {
+        Action messageType = pPayload.getAction();
+        switch (messageType) {
+            case REGISTER:
+                register(pPayload.getName(), LabelOptions.parse(pPayload.getLabel()));
+                break;
+            case SHUTDOWN:
+                close(pPayload.getName());
+                break;
+            default:
+                Log.d(TAG, "Message not supported!");
+                break;
+        }
+    }
+
+    /**
+     * Open a button, replacing any button on the same pin.
+     * @param pName
+     * @param pOptions
+     * @throws IOException
+     */
+    private synchronized void register(String pName, LabelOptions pOptions) throws IOException {
+        Button.LogicState logicState = "high".equalsIgnoreCase(pOptions.getString("active", null))
+                ? Button.LogicState.PRESSED_WHEN_HIGH : Button.LogicState.PRESSED_WHEN_LOW;
+        EnumSet<Gesture> gestures = EnumSet.noneOf(Gesture.class);
+        for (String gesture : pOptions.getString("gestures", DEFAULT_GESTURES).split(",")) {
+            gestures.add(Gesture.valueOf(gesture.trim().toUpperCase()));
+        }
+        close(pName);
+        ButtonChannel channel = new ButtonChannel(pName, gestures,
+                pOptions.getLong("long_press_ms", DEFAULT_LONG_PRESS_MS),
+                pOptions.getLong("double_click_ms", DEFAULT_DOUBLE_CLICK_MS));
+        if (pOptions.has("keycode")) {
+            int keyCode = (int) pOptions.getLong("keycode", KeyEvent.KEYCODE_UNKNOWN);
+            if (mKeys.containsKey(keyCode)) {
+                throw new IllegalArgumentException("Key code " + keyCode + " already in use");
+            }
+            ButtonInputDriver driver = new ButtonInputDriver(pName, logicState, keyCode);
+            try {
+                driver.register();
+            } catch (RuntimeException e) {
+                driver.close();
+                throw e;
+            }
+            channel.mInputDriver = driver;
+            channel.mKeyCode = keyCode;
+            mKeys.put(keyCode, channel);
+        } else {
+            final Button button = new Button(pName, logicState);
+            try {
+                button.setDebounceDelay(pOptions.getLong("debounce_ms", DEFAULT_DEBOUNCE_MS));
+            } catch (RuntimeException e) {
+                button.close();
+                throw e;
+            }
+            final ButtonChannel buttonChannel = channel;
+            button.setOnButtonEventListener(new Button.OnButtonEventListener() {
+                @Override
+                public void onButtonEvent(Button pButton, boolean pPressed) {
+                    buttonChannel.onEdge(pPressed, SystemClock.uptimeMillis());
+                }
+            });
+            channel.mButton = button;
+        }
+        mButtons.put(pName, channel);
+        Log.d(TAG, "Registered the button " + pName + " " + pOptions);
+    }
+
+    /**
+     * Pass a key event injected by a button input driver to its button.
+     * @param pKeyCode
+     * @param pEvent
+     * @param pPressed
+     * @return whether the key belongs to a button.
+     */
+    public boolean onKey(int pKeyCode, KeyEvent pEvent, boolean pPressed) {
+        ButtonChannel channel;
+        synchronized (this) {
+            channel = mKeys.get(pKeyCode);
+        }
+        if (channel == null) {
+            return false;
+        }
+        if (pEvent.getRepeatCount() == 0) {
+            channel.onEdge(pPressed, pEvent.getEventTime());
+        }
+        return true;
+    }
+
+    /**
+     * Close the button by the given name, if any.
+     * @param pName
+     */
+    private synchronized void close(String pName) {
+        ButtonChannel channel = mButtons.remove(pName);
+        if (channel != null) {
+            if (channel.mInputDriver != null) {
+                mKeys.remove(channel.mKeyCode);
+            }
+            channel.close();
+        }
+    }
+
+    /**
+     * Close all the buttons.
+     */
+    public synchronized void closeAll() {
+        Iterator<ButtonChannel> iterator = mButtons.values().iterator();
+        while (iterator.hasNext()) {
+            iterator.next().close();
+            iterator.remove();
+        }
+        mKeys.clear();
+        mTimer.shutdownNow();
+    }
+
+    /**
+     * Publish a gesture.
+     * @param pName
+     * @param pGesture
+     * @param pHeldMs
+     */
+    private void publishGesture(String pName, Gesture pGesture, long pHeldMs) {
+        Payload payload = new Payload();
+        payload.setPeripheralIO(PeripheralIO.GPIO);
+        payload.setAction(Action.EVENT);
+        payload.setName(pName);
+        payload.setLabel(pGesture.mLabel);
+        payload.setDoubleValue(pHeldMs);
+        mPublisher.publish(OutboundScheduler.PriorityClass.INTERACTIVE,
+                AndroidThingsActivity.getPublishTopic(BUTTON_SERVICE), payload, false);
+    }
+
+    /**
+     * A button and the gesture it is in the middle of.
+     */
+    private class ButtonChannel {
+        private final String mName;
+        private final EnumSet<Gesture> mGestures;
+        private final long mLongPressMs;
+        private final long mDoubleClickMs;
+        private Button mButton;
+        private ButtonInputDriver mInputDriver;
+        private int mKeyCode;
+
+        /* Counts the presses, so that the timers of the earlier presses do nothing. */
+        private long mPressCount;
+        private boolean mPressed;
+        private long mPressedAt;
+        private boolean mLongPressed;
+        private boolean mSecondPress;
+        private boolean mClickPending;
+        private ScheduledFuture<?> mLongPressTimer;
+        private ScheduledFuture<?> mClickTimer;
+
+        ButtonChannel(String pName, EnumSet<Gesture> pGestures, long pLongPressMs,
+                      long pDoubleClickMs) {
+            mName = pName;
+            mGestures = pGestures;
+            mLongPressMs = pLongPressMs;
+            mDoubleClickMs = pGestures.contains(Gesture.DOUBLE_CLICK) ? pDoubleClickMs : 0;
+        }
+
+        /**
+         * Follow a debounced edge of the button.
+         * @param pPressed
+         * @param pTime the {@link SystemClock#uptimeMillis()} of the edge.
+         */
+        private synchronized void onEdge(boolean pPressed, long pTime) {
+            if (pPressed == mPressed) {
+                return;
+            }
+            mPressed = pPressed;
+            if (pPressed) {
+                mPressCount++;
+                mPressedAt = pTime;
+                mLongPressed = false;
+                mSecondPress = mClickPending;
+                mClickPending = false;
+                cancel(mClickTimer);
+                publish(Gesture.PRESS, 0);
+                if (mGestures.contains(Gesture.LONG_PRESS)) {
+                    mLongPressTimer = schedule(Gesture.LONG_PRESS, mLongPressMs);
+                }
+                return;
+            }
+            cancel(mLongPressTimer);
+            long held = pTime - mPressedAt;
+            publish(Gesture.RELEASE, held);
+            if (mLongPressed) {
+                return;
+            }
+            if (mSecondPress) {
+                publish(Gesture.DOUBLE_CLICK, held);
+            } else if (mDoubleClickMs > 0) {
+                mClickPending = true;
+                mClickTimer = schedule(Gesture.CLICK, mDoubleClickMs);
+            } else {
+                publish(Gesture.CLICK, held);
+            }
+        }
+
+        /**
+         * Publish a gesture recognized by a timer, unless the button moved since.
+         * @param pGesture
+         * @param pPressCount the press count when the timer was started.
+         */
+        private synchronized void onTimer(Gesture pGesture, long pPressCount) {
+            if (pPressCount != mPressCount) {
+                return;
+            }
+            if (pGesture == Gesture.LONG_PRESS && mPressed) {
+                mLongPressed = true;
+                publish(Gesture.LONG_PRESS, SystemClock.uptimeMillis() - mPressedAt);
+            } else if (pGesture == Gesture.CLICK && mClickPending) {
+                mClickPending = false;
+                publish(Gesture.CLICK, 0);
+            }
+        }
+
+        private ScheduledFuture<?> schedule(final Gesture pGesture, long pDelayMs) {
+            final long pressCount = mPressCount;
+            return mTimer.schedule(new Runnable() {
+                @Override
+                public void run() {
+                    onTimer(pGesture, pressCount);
+                }
+            }, pDelayMs, TimeUnit.MILLISECONDS);
+        }
+
+        private void cancel(ScheduledFuture<?> pTimer) {
+            if (pTimer != null) {
+                pTimer.cancel(false);
+            }
+        }
+
+        private void publish(Gesture pGesture, long pHeldMs) {
+            if (mGestures.contains(pGesture)) {
+                publishGesture(mName, pGesture, pHeldMs);
+            }
+        }
+
+        /**
+         * Close the button, ignoring the failures.
+         */
+        private synchronized void close() {
+            cancel(mLongPressTimer);
+            cancel(mClickTimer);
+            mPressCount++;
+            try {
+                if (mInputDriver != null) {
+                    mInputDriver.unregister();
+                    mInputDriver.close();
+                } else {
+                    mButton.close();
+                }
+            } catch (IOException e) {
+                Log.w(TAG, "Unable to close the button " + mName + ": "
+                        + e.getLocalizedMessage());
+            }
+        }
+    }
+}
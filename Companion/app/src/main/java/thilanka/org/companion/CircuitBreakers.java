@@ -0,0 +1,360 @@
+package thilanka.org.companion;
+
+import android.util.Log;
+
+import org.thilanka.messaging.domain.Action;
+import org.thilanka.messaging.domain.Payload;
+import org.thilanka.messaging.domain.PeripheralIO;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.EnumMap;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Isolates the failing peripherals, so that a flaky pin stops slowing down the healthy ones.
+ *
+ * Each peripheral (by pin name, or TEMPERATURE_SENSOR) has a breaker that follows the outcome of
+ * its last {@link #WINDOW} hardware operations. Once at least {@link #MIN_CALLS} of them are
+ * recorded and half of them failed, the breaker opens: the commands on the peripheral fail at
+ * once with an {@link OpenException}, without touching the hardware. In the background, the
+ * peripheral's handle is reopened after 1 second, then after twice as long on every failure, up
+ * to a minute. The breaker closes again once a reopening succeeds, or, for the peripherals
+ * that cannot be reopened, lets the next command through as a trial.
+ *
+ * The health of each peripheral is published, retained, on its own sub-topic of the health
+ * sub-topic of the publish topic whenever its breaker changes, as
+ * {@code state=closed|open|half_open;failures=..;calls=..;retry_ms=..;error=..}. A MONITOR on
+ * the health sub-topic of the subscribe topic publishes the health of all the peripherals.
+ *
+ * @author Thilanka Munasinghe (thilankawillbe@gmail.com)
+ */
+public class CircuitBreakers {
+
+    /**
+     * Reopens the handle of a peripheral.
+     */
+    public interface Recovery {
+        void reopen(String pName) throws IOException;
+    }
+
+    /**
+     * Thrown instead of running a command on a peripheral whose breaker is open.
+     */
+    public static class OpenException extends IOException {
+        private static final long serialVersionUID = 1L;
+
+        OpenException(String pMessage) {
+            super(pMessage);
+        }
+    }
+
+    /**
+     * The states of a breaker.
+     */
+    enum State {
+        CLOSED, OPEN, HALF_OPEN;
+
+        /* The name of the state in the messages. */
+        private final String mLabel = name().toLowerCase();
+    }
+
+    /* The Log Tag*/
+    private static final String TAG = CircuitBreakers.class.getSimpleName();
+
+    /* The sub-topic the health is received and published on. */
+    public static final String HEALTH_SERVICE = "health";
+
+    /* The number of the last operations the error rate is taken over. */
+    static final int WINDOW = 16;
+
+    /* The fewest operations to open a breaker on. */
+    static final int MIN_CALLS = 4;
+
+    /* The delays between the reopenings. */
+    private static final long INITIAL_BACKOFF_MS = 1000;
+    private static final long MAX_BACKOFF_MS = 60000;
+
+    /* The publisher of the health */
+    private final MessagePublisher mPublisher;
+
+    /* The breakers, by peripheral name. */
+    private final Map<String, Breaker> mBreakers = new HashMap<>();
+
+    /* The reopening of the handles, by peripheral type. */
+    private final Map<PeripheralIO, Recovery> mRecoveries = new EnumMap<>(PeripheralIO.class);
+
+    /* Reopens the handles of the open breakers. */
+    private final ScheduledExecutorService mExecutor = Executors.newSingleThreadScheduledExecutor();
+
+    /**
+     * The Constructor.
+     * @param pPublisher
+     */
+    public CircuitBreakers(MessagePublisher pPublisher) {
+        mPublisher = pPublisher;
+    }
+
+    /**
+     * The name of the breaker of the peripheral a payload is for.
+     * @param pPayload
+     * @return the pin name, or the peripheral type for the sensors.
+     */
+    public static String keyOf(Payload pPayload) {
+        PeripheralIO peripheralIO = pPayload.getPeripheralIO();
+        if (peripheralIO == PeripheralIO.TEMPERATURE_SENSOR || pPayload.getName() == null) {
+            return peripheralIO.getName();
+        }
+        return pPayload.getName();
+    }
+
+    /**
+     * Set how the handles of a type of peripheral are reopened.
+     * @param pPeripheralIO
+     * @param pRecovery
+     */
+    public synchronized void setRecovery(PeripheralIO pPeripheralIO, Recovery pRecovery) {
+        mRecoveries.put(pPeripheralIO, pRecovery);
+    }
+
+    /**
+     * Handle the messages intended for the health.
+     * @param pPayload
+     */
+    public void handleMessage(Payload pPayload) {
+        Action messageType = pPayload.getAction();
+        switch (messageType) {
+            case MONITOR:
+                List<Payload> health = new ArrayList<>();
+                synchronized (this) {
+                    for (Breaker breaker : mBreakers.values()) {
+                        health.add(breaker.toPayload());
+                    }
+                }
+                for (Payload payload : health) {
+                    publish(payload);
+                }
+                break;
+            default:
+                Log.d(TAG, "Message not supported!");
+                break;
+        }
+    }
+
+    /**
+     * Fail at once if the breaker of a peripheral is open.
+     * @param pName
+     * @throws OpenException if the breaker is open.
+     */
+    public synchronized void check(String pName) throws OpenException {
+        Breaker breaker = mBreakers.get(pName);
+        if (breaker != null && breaker.mState == State.OPEN) {
+            throw new OpenException(pName + " is unavailable after repeated failures ("
+                    + breaker.mLastError + "), retrying in " + breaker.mBackoffMs + " ms");
+        }
+    }
+
+    /**
+     * Record a successful operation on a peripheral.
+     * @param pName
+     */
+    public void onSuccess(String pName) {
+        Payload health = null;
+        synchronized (this) {
+            Breaker breaker = mBreakers.get(pName);
+            if (breaker == null) {
+                return;
+            }
+            breaker.record(false);
+            if (breaker.mState == State.HALF_OPEN) {
+                health = breaker.close();
+            }
+        }
+        publish(health);
+    }
+
+    /**
+     * Record a failed operation on a peripheral, opening its breaker if it fails too often.
+     * @param pPeripheralIO
+     * @param pName
+     * @param pError
+     */
+    public void onFailure(PeripheralIO pPeripheralIO, String pName, String pError) {
+        Payload health = null;
+        synchronized (this) {
+            Breaker breaker = mBreakers.get(pName);
+            if (breaker == null) {
+                breaker = new Breaker(pPeripheralIO, pName);
+                mBreakers.put(pName, breaker);
+            }
+            breaker.record(true);
+            breaker.mLastError = pError;
+            if (breaker.mState == State.HALF_OPEN) {
+                breaker.mBackoffMs = Math.min(MAX_BACKOFF_MS, breaker.mBackoffMs * 2);
+                health = open(breaker);
+            } else if (breaker.mState == State.CLOSED && breaker.mCalls >= MIN_CALLS
+                    && breaker.mFailures * 2 >= breaker.mCalls) {
+                breaker.mBackoffMs = INITIAL_BACKOFF_MS;
+                health = open(breaker);
+            }
+        }
+        publish(health);
+    }
+
+    /**
+     * Open a breaker and schedule its reopening. Must hold the lock.
+     * @param pBreaker
+     * @return the health to publish.
+     */
+    private Payload open(final Breaker pBreaker) {
+        pBreaker.mState = State.OPEN;
+        Log.w(TAG, "Opened the breaker of " + pBreaker.mName + ": " + pBreaker.mLastError);
+        if (!mExecutor.isShutdown()) {
+            mExecutor.schedule(new Runnable() {
+                @Override
+                public void run() {
+                    probe(pBreaker);
+                }
+            }, pBreaker.mBackoffMs, TimeUnit.MILLISECONDS);
+        }
+        return pBreaker.toPayload();
+    }
+
+    /**
+     * Try to reopen the handle of a peripheral whose breaker is open.
+     * @param pBreaker
+     */
+    private void probe(Breaker pBreaker) {
+        Recovery recovery;
+        Payload trial;
+        synchronized (this) {
+            if (pBreaker.mState != State.OPEN) {
+                return;
+            }
+            pBreaker.mState = State.HALF_OPEN;
+            recovery = mRecoveries.get(pBreaker.mPeripheralIO);
+            trial = pBreaker.toPayload();
+        }
+        if (recovery == null) {
+            /* The next command is the trial. */
+            publish(trial);
+            return;
+        }
+        String error = null;
+        try {
+            recovery.reopen(pBreaker.mName);
+        } catch (IOException | RuntimeException e) {
+            error = String.valueOf(e.getLocalizedMessage());
+        }
+        Payload health;
+        synchronized (this) {
+            if (pBreaker.mState != State.HALF_OPEN) {
+                return;
+            }
+            if (error == null) {
+                health = pBreaker.close();
+            } else {
+                pBreaker.mLastError = error;
+                pBreaker.mBackoffMs = Math.min(MAX_BACKOFF_MS, pBreaker.mBackoffMs * 2);
+                health = open(pBreaker);
+            }
+        }
+        publish(health);
+    }
+
+    /**
+     * Publish the health of a peripheral, retained on its own topic.
+     * @param pHealth nothing is published if null.
+     */
+    private void publish(Payload pHealth) {
+        if (pHealth != null) {
+            mPublisher.publish(AndroidThingsActivity.getPublishTopic(HEALTH_SERVICE) + "/"
+                    + pHealth.getName(), pHealth, true);
+        }
+    }
+
+    /**
+     * Stop reopening the handles.
+     */
+    public void shutdown() {
+        mExecutor.shutdownNow();
+    }
+
+    /**
+     * The breaker of a peripheral. Guarded by the breakers.
+     */
+    private static class Breaker {
+        private final PeripheralIO mPeripheralIO;
+        private final String mName;
+        private State mState = State.CLOSED;
+
+        /* The outcomes of the last operations, a set bit being a failure, the newest at mNext. */
+        private int mOutcomes;
+        private int mNext;
+        private int mCalls;
+        private int mFailures;
+        private long mBackoffMs = INITIAL_BACKOFF_MS;
+        private String mLastError;
+
+        Breaker(PeripheralIO pPeripheralIO, String pName) {
+            mPeripheralIO = pPeripheralIO;
+            mName = pName;
+        }
+
+        private void record(boolean pFailed) {
+            int bit = 1 << mNext;
+            if (mCalls == WINDOW) {
+                if ((mOutcomes & bit) != 0) {
+                    mFailures--;
+                }
+            } else {
+                mCalls++;
+            }
+            if (pFailed) {
+                mOutcomes |= bit;
+                mFailures++;
+            } else {
+                mOutcomes &= ~bit;
+            }
+            mNext = (mNext + 1) % WINDOW;
+        }
+
+        /**
+         * Close the breaker, forgetting the past failures.
+         * @return the health to publish.
+         */
+        private Payload close() {
+            mState = State.CLOSED;
+            mOutcomes = 0;
+            mNext = 0;
+            mCalls = 0;
+            mFailures = 0;
+            mBackoffMs = INITIAL_BACKOFF_MS;
+            Log.i(TAG, "Closed the breaker of " + mName + ".");
+            return toPayload();
+        }
+
+        private Payload toPayload() {
+            Payload payload = new Payload();
+            payload.setPeripheralIO(mPeripheralIO);
+            payload.setAction(Action.EVENT);
+            payload.setName(mName);
+            StringBuilder label = new StringBuilder("state=").append(mState.mLabel)
+                    .append(";failures=").append(mFailures).append(";calls=").append(mCalls);
+            if (mState != State.CLOSED) {
+                label.append(";retry_ms=").append(mBackoffMs);
+            }
+            if (mLastError != null && mState != State.CLOSED) {
+                label.append(";error=").append(mLastError.replace(';', ',')
+                        .replace('=', ':'));
+            }
+            payload.setLabel(label.toString());
+            return payload;
+        }
+    }
+}
@@ -0,0 +1,138 @@
+package thilanka.org.companion;
+
+import com.google.gson.Gson;
+
+import org.thilanka.messaging.domain.Payload;
+
+/**
+ * An inbound command: a {@link Payload} with an optional request ID chosen by the client. The
+ * ID is echoed in the acknowledgment of the command and in any direct reply to it, so that a
+ * client can have many commands outstanding and still tell which response belongs to which.
+ *
+ * The request ID travels as an extra {@code mRequestId} JSON field next to the payload fields,
+ * and the ID of the sending client, used to rate limit each client on its own, as an extra
+ * {@code mClientId} field. Clients that do not know about them never send them, and ignore them
+ * in the replies.
+ *
+ * @author Thilanka Munasinghe (thilankawillbe@gmail.com)
+ */
+public class Command extends Payload {
+
+    /* Reads the commands, including the fields that the shared message format does not know. */
+    private static final Gson sGson = new Gson();
+
+    /* The label of a new payload, which the shared message format does not leave empty. */
+    static final String DEFAULT_LABEL = new Payload().getLabel();
+
+    /* The client chosen ID of the request, or null. */
+    private String mRequestId;
+
+    /* The ID of the client that sent the command, or null. */
+    private String mClientId;
+
+    /**
+     * Read a command from its JSON form.
+     * @param pMessage
+     * @return the command.
+     */
+    public static Command parse(String pMessage) {
+        return sGson.fromJson(pMessage, Command.class);
+    }
+
+    /**
+     * The request ID of the given payload, if it is a command that has one.
+     * @param pPayload
+     * @return the request ID, or null.
+     */
+    public static String requestIdOf(Payload pPayload) {
+        return pPayload instanceof Command ? ((Command) pPayload).getRequestId() : null;
+    }
+
+    /**
+     * Tag a reply with the request ID of the command it answers.
+     * @param pReply
+     * @param pRequest
+     * @return the tagged copy of the reply, or the reply itself if the request has no ID.
+     */
+    public static Payload tag(Payload pReply, Payload pRequest) {
+        String requestId = requestIdOf(pRequest);
+        if (requestId == null) {
+            return pReply;
+        }
+        Command command = new Command();
+        copyPayload(pReply, command);
+        command.setRequestId(requestId);
+        return command;
+    }
+
+    /**
+     * A copy of a command, for a command object that is about to be reused.
+     * @param pCommand
+     * @return the copy.
+     */
+    public static Command copyOf(Command pCommand) {
+        Command command = new Command();
+        command.copyFrom(pCommand);
+        return command;
+    }
+
+    /**
+     * Overwrite every field with those of another command.
+     * @param pCommand
+     */
+    public void copyFrom(Command pCommand) {
+        copyPayload(pCommand, this);
+        mRequestId = pCommand.mRequestId;
+        mClientId = pCommand.mClientId;
+    }
+
+    /**
+     * Copy the payload fields of a payload into a command.
+     * @param pFrom
+     * @param pTo
+     */
+    private static void copyPayload(Payload pFrom, Command pTo) {
+        pTo.setPeripheralIO(pFrom.getPeripheralIO());
+        pTo.setAction(pFrom.getAction());
+        pTo.setName(pFrom.getName());
+        pTo.setProperty(pFrom.getProperty());
+        pTo.setValue(pFrom.getValue());
+        pTo.setAndroidThingsBoard(pFrom.getAndroidThingsBoard());
+        pTo.setDirection(pFrom.getDirection());
+        pTo.setLabel(pFrom.getLabel());
+        pTo.setDoubleValue(pFrom.getDoubleValue());
+    }
+
+    /**
+     * Reset every field to its value in a new command, for reuse.
+     */
+    public void clear() {
+        setPeripheralIO(null);
+        setAction(null);
+        setName(null);
+        setProperty(null);
+        setValue(null);
+        setAndroidThingsBoard(null);
+        setDirection(null);
+        setLabel(DEFAULT_LABEL);
+        setDoubleValue(0);
+        mRequestId = null;
+        mClientId = null;
+    }
+
+    public String getRequestId() {
+        return mRequestId;
+    }
+
+    public void setRequestId(String pRequestId) {
+        mRequestId = pRequestId;
+    }
+
+    public String getClientId() {
+        return mClientId;
+    }
+
+    public void setClientId(String pClientId) {
+        mClientId = pClientId;
+    }
+}
@@ -0,0 +1,372 @@
+package thilanka.org.companion;
+
+import org.thilanka.messaging.domain.Action;
+import org.thilanka.messaging.domain.Payload;
+import org.thilanka.messaging.domain.PeripheralIO;
+
+import java.util.ArrayDeque;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Admits the inbound commands before they are executed, so that a client flooding the board
+ * (an app looping on a button...) cannot starve the other clients or the input edges.
+ *
+ * Each client (by the {@code mClientId} of its commands, the clients without one sharing a
+ * limit) and each peripheral (pin or service) has a token bucket; a command over either limit is
+ * rejected and acknowledged as {@link Acknowledger#STATUS_REJECTED}. The admitted commands wait
+ * in a bounded queue for the single thread that executes them, in order. A command that sets a
+ * GPIO or PWM output replaces the command still waiting for the same output, which is
+ * acknowledged as {@link Acknowledger#STATUS_COALESCED}: only the last value matters. As it adds
+ * nothing to the queue, such a command takes no token, so a fast stream of updates on one output
+ * (a slider...) is coalesced rather than rejected. A command is only copied once admitted and
+ * not coalesced, so a flood of refused or superseded commands allocates nothing past the
+ * decoding. When the queue is full, the MQTT callback thread waits for room, which stops the
+ * reading of the connection and lets the broker hold the rest of the flood.
+ *
+ * Every 10 seconds, if anything arrived, the counters are published on the admission sub-topic
+ * of the publish topic, with {@code depth=..;admitted=..;coalesced=..;rejected=..;
+ * backpressured=..} as the label and the number of rejected commands as the double value.
+ *
+ * @author Thilanka Munasinghe (thilankawillbe@gmail.com)
+ */
+public class CommandAdmission {
+
+    /* The Log Tag*/
+    private static final String TAG = CommandAdmission.class.getSimpleName();
+
+    /* The sub-topic the counters are published on. */
+    public static final String ADMISSION_SERVICE = "admission";
+
+    /* The commands per second allowed to each client, and its burst. */
+    private static final double CLIENT_RATE = 50;
+    private static final double CLIENT_BURST = 100;
+
+    /* The commands per second allowed to each peripheral, and its burst. */
+    private static final double PERIPHERAL_RATE = 20;
+    private static final double PERIPHERAL_BURST = 20;
+
+    /* The most token buckets kept per kind. Further clients or peripherals share one. */
+    private static final int MAX_BUCKETS = 64;
+
+    /* The most commands waiting for execution. */
+    private static final int QUEUE_CAPACITY = 128;
+
+    /* The period of the counters. */
+    private static final long STATS_PERIOD_MS = 10000;
+
+    /**
+     * Executes the admitted commands.
+     */
+    public interface Handler {
+        /**
+         * Execute and acknowledge a command.
+         * @param pService the service of the command, or an empty string for a peripheral.
+         * @param pCommand
+         * @param pReceivedAtNanos the {@link System#nanoTime()} at which the command arrived.
+         */
+        void execute(String pService, Command pCommand, long pReceivedAtNanos);
+    }
+
+    /* The executor of the admitted commands. */
+    private final Handler mHandler;
+
+    /* Acknowledges the rejected and coalesced commands. */
+    private final Acknowledger mAcknowledger;
+
+    /* The publisher of the counters. */
+    private final MessagePublisher mPublisher;
+
+    /* Guards the buckets, the queue and the counters. */
+    private final ReentrantLock mLock = new ReentrantLock();
+
+    /* Signalled when a command is queued, or on shutdown. */
+    private final Condition mNotEmpty = mLock.newCondition();
+
+    /* Signalled when a command leaves the queue, or on shutdown. */
+    private final Condition mNotFull = mLock.newCondition();
+
+    /* The token buckets of the clients and of the peripherals. */
+    private final HashMap<String, TokenBucket> mClientBuckets = new HashMap<>();
+    private final HashMap<String, TokenBucket> mPeripheralBuckets = new HashMap<>();
+
+    /* The commands waiting, in arrival order. */
+    private final ArrayDeque<Pending> mQueue = new ArrayDeque<>();
+
+    /* The counters. */
+    private long mAdmitted;
+    private long mCoalesced;
+    private long mRejected;
+    private long mBackpressured;
+
+    /* The number of commands that arrived when the counters were last published. */
+    private long mReportedArrivals;
+
+    /* The thread executing the commands. */
+    private final Thread mWorker;
+
+    /* Whether commands are still accepted. */
+    private volatile boolean mRunning = true;
+
+    /**
+     * The Constructor. Starts the thread executing the commands.
+     * @param pHandler
+     * @param pAcknowledger
+     * @param pPublisher
+     */
+    public CommandAdmission(Handler pHandler, Acknowledger pAcknowledger,
+                            MessagePublisher pPublisher) {
+        mHandler = pHandler;
+        mAcknowledger = pAcknowledger;
+        mPublisher = pPublisher;
+        mWorker = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                work();
+            }
+        }, TAG);
+        mWorker.start();
+    }
+
+    /**
+     * Admit a command, or reject it. Waits while the queue is full.
+     * @param pService the service of the command, or an empty string for a peripheral.
+     * @param pCommand copied if needed: the caller may reuse it once this returns.
+     * @param pReceivedAtNanos the {@link System#nanoTime()} at which the command arrived.
+     */
+    public void submit(String pService, Command pCommand, long pReceivedAtNanos) {
+        String rejection = null;
+        mLock.lock();
+        try {
+            Pending superseded = findSuperseded(pService, pCommand);
+            if (superseded != null) {
+                /* Take the place of the superseded command, and of its tokens. */
+                mAcknowledger.acknowledge(superseded.mCommand, Acknowledger.STATUS_COALESCED,
+                        null, superseded.mReceivedAtNanos);
+                superseded.mCommand.copyFrom(pCommand);
+                superseded.mReceivedAtNanos = pReceivedAtNanos;
+                mCoalesced++;
+                mAdmitted++;
+                return;
+            }
+            long now = System.nanoTime();
+            TokenBucket client = getBucket(mClientBuckets, String.valueOf(pCommand
+                    .getClientId()), CLIENT_RATE, CLIENT_BURST);
+            TokenBucket peripheral = getBucket(mPeripheralBuckets, peripheralKey(pService,
+                    pCommand), PERIPHERAL_RATE, PERIPHERAL_BURST);
+            if (!client.hasToken(now)) {
+                rejection = "client rate limit";
+            } else if (!peripheral.hasToken(now)) {
+                rejection = "peripheral rate limit";
+            }
+            if (rejection != null) {
+                mRejected++;
+            } else {
+                client.take();
+                peripheral.take();
+                if (mQueue.size() >= QUEUE_CAPACITY) {
+                    mBackpressured++;
+                    while (mRunning && mQueue.size() >= QUEUE_CAPACITY) {
+                        mNotFull.awaitUninterruptibly();
+                    }
+                }
+                if (!mRunning) {
+                    return;
+                }
+                mQueue.add(new Pending(pService, Command.copyOf(pCommand), pReceivedAtNanos));
+                mNotEmpty.signal();
+                mAdmitted++;
+            }
+        } finally {
+            mLock.unlock();
+        }
+        if (rejection != null) {
+            mAcknowledger.acknowledge(pCommand, Acknowledger.STATUS_REJECTED, rejection,
+                    pReceivedAtNanos);
+        }
+    }
+
+    /**
+     * Execute the admitted commands in order, and publish the counters periodically.
+     */
+    private void work() {
+        long nextStats = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(STATS_PERIOD_MS);
+        while (mRunning) {
+            Pending pending = null;
+            mLock.lock();
+            try {
+                long wait = nextStats - System.nanoTime();
+                if (mQueue.isEmpty() && wait > 0) {
+                    mNotEmpty.awaitNanos(wait);
+                    continue;
+                }
+                pending = mQueue.poll();
+                if (pending != null) {
+                    mNotFull.signal();
+                }
+            } catch (InterruptedException e) {
+                return;
+            } finally {
+                mLock.unlock();
+            }
+            if (pending != null) {
+                mHandler.execute(pending.mService, pending.mCommand, pending.mReceivedAtNanos);
+            }
+            if (System.nanoTime() - nextStats >= 0) {
+                publishStats();
+                nextStats = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(STATS_PERIOD_MS);
+            }
+        }
+    }
+
+    /**
+     * The counters since the start, as label options.
+     * @return {@code depth=..;admitted=..;coalesced=..;rejected=..;backpressured=..}
+     */
+    public String getStats() {
+        mLock.lock();
+        try {
+            return "depth=" + mQueue.size() + ";admitted=" + mAdmitted + ";coalesced="
+                    + mCoalesced + ";rejected=" + mRejected + ";backpressured=" + mBackpressured;
+        } finally {
+            mLock.unlock();
+        }
+    }
+
+    /**
+     * Publish the counters, unless no command arrived since the last time.
+     */
+    private void publishStats() {
+        long arrivals;
+        double rejected;
+        mLock.lock();
+        try {
+            arrivals = mAdmitted + mRejected;
+            rejected = mRejected;
+        } finally {
+            mLock.unlock();
+        }
+        if (arrivals == mReportedArrivals) {
+            return;
+        }
+        mReportedArrivals = arrivals;
+        Payload payload = new Payload();
+        payload.setName(ADMISSION_SERVICE);
+        payload.setLabel(getStats());
+        payload.setDoubleValue(rejected);
+        mPublisher.publish(AndroidThingsActivity.getPublishTopic(ADMISSION_SERVICE), payload);
+    }
+
+    /**
+     * Stop executing the commands. The commands still waiting are dropped.
+     */
+    public void shutdown() {
+        mLock.lock();
+        try {
+            mRunning = false;
+            mNotEmpty.signalAll();
+            mNotFull.signalAll();
+        } finally {
+            mLock.unlock();
+        }
+        mWorker.interrupt();
+    }
+
+    /**
+     * The token bucket of a client or peripheral, created on first use. Must hold the lock.
+     * @param pBuckets
+     * @param pKey
+     * @param pRate
+     * @param pBurst
+     * @return the bucket.
+     */
+    private static TokenBucket getBucket(HashMap<String, TokenBucket> pBuckets, String pKey,
+                                         double pRate, double pBurst) {
+        TokenBucket bucket = pBuckets.get(pKey);
+        if (bucket == null) {
+            if (pBuckets.size() >= MAX_BUCKETS) {
+                /* Too many to track: the others share a bucket. */
+                pKey = "*";
+                bucket = pBuckets.get(pKey);
+            }
+            if (bucket == null) {
+                bucket = new TokenBucket(pRate, pBurst);
+                pBuckets.put(pKey, bucket);
+            }
+        }
+        return bucket;
+    }
+
+    /**
+     * The peripheral a command is rate limited under: its pin, or its service. The pin names of
+     * the peripherals do not overlap.
+     * @param pService
+     * @param pCommand
+     * @return the key.
+     */
+    private static String peripheralKey(String pService, Payload pCommand) {
+        if (!pService.isEmpty()) {
+            return pService;
+        }
+        return pCommand.getName() != null ? pCommand.getName()
+                : String.valueOf(pCommand.getPeripheralIO());
+    }
+
+    /**
+     * Whether a command sets an output, so that a later command setting the same output
+     * supersedes it.
+     * @param pService
+     * @param pCommand
+     * @return true for an EVENT on a named GPIO or PWM.
+     */
+    private static boolean isOutput(String pService, Payload pCommand) {
+        PeripheralIO peripheralIO = pCommand.getPeripheralIO();
+        return pService.isEmpty() && pCommand.getAction() == Action.EVENT
+                && pCommand.getName() != null
+                && (peripheralIO == PeripheralIO.GPIO || peripheralIO == PeripheralIO.PWM);
+    }
+
+    /**
+     * The waiting command that a command supersedes: the last one waiting for the same pin, if
+     * it sets the same output. Must hold the lock.
+     * @param pService
+     * @param pCommand
+     * @return the superseded command, or null.
+     */
+    private Pending findSuperseded(String pService, Command pCommand) {
+        if (!isOutput(pService, pCommand)) {
+            return null;
+        }
+        Iterator<Pending> iterator = mQueue.descendingIterator();
+        while (iterator.hasNext()) {
+            Pending pending = iterator.next();
+            Command waiting = pending.mCommand;
+            if (!pending.mService.isEmpty() || !pCommand.getName().equals(waiting.getName())) {
+                continue;
+            }
+            /* Anything else on the pin in between keeps its order. */
+            return isOutput(pending.mService, waiting)
+                    && waiting.getPeripheralIO() == pCommand.getPeripheralIO()
+                    && waiting.getProperty() == pCommand.getProperty() ? pending : null;
+        }
+        return null;
+    }
+
+    /**
+     * A command waiting for execution.
+     */
+    private static class Pending {
+        private final String mService;
+        private final Command mCommand;
+        private long mReceivedAtNanos;
+
+        Pending(String pService, Command pCommand, long pReceivedAtNanos) {
+            mService = pService;
+            mCommand = pCommand;
+            mReceivedAtNanos = pReceivedAtNanos;
+        }
+    }
+}
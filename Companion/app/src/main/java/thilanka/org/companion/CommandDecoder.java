@@ -0,0 +1,626 @@
+package thilanka.org.companion;
+
+import org.thilanka.device.pin.PinDirection;
+import org.thilanka.device.pin.PinProperty;
+import org.thilanka.device.pin.PinValue;
+import org.thilanka.messaging.domain.Action;
+import org.thilanka.messaging.domain.PeripheralIO;
+
+import java.nio.charset.Charset;
+import java.util.Arrays;
+
+/**
+ * Reads the JSON commands straight from the bytes of the MQTT messages into a reused
+ * {@link Command}, without the reflection of Gson nor the intermediate strings: field and enum
+ * names are looked up with a {@link PerfectHash} from the bytes, pin names are taken from the
+ * names registered in the {@link PinRegistry}, and numbers are read in place. Only the labels
+ * and the other free strings are allocated.
+ *
+ * The decoder reads what {@code Message.constructMessage} writes, plus the extra fields of a
+ * {@link Command}; unknown fields are skipped, unknown enum names read as null, like Gson does.
+ * Anything else (lenient JSON, a string where a number is expected...) is refused, and should be
+ * read with {@link Command#parse(String)} instead. A decoder is not thread safe.
+ *
+ * @author Thilanka Munasinghe (thilankawillbe@gmail.com)
+ */
+public class CommandDecoder {
+
+    /* The encoding of the messages. */
+    private static final Charset UTF_8 = Charset.forName("UTF-8");
+
+    /* The fields read, with their index below. */
+    private static final String[] FIELDS = {"mPeripheralIO", "mAction", "mName", "mProperty",
+            "mValue", "mAndroidThingsBoard", "mDirection", "mLabel", "mDoubleValue",
+            "mRequestId", "mClientId"};
+    private static final int PERIPHERAL_IO = 0;
+    private static final int ACTION = 1;
+    private static final int NAME = 2;
+    private static final int PROPERTY = 3;
+    private static final int VALUE = 4;
+    private static final int ANDROID_THINGS_BOARD = 5;
+    private static final int DIRECTION = 6;
+    private static final int LABEL = 7;
+    private static final int DOUBLE_VALUE = 8;
+    private static final int REQUEST_ID = 9;
+    private static final int CLIENT_ID = 10;
+
+    /* The most nested levels skipped in an unknown field. */
+    private static final int MAX_DEPTH = 32;
+
+    /* The powers of ten that are exact doubles. */
+    private static final double[] POWERS_OF_TEN = new double[23];
+
+    /* The largest mantissa that is an exact double. */
+    private static final long MAX_EXACT_MANTISSA = 1L << 53;
+
+    /* The lookup tables. */
+    private static final PerfectHash sFields = new PerfectHash(FIELDS);
+    private static final PeripheralIO[] sPeripheralIOs = PeripheralIO.values();
+    private static final PerfectHash sPeripheralIONames = PerfectHash.of(sPeripheralIOs);
+    private static final Action[] sActions = Action.values();
+    private static final PerfectHash sActionNames = PerfectHash.of(sActions);
+    private static final PinProperty[] sProperties = PinProperty.values();
+    private static final PerfectHash sPropertyNames = PerfectHash.of(sProperties);
+    private static final PinValue[] sValues = PinValue.values();
+    private static final PerfectHash sValueNames = PerfectHash.of(sValues);
+    private static final PinDirection[] sDirections = PinDirection.values();
+    private static final PerfectHash sDirectionNames = PerfectHash.of(sDirections);
+
+    static {
+        POWERS_OF_TEN[0] = 1;
+        for (int i = 1; i < POWERS_OF_TEN.length; i++) {
+            POWERS_OF_TEN[i] = POWERS_OF_TEN[i - 1] * 10;
+        }
+    }
+
+    /* The message being read, and the position in it. */
+    private byte[] mBytes;
+    private int mPosition;
+
+    /* The characters of strings with escapes, once unescaped. Grown as needed and reused. */
+    private byte[] mScratch = new byte[256];
+
+    /* The last string read: where its bytes are, its hash, and whether it is all ASCII. */
+    private byte[] mStringBytes;
+    private int mStringOffset;
+    private int mStringLength;
+    private int mStringHash;
+    private boolean mStringAscii;
+
+    /* The last number read. */
+    private double mNumber;
+
+    /**
+     * Read a command.
+     * @param pMessage the JSON message.
+     * @param pCommand cleared, then filled with the fields of the message.
+     * @return false if the message is not plain JSON that this decoder reads; the command is
+     * then undefined.
+     */
+    public boolean decode(byte[] pMessage, Command pCommand) {
+        pCommand.clear();
+        mBytes = pMessage;
+        mPosition = 0;
+        try {
+            if (!readObject(pCommand)) {
+                return false;
+            }
+            skipWhitespace();
+            return mPosition == mBytes.length;
+        } catch (ArrayIndexOutOfBoundsException e) {
+            /* A truncated message. */
+            return false;
+        } finally {
+            mBytes = null;
+            mStringBytes = null;
+        }
+    }
+
+    /**
+     * Read the top level object into a command.
+     * @param pCommand
+     * @return false if the message is not readable.
+     */
+    private boolean readObject(Command pCommand) {
+        skipWhitespace();
+        if (mBytes[mPosition++] != '{') {
+            return false;
+        }
+        skipWhitespace();
+        if (mBytes[mPosition] == '}') {
+            mPosition++;
+            return true;
+        }
+        while (true) {
+            skipWhitespace();
+            if (!readString()) {
+                return false;
+            }
+            int field = mStringAscii ? sFields.indexOf(mStringBytes, mStringOffset,
+                    mStringLength, mStringHash) : -1;
+            skipWhitespace();
+            if (mBytes[mPosition++] != ':') {
+                return false;
+            }
+            skipWhitespace();
+            if (!readField(field, pCommand)) {
+                return false;
+            }
+            skipWhitespace();
+            byte next = mBytes[mPosition++];
+            if (next == '}') {
+                return true;
+            }
+            if (next != ',') {
+                return false;
+            }
+        }
+    }
+
+    /**
+     * Read the value of a field into a command.
+     * @param pField the index of the field, or -1 for an unknown field.
+     * @param pCommand
+     * @return false if the value is not readable, or not of the type of the field.
+     */
+    private boolean readField(int pField, Command pCommand) {
+        if (pField < 0) {
+            return skipValue(0);
+        }
+        if (mBytes[mPosition] == 'n') {
+            /* null resets the field, except the number, like Gson does. */
+            if (!skipLiteral("null")) {
+                return false;
+            }
+            if (pField == DOUBLE_VALUE) {
+                return true;
+            }
+            mStringBytes = null;
+        } else if (pField == DOUBLE_VALUE) {
+            if (!readNumber()) {
+                return false;
+            }
+            pCommand.setDoubleValue(mNumber);
+            return true;
+        } else if (!readString()) {
+            return false;
+        }
+        switch (pField) {
+            case PERIPHERAL_IO:
+                pCommand.setPeripheralIO(lookUp(sPeripheralIONames, sPeripheralIOs));
+                break;
+            case ACTION:
+                pCommand.setAction(lookUp(sActionNames, sActions));
+                break;
+            case NAME:
+                pCommand.setName(internString());
+                break;
+            case PROPERTY:
+                pCommand.setProperty(lookUp(sPropertyNames, sProperties));
+                break;
+            case VALUE:
+                pCommand.setValue(lookUp(sValueNames, sValues));
+                break;
+            case ANDROID_THINGS_BOARD:
+                pCommand.setAndroidThingsBoard(newString());
+                break;
+            case DIRECTION:
+                pCommand.setDirection(lookUp(sDirectionNames, sDirections));
+                break;
+            case LABEL:
+                pCommand.setLabel(newString());
+                break;
+            case REQUEST_ID:
+                pCommand.setRequestId(newString());
+                break;
+            case CLIENT_ID:
+                pCommand.setClientId(newString());
+                break;
+            default:
+                break;
+        }
+        return true;
+    }
+
+    /**
+     * The enum value named by the last string read.
+     * @param pNames
+     * @param pValues
+     * @return the value, or null if the name is not one of them or the value was null.
+     */
+    private <E> E lookUp(PerfectHash pNames, E[] pValues) {
+        if (mStringBytes == null || !mStringAscii) {
+            return null;
+        }
+        int index = pNames.indexOf(mStringBytes, mStringOffset, mStringLength, mStringHash);
+        return index < 0 ? null : pValues[index];
+    }
+
+    /**
+     * The last string read, as a registered pin name if it is one.
+     * @return the string, or null if the value was null.
+     */
+    private String internString() {
+        if (mStringBytes != null && mStringAscii) {
+            String name = PinRegistry.internName(mStringBytes, mStringOffset, mStringLength,
+                    mStringHash);
+            if (name != null) {
+                return name;
+            }
+        }
+        return newString();
+    }
+
+    /**
+     * The last string read, as a new string.
+     * @return the string, or null if the value was null.
+     */
+    private String newString() {
+        if (mStringBytes == null) {
+            return null;
+        }
+        return new String(mStringBytes, mStringOffset, mStringLength, UTF_8);
+    }
+
+    /**
+     * Read a string, unescaping it into the scratch buffer if needed.
+     * @return false if there is no well formed string at the position.
+     */
+    private boolean readString() {
+        byte[] bytes = mBytes;
+        if (bytes[mPosition] != '"') {
+            return false;
+        }
+        int start = ++mPosition;
+        int hash = 0;
+        boolean ascii = true;
+        int position = start;
+        while (true) {
+            byte b = bytes[position];
+            if (b == '"') {
+                mStringBytes = bytes;
+                mStringOffset = start;
+                mStringLength = position - start;
+                mStringHash = hash;
+                mStringAscii = ascii;
+                mPosition = position + 1;
+                return true;
+            }
+            if (b == '\\') {
+                mPosition = position;
+                return readEscapedString(start, hash, ascii);
+            }
+            if (b >= 0 && b < 0x20) {
+                return false;
+            }
+            ascii &= b >= 0;
+            hash = 31 * hash + b;
+            position++;
+        }
+    }
+
+    /**
+     * Read the rest of a string that has escapes into the scratch buffer.
+     * @param pStart the start of the string.
+     * @param pHash the hash of the string so far.
+     * @param pAscii whether the string is all ASCII so far.
+     * @return false if the string is not well formed.
+     */
+    private boolean readEscapedString(int pStart, int pHash, boolean pAscii) {
+        byte[] bytes = mBytes;
+        int length = mPosition - pStart;
+        ensureScratch(length);
+        System.arraycopy(bytes, pStart, mScratch, 0, length);
+        int hash = pHash;
+        boolean ascii = pAscii;
+        while (true) {
+            byte b = bytes[mPosition++];
+            if (b == '"') {
+                break;
+            }
+            if (b >= 0 && b < 0x20) {
+                return false;
+            }
+            if (b != '\\') {
+                ensureScratch(length + 1);
+                mScratch[length++] = b;
+                ascii &= b >= 0;
+                hash = 31 * hash + b;
+                continue;
+            }
+            int c;
+            switch (bytes[mPosition++]) {
+                case '"':
+                    c = '"';
+                    break;
+                case '\\':
+                    c = '\\';
+                    break;
+                case '/':
+                    c = '/';
+                    break;
+                case 'b':
+                    c = '\b';
+                    break;
+                case 'f':
+                    c = '\f';
+                    break;
+                case 'n':
+                    c = '\n';
+                    break;
+                case 'r':
+                    c = '\r';
+                    break;
+                case 't':
+                    c = '\t';
+                    break;
+                case 'u':
+                    c = readHex();
+                    if (c < 0) {
+                        return false;
+                    }
+                    if (Character.isHighSurrogate((char) c) && bytes[mPosition] == '\\'
+                            && bytes[mPosition + 1] == 'u') {
+                        mPosition += 2;
+                        int low = readHex();
+                        if (low < 0 || !Character.isLowSurrogate((char) low)) {
+                            return false;
+                        }
+                        c = Character.toCodePoint((char) c, (char) low);
+                    } else if (Character.isSurrogate((char) c)) {
+                        /* A lone surrogate has no UTF-8 form, Gson keeps it as is. */
+                        return false;
+                    }
+                    break;
+                default:
+                    return false;
+            }
+            ensureScratch(length + 4);
+            if (c < 0x80) {
+                mScratch[length++] = (byte) c;
+                hash = 31 * hash + c;
+            } else {
+                length = appendUtf8(c, length);
+                ascii = false;
+            }
+        }
+        mStringBytes = mScratch;
+        mStringOffset = 0;
+        mStringLength = length;
+        mStringHash = hash;
+        mStringAscii = ascii;
+        return true;
+    }
+
+    /**
+     * Read the four hex digits of a unicode escape.
+     * @return the code unit, or -1 if they are not hex digits.
+     */
+    private int readHex() {
+        int value = 0;
+        for (int i = 0; i < 4; i++) {
+            int digit = Character.digit(mBytes[mPosition++], 16);
+            if (digit < 0) {
+                return -1;
+            }
+            value = (value << 4) | digit;
+        }
+        return value;
+    }
+
+    /**
+     * Append a non ASCII code point to the scratch buffer in UTF-8.
+     * @param pCodePoint
+     * @param pLength the length of the scratch buffer, with room for 4 more bytes.
+     * @return the new length.
+     */
+    private int appendUtf8(int pCodePoint, int pLength) {
+        byte[] scratch = mScratch;
+        if (pCodePoint < 0x800) {
+            scratch[pLength++] = (byte) (0xc0 | (pCodePoint >> 6));
+        } else {
+            if (pCodePoint < 0x10000) {
+                scratch[pLength++] = (byte) (0xe0 | (pCodePoint >> 12));
+            } else {
+                scratch[pLength++] = (byte) (0xf0 | (pCodePoint >> 18));
+                scratch[pLength++] = (byte) (0x80 | ((pCodePoint >> 12) & 0x3f));
+            }
+            scratch[pLength++] = (byte) (0x80 | ((pCodePoint >> 6) & 0x3f));
+        }
+        scratch[pLength++] = (byte) (0x80 | (pCodePoint & 0x3f));
+        return pLength;
+    }
+
+    /**
+     * Make room in the scratch buffer.
+     * @param pLength the length needed.
+     */
+    private void ensureScratch(int pLength) {
+        if (pLength > mScratch.length) {
+            mScratch = Arrays.copyOf(mScratch, Math.max(pLength, mScratch.length * 2));
+        }
+    }
+
+    /**
+     * Read a number. The common numbers are computed in place, exactly as
+     * {@link Double#parseDouble(String)} would; the others are handed to it.
+     * @return false if there is no number at the position.
+     */
+    private boolean readNumber() {
+        byte[] bytes = mBytes;
+        int start = mPosition;
+        boolean negative = bytes[mPosition] == '-';
+        if (negative) {
+            mPosition++;
+        }
+        long mantissa = 0;
+        int scale = 0;
+        int integerStart = mPosition;
+        while (isDigit(bytes[mPosition])) {
+            mantissa = accumulate(mantissa, bytes[mPosition++]);
+        }
+        if (mPosition == integerStart) {
+            return false;
+        }
+        if (bytes[mPosition] == '.') {
+            mPosition++;
+            int fractionStart = mPosition;
+            while (isDigit(bytes[mPosition])) {
+                mantissa = accumulate(mantissa, bytes[mPosition++]);
+                scale--;
+            }
+            if (mPosition == fractionStart) {
+                return false;
+            }
+        }
+        if (bytes[mPosition] == 'e' || bytes[mPosition] == 'E') {
+            mPosition++;
+            boolean negativeExponent = bytes[mPosition] == '-';
+            if (negativeExponent || bytes[mPosition] == '+') {
+                mPosition++;
+            }
+            int exponentStart = mPosition;
+            int exponent = 0;
+            while (isDigit(bytes[mPosition])) {
+                if (exponent < 1000) {
+                    exponent = exponent * 10 + bytes[mPosition] - '0';
+                }
+                mPosition++;
+            }
+            if (mPosition == exponentStart) {
+                return false;
+            }
+            scale += negativeExponent ? -exponent : exponent;
+        }
+        /* Exact when the mantissa and the power of ten are exact doubles (one rounding). */
+        if (mantissa < MAX_EXACT_MANTISSA && -scale < POWERS_OF_TEN.length
+                && scale < POWERS_OF_TEN.length) {
+            mNumber = scale < 0 ? mantissa / POWERS_OF_TEN[-scale]
+                    : mantissa * POWERS_OF_TEN[scale];
+            if (negative) {
+                mNumber = -mNumber;
+            }
+        } else {
+            mNumber = Double.parseDouble(new String(bytes, start, mPosition - start, UTF_8));
+        }
+        return true;
+    }
+
+    /**
+     * Add a digit to a mantissa, saturating rather than overflowing.
+     * @param pMantissa
+     * @param pDigit the ASCII digit.
+     * @return the new mantissa, or {@link Long#MAX_VALUE} once too large to matter.
+     */
+    private static long accumulate(long pMantissa, byte pDigit) {
+        if (pMantissa >= MAX_EXACT_MANTISSA) {
+            return Long.MAX_VALUE;
+        }
+        return pMantissa * 10 + pDigit - '0';
+    }
+
+    /**
+     * Whether a byte is an ASCII digit.
+     * @param pByte
+     * @return true for 0 to 9.
+     */
+    private static boolean isDigit(byte pByte) {
+        return pByte >= '0' && pByte <= '9';
+    }
+
+    /**
+     * Skip the value of an unknown field.
+     * @param pDepth the nesting of the value.
+     * @return false if the value is not well formed.
+     */
+    private boolean skipValue(int pDepth) {
+        if (pDepth > MAX_DEPTH) {
+            return false;
+        }
+        byte b = mBytes[mPosition];
+        switch (b) {
+            case '"':
+                return readString();
+            case '{':
+            case '[':
+                return skipContainer(b == '{' ? '}' : ']', pDepth);
+            case 't':
+                return skipLiteral("true");
+            case 'f':
+                return skipLiteral("false");
+            case 'n':
+                return skipLiteral("null");
+            default:
+                return readNumber();
+        }
+    }
+
+    /**
+     * Skip an object or array.
+     * @param pClose the closing character.
+     * @param pDepth the nesting of the container.
+     * @return false if the container is not well formed.
+     */
+    private boolean skipContainer(char pClose, int pDepth) {
+        mPosition++;
+        skipWhitespace();
+        if (mBytes[mPosition] == pClose) {
+            mPosition++;
+            return true;
+        }
+        while (true) {
+            skipWhitespace();
+            if (pClose == '}') {
+                if (!readString()) {
+                    return false;
+                }
+                skipWhitespace();
+                if (mBytes[mPosition++] != ':') {
+                    return false;
+                }
+                skipWhitespace();
+            }
+            if (!skipValue(pDepth + 1)) {
+                return false;
+            }
+            skipWhitespace();
+            byte next = mBytes[mPosition++];
+            if (next == pClose) {
+                return true;
+            }
+            if (next != ',') {
+                return false;
+            }
+        }
+    }
+
+    /**
+     * Skip a literal.
+     * @param pLiteral
+     * @return false if the literal is not at the position.
+     */
+    private boolean skipLiteral(String pLiteral) {
+        for (int i = 0; i < pLiteral.length(); i++) {
+            if (mBytes[mPosition++] != pLiteral.charAt(i)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Skip the JSON whitespace, if any.
+     */
+    private void skipWhitespace() {
+        byte[] bytes = mBytes;
+        int position = mPosition;
+        while (position < bytes.length) {
+            byte b = bytes[position];
+            if (b != ' ' && b != '\n' && b != '\r' && b != '\t') {
+                break;
+            }
+            position++;
+        }
+        mPosition = position;
+    }
+}
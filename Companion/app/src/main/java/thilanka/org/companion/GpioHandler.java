@@ -5,21 +5,16 @@ import android.util.Log;
 import com.google.android.things.pio.Gpio;
 import com.google.android.things.pio.GpioCallback;
 import com.google.android.things.pio.PeripheralManager;
-import com.google.common.collect.BiMap;
-import com.google.common.collect.HashBiMap;
 
-import org.eclipse.paho.client.mqttv3.MqttClient;
-import org.eclipse.paho.client.mqttv3.MqttMessage;
 import org.thilanka.device.pin.PinDirection;
 import org.thilanka.device.pin.PinProperty;
 import org.thilanka.device.pin.PinValue;
 import org.thilanka.messaging.domain.Action;
-import org.thilanka.messaging.domain.Message;
 import org.thilanka.messaging.domain.Payload;
 import org.thilanka.messaging.domain.PeripheralIO;
 
 import java.io.IOException;
-import java.util.Set;
+import java.util.Locale;
 
 /**
  * The logic that handles GPIO related activities.
@@ -32,21 +27,48 @@ public class GpioHandler {
     /* The Log Tag*/
     private static final String TAG = GpioHandler.class.getSimpleName();
 
-    /* The MQTT Client*/
-    private final MqttClient mMqttClient;
+    /* The publisher of the outbound messages */
+    private final MessagePublisher mPublisher;
 
     /* The Android Things Peripheral Manager */
     private final PeripheralManager mPeripheralManager;
 
-    /* The input pins */
-    private BiMap<String, Gpio> mGpioInputPinsMap;
+    /* The interrupt driven input pins */
+    private final PinRegistry<Gpio> mGpioInputPins = new PinRegistry<>();
 
     /* The output pins */
-    private BiMap<String, Gpio> mGpioOutputPinsMap;
+    private final PinRegistry<Gpio> mGpioOutputPins = new PinRegistry<>();
 
     /* The static reference to the parent activity to run things in the foreground */
     private static AndroidThingsActivity sParent;
 
+    /* The label that requests an input pin to be sampled by the poller instead of interrupts. */
+    public static final String INPUT_MODE_POLL = "POLL";
+
+    /* The label that requests the pulses on an input pin to be counted instead of published. */
+    public static final String INPUT_MODE_COUNTER = "COUNTER";
+
+    /* The label that pairs an input pin with a second one ({@code b=<pin>}) as an encoder. */
+    public static final String INPUT_MODE_QUADRATURE = "QUADRATURE";
+
+    /* The poller that samples the input pins which do not use edge interrupts. */
+    private final GpioPoller mGpioPoller;
+
+    /* The counter of the pulses on the input pins in counter mode. */
+    private final PulseCounter mPulseCounter;
+
+    /* The decoder of the encoders wired to pairs of input pins. */
+    private final QuadratureDecoder mQuadratureDecoder;
+
+    /* The leases that decide whether the polled pins are read. */
+    private final SamplingLeases mLeases;
+
+    /* The breakers told about the failures of the input pins. */
+    private final CircuitBreakers mBreakers;
+
+    /* The rule engine evaluated on every input change, if any. */
+    private RuleEngine mRuleEngine;
+
     /* The callback that handles any input events to the GPIO pins that are registered. */
     private GpioCallback mGpioCallback = new GpioCallback() {
         @Override
@@ -55,43 +77,18 @@ public class GpioHandler {
             Log.d(TAG, "Receive GPIO change.");
             // Read the active low pin state
             try {
-                String pinName = mGpioInputPinsMap.inverse().get(pGpio);
-                boolean gpioValue = pGpio.getValue();
-                if (gpioValue) {
-                    // Pin is High
-                    Log.d(TAG, "Pin " + pinName + " is High/ON.");
-                } else {
-                    // Pin is LOW
-                    Log.d(TAG, "Pin " + pinName + " is Low/OFF.");
-                }
-
-                Payload payload = new Payload();
-                payload.setPeripheralIO(PeripheralIO.GPIO);
-                payload.setAction(Action.EVENT);
-                payload.setName(pinName);
-                payload.setProperty(PinProperty.PIN_STATE);
-                payload.setValue(gpioValue ? PinValue.HIGH : PinValue.LOW);
-                payload.setDirection(PinDirection.IN);
-
-                String messageStr = Message.constructMessage(payload);
-
-                MqttMessage message = new MqttMessage(messageStr.getBytes());
-                message.setQos(AndroidThingsActivity.QOS);
-                message.setRetained(false);
-
-                // Publish the message
-                Log.d(TAG,"Publishing to topic \"" + AndroidThingsActivity.getPublishTopic()
-                        + "\" qos " + AndroidThingsActivity.QOS);
-                try {
-                    mMqttClient.publish(AndroidThingsActivity.getPublishTopic(),
-                            message);
-                    Thread.sleep(AndroidThingsActivity.SLEEP_TIME);
-                } catch (Exception e) {
-                    Log.e(TAG, e.getLocalizedMessage());
+                String pinName = mGpioInputPins.nameOf(pGpio);
+                if (pinName == null) {
+                    /* Not registered yet, or closed after this edge was queued. */
+                    return true;
                 }
-
+                onInputChanged(pinName, pGpio.getValue());
             } catch (IOException e) {
                 Log.e(TAG, e.getLocalizedMessage());
+                String pinName = mGpioInputPins.nameOf(pGpio);
+                if (pinName != null) {
+                    mBreakers.onFailure(PeripheralIO.GPIO, pinName, e.getLocalizedMessage());
+                }
             }
 
             // Continue listening for more interrupts
@@ -102,25 +99,50 @@ public class GpioHandler {
         public void onGpioError(Gpio gpio, int error) {
             //super.onGpioError(gpio, error);
             Log.w(TAG, gpio + ": Error event " + error);
+            String pinName = mGpioInputPins.nameOf(gpio);
+            if (pinName != null) {
+                mBreakers.onFailure(PeripheralIO.GPIO, pinName, "GPIO error " + error);
+            }
+        }
+    };
+
+    /* Publishes the state changes detected by the poller. */
+    private GpioPoller.OnPinChangedListener mPolledPinListener = new GpioPoller
+            .OnPinChangedListener() {
+        @Override
+        public void onPinChanged(String pPinName, boolean pValue) {
+            onInputChanged(pPinName, pValue);
         }
     };
 
     /**
      * The Constructor.
      * @param pAndroidThingsActivity
-     * @param pMqttClient
+     * @param pPublisher
      * @param pPeripheralManagerService
+     * @param pLeases
+     * @param pBreakers
      */
-    public GpioHandler(AndroidThingsActivity pAndroidThingsActivity, MqttClient pMqttClient,
+    public GpioHandler(AndroidThingsActivity pAndroidThingsActivity, MessagePublisher pPublisher,
                        PeripheralManager
 
-            pPeripheralManagerService) {
-        mGpioInputPinsMap = HashBiMap.create();
-        mGpioOutputPinsMap = HashBiMap.create();
-        mMqttClient = pMqttClient;
+            pPeripheralManagerService, SamplingLeases pLeases, CircuitBreakers pBreakers) {
+        mPublisher = pPublisher;
+        mLeases = pLeases;
+        mBreakers = pBreakers;
         mPeripheralManager = pPeripheralManagerService;
         sParent = pAndroidThingsActivity;
-        Log.d(TAG, "Available GPIO: " + mPeripheralManager.getGpioList());
+        mGpioPoller = new GpioPoller(mPolledPinListener);
+        mPulseCounter = new PulseCounter(pPublisher);
+        mQuadratureDecoder = new QuadratureDecoder(pPublisher);
+    }
+
+    /**
+     * Set the rule engine that reacts to the input changes on the device.
+     * @param pRuleEngine
+     */
+    public void setRuleEngine(RuleEngine pRuleEngine) {
+        mRuleEngine = pRuleEngine;
     }
 
     /**
@@ -134,14 +156,247 @@ public class GpioHandler {
         PinValue pinValue = pPayload.getValue();
         Log.d(TAG, "Received a Pin Registration triggered from App Inventor.");
         if (pinDirection == PinDirection.IN) {
-            Log.d(TAG, "Registering pin " + pinName + " as an input.");
-            Gpio inputPin = openInputPin(pinName);
-            mGpioInputPinsMap.put(pinName, inputPin);
+            LabelOptions options = LabelOptions.parse(pPayload.getLabel());
+            synchronized (mGpioInputPins.lockFor(pinName)) {
+                if (options.has(INPUT_MODE_POLL)) {
+                    Log.d(TAG, "Registering pin " + pinName + " as a polled input.");
+                    if (pPayload.getDoubleValue() > 0) {
+                        mGpioPoller.setPollRate(pPayload.getDoubleValue());
+                    }
+                    registerPolledPin(pinName);
+                    return;
+                }
+                if (options.has(INPUT_MODE_COUNTER)) {
+                    Log.d(TAG, "Registering pin " + pinName + " as a pulse counter.");
+                    registerCounterPin(pinName, options);
+                    return;
+                }
+                if (options.has(INPUT_MODE_QUADRATURE)) {
+                    Log.d(TAG, "Registering pin " + pinName + " as a quadrature encoder.");
+                    registerQuadraturePins(pinName, options);
+                    return;
+                }
+                Log.d(TAG, "Registering pin " + pinName + " as an input.");
+                mGpioPoller.unregister(pinName);
+                mPulseCounter.unregister(pinName);
+                mQuadratureDecoder.unregister(pinName);
+                Gpio inputPin = openInputPin(pinName);
+                if (inputPin != null) {
+                    mGpioInputPins.put(pinName, inputPin);
+                }
+            }
         } else {
             Log.d(TAG, "The pin " + pinName + " is an output pin. Nothing to do here.");
         }
     }
 
+    /**
+     * Open the pin by the given name as an input without edge interrupts and hand it over to
+     * the poller.
+     * @param pPinName
+     * @throws IOException if the pin could not be set up, in which case it is closed.
+     */
+    private void registerPolledPin(String pPinName) throws IOException {
+        closeInputPin(pPinName);
+        mPulseCounter.unregister(pPinName);
+        mQuadratureDecoder.unregister(pPinName);
+        Gpio gpioPin = mPeripheralManager.openGpio(pPinName);
+        try {
+            gpioPin.setDirection(Gpio.DIRECTION_IN);
+            gpioPin.setActiveType(Gpio.ACTIVE_HIGH);
+            gpioPin.setEdgeTriggerType(Gpio.EDGE_NONE);
+            pollPin(pPinName, gpioPin);
+        } catch (IOException e) {
+            closeQuietly(pPinName, gpioPin);
+            throw e;
+        }
+    }
+
+    /**
+     * Hand an opened input pin over to the poller, which only reads it while the leases on the
+     * pin want it sampled.
+     * @param pPinName
+     * @param pGpio
+     * @throws IOException
+     */
+    private void pollPin(final String pPinName, Gpio pGpio) throws IOException {
+        mGpioPoller.register(pPinName, pGpio);
+        boolean wanted = mLeases.attach(pPinName, new SamplingLeases.Channel() {
+            @Override
+            public void resume() {
+                mGpioPoller.setSuspended(pPinName, false);
+            }
+
+            @Override
+            public void suspend() {
+                mGpioPoller.setSuspended(pPinName, true);
+            }
+        });
+        if (!wanted) {
+            mGpioPoller.setSuspended(pPinName, true);
+        }
+    }
+
+    /**
+     * Open the pin by the given name as an input and hand it over to the pulse counter. The
+     * label options may set the counted edges ({@code edge=RISING|FALLING|BOTH}, rising by
+     * default) and the report interval ({@code interval=<ms>}).
+     * @param pPinName
+     * @param pOptions
+     * @throws IOException if the pin could not be set up, in which case it is closed.
+     */
+    private void registerCounterPin(String pPinName, LabelOptions pOptions) throws IOException {
+        closeInputPin(pPinName);
+        mGpioPoller.unregister(pPinName);
+        mQuadratureDecoder.unregister(pPinName);
+        int edgeType;
+        switch (pOptions.getString("edge", "RISING").toUpperCase(Locale.US)) {
+            case "FALLING":
+                edgeType = Gpio.EDGE_FALLING;
+                break;
+            case "BOTH":
+                edgeType = Gpio.EDGE_BOTH;
+                break;
+            default:
+                edgeType = Gpio.EDGE_RISING;
+                break;
+        }
+        long interval;
+        try {
+            interval = pOptions.getLong("interval", PulseCounter.DEFAULT_REPORT_INTERVAL_MS);
+        } catch (NumberFormatException e) {
+            Log.w(TAG, "Bad counter interval, using the default: " + e.getLocalizedMessage());
+            interval = PulseCounter.DEFAULT_REPORT_INTERVAL_MS;
+        }
+        Gpio gpioPin = mPeripheralManager.openGpio(pPinName);
+        try {
+            gpioPin.setDirection(Gpio.DIRECTION_IN);
+            gpioPin.setActiveType(Gpio.ACTIVE_HIGH);
+            mPulseCounter.register(pPinName, gpioPin, edgeType, interval);
+        } catch (IOException e) {
+            closeQuietly(pPinName, gpioPin);
+            throw e;
+        }
+    }
+
+    /**
+     * Open the pin by the given name and the pin named by the {@code b=<pin>} label option as
+     * the A and B lines of a quadrature encoder, and hand them over to the decoder. The label
+     * options may set the report interval ({@code interval=<ms>}).
+     * @param pPinNameA
+     * @param pOptions
+     * @throws IOException if the pins could not be set up, in which case both are closed.
+     */
+    private void registerQuadraturePins(String pPinNameA, LabelOptions pOptions)
+            throws IOException {
+        String pinNameB = pOptions.getString("b", null);
+        if (pinNameB == null || pinNameB.equals(pPinNameA)) {
+            throw new IOException("The encoder on " + pPinNameA + " needs a second pin (b=<pin>)");
+        }
+        long interval;
+        try {
+            interval = pOptions.getLong("interval", QuadratureDecoder.DEFAULT_REPORT_INTERVAL_MS);
+        } catch (NumberFormatException e) {
+            Log.w(TAG, "Bad encoder interval, using the default: " + e.getLocalizedMessage());
+            interval = QuadratureDecoder.DEFAULT_REPORT_INTERVAL_MS;
+        }
+        for (String pinName : new String[]{pPinNameA, pinNameB}) {
+            closeInputPin(pinName);
+            mGpioPoller.unregister(pinName);
+            mPulseCounter.unregister(pinName);
+            mQuadratureDecoder.unregister(pinName);
+        }
+        Gpio gpioA = openEncoderPin(pPinNameA);
+        Gpio gpioB;
+        try {
+            gpioB = openEncoderPin(pinNameB);
+        } catch (IOException e) {
+            closeQuietly(pPinNameA, gpioA);
+            throw e;
+        }
+        try {
+            mQuadratureDecoder.register(pPinNameA, gpioA, pinNameB, gpioB, interval);
+        } catch (IOException e) {
+            closeQuietly(pPinNameA, gpioA);
+            closeQuietly(pinNameB, gpioB);
+            throw e;
+        }
+    }
+
+    /**
+     * Open one line of a quadrature encoder as an input.
+     * @param pPinName
+     * @return the opened pin.
+     * @throws IOException if the pin could not be set up, in which case it is closed.
+     */
+    private Gpio openEncoderPin(String pPinName) throws IOException {
+        Gpio gpioPin = mPeripheralManager.openGpio(pPinName);
+        try {
+            gpioPin.setDirection(Gpio.DIRECTION_IN);
+            gpioPin.setActiveType(Gpio.ACTIVE_HIGH);
+        } catch (IOException e) {
+            closeQuietly(pPinName, gpioPin);
+            throw e;
+        }
+        return gpioPin;
+    }
+
+    /**
+     * React to a state change of an input pin: run the local rules inline, then publish the
+     * event to App Inventor in the background.
+     * @param pPinName
+     * @param pValue
+     */
+    private void onInputChanged(String pPinName, boolean pValue) {
+        RuleEngine ruleEngine = mRuleEngine;
+        if (ruleEngine != null) {
+            ruleEngine.onPinChanged(pPinName, pValue);
+        }
+        publishPinState(pPinName, pValue);
+    }
+
+    /**
+     * Publish the state of an input pin to App Inventor.
+     * @param pPinName
+     * @param pValue
+     */
+    private void publishPinState(String pPinName, boolean pValue) {
+        if (pValue) {
+            // Pin is High
+            Log.d(TAG, "Pin " + pPinName + " is High/ON.");
+        } else {
+            // Pin is LOW
+            Log.d(TAG, "Pin " + pPinName + " is Low/OFF.");
+        }
+
+        Payload payload = new Payload();
+        payload.setPeripheralIO(PeripheralIO.GPIO);
+        payload.setAction(Action.EVENT);
+        payload.setName(pPinName);
+        payload.setProperty(PinProperty.PIN_STATE);
+        payload.setValue(pValue ? PinValue.HIGH : PinValue.LOW);
+        payload.setDirection(PinDirection.IN);
+
+        mPublisher.publishTelemetry(payload);
+    }
+
+    /**
+     * Record the state of an output pin in its retained state topic.
+     * @param pPinName
+     * @param pValue
+     */
+    private void publishOutputState(String pPinName, boolean pValue) {
+        Payload payload = new Payload();
+        payload.setPeripheralIO(PeripheralIO.GPIO);
+        payload.setAction(Action.EVENT);
+        payload.setName(pPinName);
+        payload.setProperty(PinProperty.PIN_STATE);
+        payload.setValue(pValue ? PinValue.HIGH : PinValue.LOW);
+        payload.setDirection(PinDirection.OUT);
+
+        mPublisher.publishState(payload);
+    }
+
     /**
      * Handle a message that needs to trigger an event on the GPIO pin.
      * @param pPayload
@@ -154,16 +409,21 @@ public class GpioHandler {
         PinValue pinValue = pPayload.getValue();
         // Create GPIO connection for the pin.
         if (pinDirection == PinDirection.OUT) {
-            Gpio gpioPin = openOutputPin(pinName);
+            Gpio gpioPin;
+            synchronized (mGpioOutputPins.lockFor(pinName)) {
+                gpioPin = openOutputPin(pinName);
+            }
 
             switch (pinValue) {
                 case HIGH:
                     Log.d(TAG, "Turning " + pinName + " ON.");
                     gpioPin.setValue(true);
+                    publishOutputState(pinName, true);
                     break;
                 case LOW:
                     Log.d(TAG, "Turning " + pinName + " OFF.");
                     gpioPin.setValue(false);
+                    publishOutputState(pinName, false);
                     break;
                 default:
                     Log.d(TAG, "Message not supported!");
@@ -174,30 +434,71 @@ public class GpioHandler {
         }
    }
 
+    /**
+     * Drive an output pin, opening it if it is not open yet. Unlike an EVENT from App Inventor,
+     * an already open pin is reused rather than reopened.
+     * @param pPinName
+     * @param pValue
+     * @throws IOException
+     */
+    public void setOutputPin(String pPinName, boolean pValue) throws IOException {
+        getOutputPin(pPinName).setValue(pValue);
+        publishOutputState(pPinName, pValue);
+    }
+
+    /**
+     * Invert the current state of an output pin, opening it (low) if it is not open yet.
+     * @param pPinName
+     * @throws IOException
+     */
+    public void toggleOutputPin(String pPinName) throws IOException {
+        Gpio gpioPin = getOutputPin(pPinName);
+        boolean value = !gpioPin.getValue();
+        gpioPin.setValue(value);
+        publishOutputState(pPinName, value);
+    }
+
+    /**
+     * Get the open output pin by the given name, or open it.
+     * @param pPinName
+     * @return the output pin.
+     * @throws IOException
+     */
+    private Gpio getOutputPin(String pPinName) throws IOException {
+        Gpio gpioPin = mGpioOutputPins.get(pPinName);
+        if (gpioPin == null) {
+            synchronized (mGpioOutputPins.lockFor(pPinName)) {
+                gpioPin = mGpioOutputPins.get(pPinName);
+                if (gpioPin == null) {
+                    gpioPin = createNewOutputPin(pPinName);
+                }
+            }
+        }
+        return gpioPin;
+    }
+
     /**
      * Close any open input and output GPIO pins.
      */
     public void closeOpenGpioPins() {
-        close(mGpioInputPinsMap);
-        close(mGpioOutputPinsMap);
+        mGpioPoller.close();
+        mPulseCounter.close();
+        mQuadratureDecoder.close();
+        close(mGpioInputPins);
+        close(mGpioOutputPins);
     }
 
     /**
-     * Close the given GPIO pins.
+     * Unregister and close the given GPIO pins.
      * @param pGpioPins
      */
-    private void close(BiMap<String, Gpio> pGpioPins) {
-        Set<Gpio> openGpioPins = pGpioPins.values();
-
-        for (Gpio pin : openGpioPins) {
-            if (pin != null) {
-                try {
-                    pin.close();
-                    mGpioOutputPinsMap.inverse().remove(pin);
-                    pin = null;
-                } catch (IOException e) {
-                    Log.w(TAG, "Unable to close GPIO " + pin.toString(), e);
-                }
+    private void close(PinRegistry<Gpio> pGpioPins) {
+        for (Gpio pin : pGpioPins.removeAll()) {
+            try {
+                pin.unregisterGpioCallback(mGpioCallback);
+                pin.close();
+            } catch (IOException e) {
+                Log.w(TAG, "Unable to close GPIO " + pin.toString(), e);
             }
         }
     }
@@ -226,38 +527,46 @@ public class GpioHandler {
     /**
      * Open the Input GPIO pin by the given name.
      * @param pPinName
-     * @return the GPIO pin that was just opened.
+     * @return the GPIO pin that was just opened, or null if it was handed over to the poller.
+     * @throws IOException
      */
-    private Gpio openInputPin(String pPinName) {
-        Gpio gpioPin;
-        if (mGpioInputPinsMap.containsKey(pPinName)) {
-            gpioPin = mGpioInputPinsMap.get(pPinName);
+    private Gpio openInputPin(String pPinName) throws IOException {
+        closeInputPin(pPinName);
+        Gpio gpioPin = createNewInputPin(pPinName);
+        Log.d(TAG, "Created a new GPIO pin object for " + pPinName);
+        return gpioPin;
+    }
+
+    /**
+     * Close the existing interrupt driven input pin by the given name, if any. Must hold the
+     * pin's registry lock.
+     * @param pPinName
+     */
+    private void closeInputPin(String pPinName) {
+        Gpio gpioPin = mGpioInputPins.remove(pPinName);
+        if (gpioPin != null) {
             try {
                 Log.d(TAG, "Closing existing pin " + pPinName + ".");
+                gpioPin.unregisterGpioCallback(mGpioCallback);
                 gpioPin.close();
-                mGpioInputPinsMap.remove(pPinName);
             } catch (IOException e) {
                 Log.e(TAG, e.getLocalizedMessage());
             }
         }
-        gpioPin = createNewInputPin(pPinName);
-        Log.d(TAG, "Created a new GPIO pin object for " + pPinName);
-        return gpioPin;
     }
 
     /**
-     * Open the Output GPIO pin by the given name.
+     * Open the Output GPIO pin by the given name. Must hold the pin's registry lock.
      * @param pPinName
      * @return the GPIO pin that was just opened.
+     * @throws IOException
      */
-    private Gpio openOutputPin(String pPinName) {
-        Gpio gpioPin;
-        if (mGpioOutputPinsMap.containsKey(pPinName)) {
-            gpioPin = mGpioOutputPinsMap.get(pPinName);
+    private Gpio openOutputPin(String pPinName) throws IOException {
+        Gpio gpioPin = mGpioOutputPins.remove(pPinName);
+        if (gpioPin != null) {
             try {
                 Log.d(TAG, "Closing existing pin " + pPinName + ".");
                 gpioPin.close();
-                mGpioOutputPinsMap.remove(pPinName);
             } catch (IOException e) {
                 Log.e(TAG, e.getLocalizedMessage());
             }
@@ -269,17 +578,25 @@ public class GpioHandler {
     /**
      * Create a new GPIO pin by the given name for input.
      * @param pPinName
-     * @return
+     * @return the pin, or null if it was handed over to the poller.
+     * @throws IOException if the pin could not be set up, in which case it is closed.
      */
-    private Gpio createNewInputPin(String pPinName) {
+    private Gpio createNewInputPin(final String pPinName) throws IOException {
+        Log.d(TAG, "Creating new pin " + pPinName);
+        final Gpio gpioPin = mPeripheralManager.openGpio(pPinName);
         try {
-            Log.d(TAG, "Creating new pin " + pPinName);
-            final Gpio gpioPin = mPeripheralManager.openGpio(pPinName);
             gpioPin.setDirection(Gpio.DIRECTION_IN);
             // High voltage is considered active
             gpioPin.setActiveType(Gpio.ACTIVE_HIGH);
             // Register for all state changes
-            gpioPin.setEdgeTriggerType(Gpio.EDGE_BOTH);
+            try {
+                gpioPin.setEdgeTriggerType(Gpio.EDGE_BOTH);
+            } catch (IOException e) {
+                Log.w(TAG, "Pin " + pPinName + " does not support edge interrupts, polling it " +
+                        "instead: " + e.getLocalizedMessage());
+                pollPin(pPinName, gpioPin);
+                return null;
+            }
 
             sParent.runOnUiThread(new Runnable() {
                 @Override
@@ -287,42 +604,87 @@ public class GpioHandler {
                     try {
                         gpioPin.registerGpioCallback(mGpioCallback);
                     } catch (IOException e) {
-                        e.printStackTrace();
+                        Log.e(TAG, "Unable to listen to " + pPinName + ": "
+                                + e.getLocalizedMessage());
+                        mBreakers.onFailure(PeripheralIO.GPIO, pPinName,
+                                e.getLocalizedMessage());
                     }
                 }
             });
             return gpioPin;
         } catch (IOException e) {
-            Log.e(TAG, e.getLocalizedMessage());
+            closeQuietly(pPinName, gpioPin);
+            throw e;
         }
-        return null;
     }
 
     /**
      * Create a new GPIO pin by the given name for output.
      * @param pPinName
-     * @return
+     * @return the pin.
+     * @throws IOException if the pin could not be set up, in which case it is closed.
      */
-    private Gpio createNewOutputPin(String pPinName) {
-        Gpio gpioPin = null;
+    private Gpio createNewOutputPin(String pPinName) throws IOException {
+        Gpio gpioPin = mPeripheralManager.openGpio(pPinName);
         try {
-            gpioPin = mPeripheralManager.openGpio(pPinName);
             gpioPin.setDirection(Gpio.DIRECTION_OUT_INITIALLY_LOW);
-            mGpioOutputPinsMap.put(pPinName, gpioPin);
         } catch (IOException e) {
-            Log.e(TAG, e.getLocalizedMessage());
+            closeQuietly(pPinName, gpioPin);
+            throw e;
         }
+        mGpioOutputPins.put(pPinName, gpioPin);
         return gpioPin;
     }
 
+    /**
+     * Close a pin that failed, ignoring the failures.
+     * @param pPinName
+     * @param pGpio
+     */
+    private static void closeQuietly(String pPinName, Gpio pGpio) {
+        try {
+            pGpio.close();
+        } catch (IOException e) {
+            Log.w(TAG, "Unable to close GPIO " + pPinName + ": " + e.getLocalizedMessage());
+        }
+    }
+
+    /**
+     * Reopen the handle of a pin after failures: an input or output pin is closed and opened
+     * again, a pin that is not open is only probed by opening and closing it.
+     * @param pPinName
+     * @throws IOException if the pin still cannot be opened.
+     */
+    public void reopen(String pPinName) throws IOException {
+        synchronized (mGpioInputPins.lockFor(pPinName)) {
+            if (mGpioInputPins.containsKey(pPinName)) {
+                Gpio inputPin = openInputPin(pPinName);
+                if (inputPin != null) {
+                    mGpioInputPins.put(pPinName, inputPin);
+                }
+                return;
+            }
+        }
+        synchronized (mGpioOutputPins.lockFor(pPinName)) {
+            if (mGpioOutputPins.containsKey(pPinName)) {
+                openOutputPin(pPinName);
+                mPublisher.getShadow().invalidate(pPinName);
+                return;
+            }
+        }
+        if (!mGpioPoller.isPolled(pPinName)) {
+            mPeripheralManager.openGpio(pPinName).close();
+        }
+    }
+
     public void registerGpioCallback() throws IOException {
-        for (Gpio inputGpio : mGpioInputPinsMap.values()){
+        for (Gpio inputGpio : mGpioInputPins.pins()){
             inputGpio.registerGpioCallback(mGpioCallback);
         }
     }
 
     public void unregisterGpioCallback() {
-        for (Gpio inputGpio : mGpioInputPinsMap.values()){
+        for (Gpio inputGpio : mGpioInputPins.pins()){
             inputGpio.unregisterGpioCallback(mGpioCallback);
         }
     }
@@ -0,0 +1,259 @@
+package thilanka.org.companion;
+
+import android.util.Log;
+
+import com.google.android.things.pio.Gpio;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Samples a set of GPIO input pins from a single scan thread, for lines that cannot (or should
+ * not) deliver edge interrupts. Each scan reads every registered pin once, compares it against
+ * the last known state and only reports the pins that changed, so the CPU cost per second is
+ * bounded by (number of pins x scan rate) no matter how noisy the lines are.
+ *
+ * @author Thilanka Munasinghe (thilankawillbe@gmail.com)
+ */
+public class GpioPoller {
+
+    /**
+     * Listener notified from the scan thread whenever a polled pin changes state.
+     */
+    public interface OnPinChangedListener {
+        void onPinChanged(String pPinName, boolean pValue);
+    }
+
+    /* The Log Tag*/
+    private static final String TAG = GpioPoller.class.getSimpleName();
+
+    /* The default scan rate, in Hz. */
+    public static final double DEFAULT_POLL_RATE_HZ = 50;
+
+    /* The fastest scan rate allowed, in Hz. */
+    private static final double MAX_POLL_RATE_HZ = 1000;
+
+    /* The slowest scan rate allowed, in Hz. */
+    private static final double MIN_POLL_RATE_HZ = 0.1;
+
+    /* Guards the pin slots and the state bitsets. */
+    private final Object mLock = new Object();
+
+    /* The names of the polled pins, indexed by slot. */
+    private final List<String> mPinNames = new ArrayList<>();
+
+    /* The polled pins, indexed by slot. */
+    private final List<Gpio> mPins = new ArrayList<>();
+
+    /* The last known state of each slot. */
+    private final BitSet mLastStates = new BitSet();
+
+    /* The slots that are not read for now. */
+    private final BitSet mSuspended = new BitSet();
+
+    /* The listener that receives the state changes. */
+    private final OnPinChangedListener mListener;
+
+    /* The time between two scans. */
+    private volatile long mPollIntervalNanos;
+
+    /* The scan thread, or null when nothing is being polled. */
+    private Thread mScanThread;
+
+    /**
+     * The Constructor.
+     * @param pListener
+     */
+    public GpioPoller(OnPinChangedListener pListener) {
+        mListener = pListener;
+        setPollRate(DEFAULT_POLL_RATE_HZ);
+    }
+
+    /**
+     * Set the scan rate shared by all the polled pins.
+     * @param pRateHz the number of scans per second. Values out of range are clamped.
+     */
+    public void setPollRate(double pRateHz) {
+        double rate = Math.max(MIN_POLL_RATE_HZ, Math.min(MAX_POLL_RATE_HZ, pRateHz));
+        mPollIntervalNanos = (long) (TimeUnit.SECONDS.toNanos(1) / rate);
+        Log.d(TAG, "Polling GPIO inputs at " + rate + " Hz.");
+    }
+
+    /**
+     * Start polling the given (already opened) input pin. An existing registration by the same
+     * name is closed and replaced.
+     * @param pPinName
+     * @param pGpio
+     * @throws IOException if the initial state could not be read.
+     */
+    public void register(String pPinName, Gpio pGpio) throws IOException {
+        boolean initialState = pGpio.getValue();
+        synchronized (mLock) {
+            unregisterLocked(pPinName);
+            int slot = mPins.size();
+            mPinNames.add(pPinName);
+            mPins.add(pGpio);
+            mLastStates.set(slot, initialState);
+            mSuspended.clear(slot);
+            if (mScanThread == null) {
+                mScanThread = new Thread(mScanLoop, TAG);
+                mScanThread.start();
+            }
+        }
+        Log.d(TAG, "Polling pin " + pPinName + ", initial state = " + initialState);
+    }
+
+    /**
+     * Stop polling and close the pin by the given name.
+     * @param pPinName
+     * @return true if the pin was being polled.
+     */
+    public boolean unregister(String pPinName) {
+        synchronized (mLock) {
+            return unregisterLocked(pPinName);
+        }
+    }
+
+    /**
+     * Stop or restart reading a polled pin, which stays open. A change while suspended is
+     * reported by the first scan after the pin is resumed. The scan thread sleeps while every
+     * pin is suspended.
+     * @param pPinName
+     * @param pSuspended
+     * @return true if the pin is being polled.
+     */
+    public boolean setSuspended(String pPinName, boolean pSuspended) {
+        synchronized (mLock) {
+            int slot = mPinNames.indexOf(pPinName);
+            if (slot < 0) {
+                return false;
+            }
+            mSuspended.set(slot, pSuspended);
+            mLock.notifyAll();
+            return true;
+        }
+    }
+
+    /**
+     * Whether the pin by the given name is being polled.
+     * @param pPinName
+     * @return true if the pin is registered with this poller.
+     */
+    public boolean isPolled(String pPinName) {
+        synchronized (mLock) {
+            return mPinNames.contains(pPinName);
+        }
+    }
+
+    /**
+     * Stop the scan thread and close all the polled pins.
+     */
+    public void close() {
+        synchronized (mLock) {
+            while (!mPins.isEmpty()) {
+                unregisterLocked(mPinNames.get(mPinNames.size() - 1));
+            }
+        }
+    }
+
+    /**
+     * Remove a pin while holding the lock, compacting the slots so a scan stays a tight loop.
+     * @param pPinName
+     * @return true if the pin was being polled.
+     */
+    private boolean unregisterLocked(String pPinName) {
+        int slot = mPinNames.indexOf(pPinName);
+        if (slot < 0) {
+            return false;
+        }
+        Gpio gpio = mPins.get(slot);
+        int last = mPins.size() - 1;
+        /* Move the last slot into the freed one. */
+        mPinNames.set(slot, mPinNames.get(last));
+        mPins.set(slot, mPins.get(last));
+        mLastStates.set(slot, mLastStates.get(last));
+        mSuspended.set(slot, mSuspended.get(last));
+        mPinNames.remove(last);
+        mPins.remove(last);
+        mLastStates.clear(last);
+        mSuspended.clear(last);
+        try {
+            gpio.close();
+        } catch (IOException e) {
+            Log.w(TAG, "Unable to close GPIO " + pPinName, e);
+        }
+        if (mPins.isEmpty() && mScanThread != null) {
+            mScanThread.interrupt();
+            mScanThread = null;
+        }
+        return true;
+    }
+
+    /**
+     * Scan every pin once and collect the ones that changed.
+     * @param pChangedNames receives the names of the changed pins.
+     * @param pChangedValues receives the new states, indexed like pChangedNames.
+     */
+    private void scan(List<String> pChangedNames, BitSet pChangedValues) {
+        synchronized (mLock) {
+            while (mSuspended.cardinality() == mPins.size() && !mPins.isEmpty()) {
+                try {
+                    mLock.wait();
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    return;
+                }
+            }
+            for (int slot = 0; slot < mPins.size(); slot++) {
+                if (mSuspended.get(slot)) {
+                    continue;
+                }
+                boolean value;
+                try {
+                    value = mPins.get(slot).getValue();
+                } catch (IOException e) {
+                    Log.e(TAG, "Unable to read " + mPinNames.get(slot) + ": " + e
+                            .getLocalizedMessage());
+                    continue;
+                }
+                if (value != mLastStates.get(slot)) {
+                    mLastStates.set(slot, value);
+                    pChangedValues.set(pChangedNames.size(), value);
+                    pChangedNames.add(mPinNames.get(slot));
+                }
+            }
+        }
+    }
+
+    /* The scan loop. Missed deadlines are skipped rather than caught up, to keep the rate fixed. */
+    private final Runnable mScanLoop = new Runnable() {
+        @Override
+        public void run() {
+            List<String> changedNames = new ArrayList<>();
+            BitSet changedValues = new BitSet();
+            long deadline = System.nanoTime();
+            while (!Thread.currentThread().isInterrupted()) {
+                scan(changedNames, changedValues);
+                /* Notify outside the lock, so a slow listener never blocks registrations. */
+                for (int i = 0; i < changedNames.size(); i++) {
+                    mListener.onPinChanged(changedNames.get(i), changedValues.get(i));
+                }
+                changedNames.clear();
+                changedValues.clear();
+
+                long interval = mPollIntervalNanos;
+                deadline += interval;
+                long now = System.nanoTime();
+                if (deadline < now) {
+                    deadline = now + interval - ((now - deadline) % interval);
+                }
+                LockSupport.parkNanos(deadline - now);
+            }
+            Log.d(TAG, "Scan thread stopped.");
+        }
+    };
+}
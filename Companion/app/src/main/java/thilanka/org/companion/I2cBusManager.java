@@ -0,0 +1,401 @@
+package thilanka.org.companion;
+
+import android.util.Log;
+
+import org.thilanka.messaging.domain.Payload;
+
+import java.io.IOException;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+/**
+ * Owns the I2C buses and serializes every transaction on them. Each bus has a single thread that
+ * opens, uses and closes its devices, so the sensor handlers never fight over a bus, and a
+ * device opened by several users at once is only opened once.
+ *
+ * The users get a {@link Session} on a device, which is reference counted: the device is opened
+ * before the first transaction of its first session and closed once its last session is closed.
+ * The reads of the same register block of a device that arrive within {@link #MERGE_WINDOW_MS}
+ * of each other are merged into one read, whose result they all get. The utilization of each
+ * bus is published on the i2c sub-topic of the publish topic every 10 seconds as
+ * {@code busy_pct=..;transactions=..;merged=..;depth=..;devices=..}.
+ *
+ * @author Thilanka Munasinghe (thilankawillbe@gmail.com)
+ */
+public class I2cBusManager {
+
+    /* The Log Tag*/
+    private static final String TAG = I2cBusManager.class.getSimpleName();
+
+    /* The sub-topic the bus utilization is published on. */
+    public static final String I2C_SERVICE = "i2c";
+
+    /* How long a read waits for the same reads to merge with. */
+    public static final long MERGE_WINDOW_MS = 5;
+
+    /* How long a caller waits for a transaction. */
+    private static final long TRANSACTION_TIMEOUT_MS = 2000;
+
+    /* The period of the utilization reports. */
+    private static final long STATS_PERIOD_MS = 10000;
+
+    /**
+     * Opens a device on a bus.
+     * @param <D> the driver of the device.
+     */
+    public interface DeviceFactory<D extends AutoCloseable> {
+        D open(String pBus, int pAddress) throws IOException;
+    }
+
+    /**
+     * A transaction with a device, run on the thread of its bus.
+     * @param <D> the driver of the device.
+     * @param <T> the result.
+     */
+    public interface Transaction<D, T> {
+        T run(D pDevice) throws IOException;
+    }
+
+    /* The publisher of the bus utilization */
+    private final MessagePublisher mPublisher;
+
+    /* The buses, by name. */
+    private final Map<String, Bus> mBuses = new HashMap<>();
+
+    /**
+     * The Constructor.
+     * @param pPublisher
+     */
+    public I2cBusManager(MessagePublisher pPublisher) {
+        mPublisher = pPublisher;
+    }
+
+    /**
+     * Open a session on a device, sharing the device with the other sessions on it.
+     * @param pBus
+     * @param pAddress
+     * @param pFactory opens the device. All the sessions on a device must use the same one.
+     * @return the session.
+     */
+    public synchronized <D extends AutoCloseable> Session<D> open(String pBus, int pAddress,
+                                                                DeviceFactory<D> pFactory) {
+        Bus bus = mBuses.get(pBus);
+        if (bus == null) {
+            bus = new Bus(pBus);
+            mBuses.put(pBus, bus);
+        }
+        return new Session<>(bus, bus.acquire(pAddress, pFactory));
+    }
+
+    /**
+     * Close all the devices and stop the buses, once their queued transactions are over.
+     */
+    public synchronized void shutdown() {
+        for (Bus bus : mBuses.values()) {
+            bus.shutdown();
+        }
+        mBuses.clear();
+    }
+
+    /**
+     * Wait for the result of a transaction. A transaction that times out is not cancelled, as
+     * a merged read is shared with other callers: only this caller gives up on it.
+     * @param pFuture
+     * @return the result.
+     * @throws IOException if the transaction failed, was cancelled or timed out.
+     */
+    public static <T> T await(Future<T> pFuture) throws IOException {
+        try {
+            return pFuture.get(TRANSACTION_TIMEOUT_MS, TimeUnit.MILLISECONDS);
+        } catch (ExecutionException e) {
+            if (e.getCause() instanceof IOException) {
+                throw (IOException) e.getCause();
+            }
+            throw new IOException(e.getCause());
+        } catch (TimeoutException e) {
+            throw new IOException("I2C transaction timed out");
+        } catch (CancellationException e) {
+            throw new IOException("I2C transaction cancelled");
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException("Interrupted while waiting for the I2C bus");
+        }
+    }
+
+    /**
+     * A user of a device. Not to be used once closed.
+     * @param <D> the driver of the device.
+     */
+    public static class Session<D extends AutoCloseable> implements AutoCloseable {
+        private final Bus mBus;
+        private final Device mDevice;
+        private boolean mClosed;
+
+        private Session(Bus pBus, Device pDevice) {
+            mBus = pBus;
+            mDevice = pDevice;
+        }
+
+        /**
+         * Queue a transaction with the device.
+         * @param pTransaction
+         * @return the result to come.
+         */
+        public <T> Future<T> execute(Transaction<D, T> pTransaction) {
+            FutureTask<T> task = new FutureTask<>(mBus.callable(mDevice, pTransaction));
+            mBus.submit(task, 0);
+            return task;
+        }
+
+        /**
+         * Queue a read of a register block of the device, or join the same read if one is
+         * already waiting.
+         * @param pBlock identifies the register block, the same block always being read by the
+         *               same transaction.
+         * @param pTransaction
+         * @return the result to come.
+         */
+        public <T> Future<T> read(String pBlock, Transaction<D, T> pTransaction) {
+            return mBus.read(mDevice, pBlock, pTransaction);
+        }
+
+        /**
+         * Release the device, which is closed if no other session uses it.
+         */
+        @Override
+        public void close() {
+            synchronized (mBus) {
+                if (mClosed) {
+                    return;
+                }
+                mClosed = true;
+            }
+            mBus.release(mDevice);
+        }
+    }
+
+    /**
+     * A device of a bus, opened by the first transaction of its sessions. The session count is
+     * guarded by the bus, the driver only used on the thread of the bus.
+     */
+    private static class Device {
+        private final int mAddress;
+        private final DeviceFactory<?> mFactory;
+        private int mSessions;
+        private AutoCloseable mDriver;
+
+        Device(int pAddress, DeviceFactory<?> pFactory) {
+            mAddress = pAddress;
+            mFactory = pFactory;
+        }
+    }
+
+    /**
+     * A bus, its devices and the thread of its transactions.
+     */
+    private class Bus {
+        private final String mName;
+        private final ScheduledExecutorService mWorker = Executors
+                .newSingleThreadScheduledExecutor();
+        private final Map<Integer, Device> mDevices = new HashMap<>();
+
+        /* The reads waiting to run, by device address and register block. */
+        private final Map<String, FutureTask<?>> mReads = new HashMap<>();
+
+        /* Set on the thread of the bus once its devices are closed for good. */
+        private boolean mClosed;
+
+        /* The statistics, reset by every report but the depth. */
+        private int mDepth;
+        private long mTransactions;
+        private long mMerged;
+        private long mBusyNanos;
+        private long mReportedAt = System.nanoTime();
+
+        Bus(String pName) {
+            mName = pName;
+            mWorker.scheduleAtFixedRate(new Runnable() {
+                @Override
+                public void run() {
+                    publishStats();
+                }
+            }, STATS_PERIOD_MS, STATS_PERIOD_MS, TimeUnit.MILLISECONDS);
+        }
+
+        private synchronized Device acquire(int pAddress, DeviceFactory<?> pFactory) {
+            Device device = mDevices.get(pAddress);
+            /* A device whose last session is gone is closed by a task already queued. */
+            if (device == null || device.mSessions == 0 && device.mFactory != pFactory) {
+                device = new Device(pAddress, pFactory);
+                mDevices.put(pAddress, device);
+            } else if (device.mFactory != pFactory) {
+                throw new IllegalStateException("The I2C device " + mName + ":0x"
+                        + Integer.toHexString(pAddress) + " is in use by another driver");
+            }
+            device.mSessions++;
+            return device;
+        }
+
+        private void release(final Device pDevice) {
+            synchronized (this) {
+                if (--pDevice.mSessions > 0) {
+                    return;
+                }
+            }
+            submit(new Runnable() {
+                @Override
+                public void run() {
+                    synchronized (Bus.this) {
+                        if (pDevice.mSessions > 0) {
+                            return;
+                        }
+                        if (mDevices.get(pDevice.mAddress) == pDevice) {
+                            mDevices.remove(pDevice.mAddress);
+                        }
+                    }
+                    closeDriver(pDevice);
+                }
+            }, 0);
+        }
+
+        private <T> Future<T> read(Device pDevice, String pBlock,
+                                   Transaction<?, T> pTransaction) {
+            final String key = pDevice.mAddress + "/" + pBlock;
+            final Callable<T> callable = callable(pDevice, pTransaction);
+            FutureTask<T> task;
+            synchronized (this) {
+                @SuppressWarnings("unchecked")
+                FutureTask<T> waiting = (FutureTask<T>) mReads.get(key);
+                if (waiting != null) {
+                    mMerged++;
+                    return waiting;
+                }
+                task = new FutureTask<>(new Callable<T>() {
+                    @Override
+                    public T call() throws Exception {
+                        synchronized (Bus.this) {
+                            mReads.remove(key);
+                        }
+                        return callable.call();
+                    }
+                });
+                mReads.put(key, task);
+            }
+            submit(task, MERGE_WINDOW_MS);
+            return task;
+        }
+
+        /**
+         * Wrap a transaction so that it opens the device if needed and is measured.
+         */
+        private <D, T> Callable<T> callable(final Device pDevice,
+                                            final Transaction<D, T> pTransaction) {
+            return new Callable<T>() {
+                @Override
+                @SuppressWarnings("unchecked")
+                public T call() throws Exception {
+                    if (mClosed) {
+                        throw new IOException("The I2C bus " + mName + " is closed");
+                    }
+                    if (pDevice.mDriver == null) {
+                        pDevice.mDriver = pDevice.mFactory.open(mName, pDevice.mAddress);
+                    }
+                    long start = System.nanoTime();
+                    try {
+                        return pTransaction.run((D) pDevice.mDriver);
+                    } finally {
+                        long busy = System.nanoTime() - start;
+                        synchronized (Bus.this) {
+                            mTransactions++;
+                            mBusyNanos += busy;
+                        }
+                    }
+                }
+            };
+        }
+
+        private void submit(final Runnable pTask, long pDelayMs) {
+            synchronized (this) {
+                mDepth++;
+            }
+            mWorker.schedule(new Runnable() {
+                @Override
+                public void run() {
+                    synchronized (Bus.this) {
+                        mDepth--;
+                    }
+                    pTask.run();
+                }
+            }, pDelayMs, TimeUnit.MILLISECONDS);
+        }
+
+        private void closeDriver(Device pDevice) {
+            if (pDevice.mDriver == null) {
+                return;
+            }
+            try {
+                pDevice.mDriver.close();
+            } catch (Exception e) {
+                Log.w(TAG, "Unable to close the I2C device " + mName + ":0x"
+                        + Integer.toHexString(pDevice.mAddress) + ": " + e.getLocalizedMessage());
+            }
+            pDevice.mDriver = null;
+        }
+
+        /**
+         * Publish the utilization of the bus since the last report, unless it was idle.
+         */
+        private void publishStats() {
+            String stats;
+            synchronized (this) {
+                long now = System.nanoTime();
+                long elapsed = now - mReportedAt;
+                if (mTransactions == 0 && mMerged == 0) {
+                    mReportedAt = now;
+                    return;
+                }
+                stats = "busy_pct=" + Math.round(mBusyNanos * 1000.0 / elapsed) / 10.0
+                        + ";transactions=" + mTransactions + ";merged=" + mMerged + ";depth="
+                        + mDepth + ";devices=" + mDevices.size();
+                mTransactions = 0;
+                mMerged = 0;
+                mBusyNanos = 0;
+                mReportedAt = now;
+            }
+            Payload payload = new Payload();
+            payload.setName(mName);
+            payload.setLabel(stats);
+            mPublisher.publish(AndroidThingsActivity.getPublishTopic(I2C_SERVICE), payload);
+        }
+
+        /**
+         * Close the devices once the queued transactions are over, and stop the thread.
+         */
+        private void shutdown() {
+            mWorker.execute(new Runnable() {
+                @Override
+                public void run() {
+                    mClosed = true;
+                    synchronized (Bus.this) {
+                        Iterator<Device> iterator = mDevices.values().iterator();
+                        while (iterator.hasNext()) {
+                            closeDriver(iterator.next());
+                            iterator.remove();
+                        }
+                    }
+                }
+            });
+            mWorker.shutdown();
+        }
+    }
+}
@@ -0,0 +1,89 @@
+package thilanka.org.companion;
+
+import java.util.HashMap;
+import java.util.Locale;
+import java.util.Map;
+
+/**
+ * The options carried in the label of a payload, written as a semicolon separated list of
+ * {@code KEY=value} entries and bare flags, e.g. {@code "min=500;max=60000"} or {@code "POLL"}.
+ * Keys are case insensitive.
+ *
+ * @author Thilanka Munasinghe (thilankawillbe@gmail.com)
+ */
+public class LabelOptions {
+
+    /* The parsed options, keyed by upper case name. Flags map to an empty string. */
+    private final Map<String, String> mOptions = new HashMap<>();
+
+    /**
+     * Parse the given label.
+     * @param pLabel the label, may be null.
+     * @return the options, empty if there is no label.
+     */
+    public static LabelOptions parse(String pLabel) {
+        LabelOptions options = new LabelOptions();
+        if (pLabel == null) {
+            return options;
+        }
+        for (String entry : pLabel.split(";")) {
+            int equals = entry.indexOf('=');
+            String key = (equals < 0 ? entry : entry.substring(0, equals)).trim();
+            if (key.isEmpty()) {
+                continue;
+            }
+            String value = equals < 0 ? "" : entry.substring(equals + 1).trim();
+            options.mOptions.put(key.toUpperCase(Locale.US), value);
+        }
+        return options;
+    }
+
+    /**
+     * Whether the given key or flag is present.
+     * @param pKey
+     * @return true if present.
+     */
+    public boolean has(String pKey) {
+        return mOptions.containsKey(pKey.toUpperCase(Locale.US));
+    }
+
+    /**
+     * Get an option as a string.
+     * @param pKey
+     * @param pDefault
+     * @return the value, or the default if the option is absent or empty.
+     */
+    public String getString(String pKey, String pDefault) {
+        String value = mOptions.get(pKey.toUpperCase(Locale.US));
+        return value == null || value.isEmpty() ? pDefault : value;
+    }
+
+    /**
+     * Get an option as a double.
+     * @param pKey
+     * @param pDefault
+     * @return the value, or the default if the option is absent or empty.
+     * @throws NumberFormatException if the value is not a number.
+     */
+    public double getDouble(String pKey, double pDefault) {
+        String value = getString(pKey, null);
+        return value == null ? pDefault : Double.parseDouble(value);
+    }
+
+    /**
+     * Get an option as a long.
+     * @param pKey
+     * @param pDefault
+     * @return the value, or the default if the option is absent or empty.
+     * @throws NumberFormatException if the value is not a number.
+     */
+    public long getLong(String pKey, long pDefault) {
+        String value = getString(pKey, null);
+        return value == null ? pDefault : Long.parseLong(value);
+    }
+
+    @Override
+    public String toString() {
+        return mOptions.toString();
+    }
+}
@@ -0,0 +1,283 @@
+package thilanka.org.companion;
+
+import android.util.Log;
+
+import org.eclipse.paho.client.mqttv3.MqttMessage;
+import org.thilanka.device.pin.PinProperty;
+import org.thilanka.messaging.domain.Message;
+import org.thilanka.messaging.domain.Payload;
+
+import java.io.File;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Publishes the outbound messages to App Inventor from background threads, so that the GPIO and
+ * sensor callbacks never block on the network. Telemetry goes through a {@link TelemetryFilter}
+ * first, so only what actually changed is sent. Every message then waits in the queue of its
+ * priority class in the {@link OutboundScheduler}: the input edges and the responses to the
+ * commands go first, on their own connection in the {@link MqttConnectionPool}, and never
+ * wait behind the telemetry or a history export.
+ *
+ * Every 10 seconds, if anything was published, the depth, counters and wait
+ * times of each class are published on the outbound sub-topic of the publish topic, one payload
+ * per class named after it, with {@code depth=..;enqueued=..;sent=..;dropped=..;mean_wait_ms=..;
+ * max_wait_ms=..} as the label and the depth as the double value.
+ *
+ * @author Thilanka Munasinghe (thilankawillbe@gmail.com)
+ */
+public class MessagePublisher {
+
+    /* The Log Tag*/
+    private static final String TAG = MessagePublisher.class.getSimpleName();
+
+    /* The sub-topic the statistics of the priority classes are published on. */
+    public static final String OUTBOUND_SERVICE = "outbound";
+
+    /* The period of the statistics of the priority classes. */
+    private static final long STATS_PERIOD_MS = 10000;
+
+    /* The connections to the broker */
+    private final MqttConnectionPool mConnectionPool;
+
+    /* The thread of the telemetry filter and state mirror timers. */
+    private final ScheduledExecutorService mExecutor = Executors
+            .newSingleThreadScheduledExecutor();
+
+    /* The queues of the outbound messages, by priority class. */
+    private final OutboundScheduler mScheduler;
+
+    /* The number of messages enqueued when the statistics were last published. */
+    private long mReportedEnqueued;
+
+    /* The report-by-exception filter applied to the telemetry. */
+    private final TelemetryFilter mTelemetryFilter;
+
+    /* The retained mirror of the latest pin and sensor states. */
+    private final StateMirror mStateMirror;
+
+    /* The recent history of the pin and sensor values. */
+    private final TimeSeriesStore mHistory;
+
+    /* The durable log of the pin and sensor values. */
+    private final SegmentLog mSegmentLog;
+
+    /* The optional compression of the large messages. */
+    private final PayloadCompressor mCompressor = new PayloadCompressor();
+
+    /* The versioned shadow of the reported and desired states. */
+    private final ShadowState mShadow = new ShadowState(this);
+
+    /**
+     * The Constructor.
+     * @param pConnectionPool
+     * @param pLogDirectory the directory of the durable log of the pin and sensor values.
+     */
+    public MessagePublisher(MqttConnectionPool pConnectionPool, File pLogDirectory) {
+        mConnectionPool = pConnectionPool;
+        mScheduler = new OutboundScheduler(new OutboundScheduler.Sender() {
+            @Override
+            public void send(OutboundScheduler.PriorityClass pClass, String pTopic,
+                             Payload pPayload, boolean pRetained) {
+                MessagePublisher.this.send(pClass.isCommandLane(), pTopic, pPayload, pRetained);
+            }
+        });
+        mTelemetryFilter = new TelemetryFilter(new TelemetryFilter.Sink() {
+            @Override
+            public void send(Payload pPayload) {
+                /* The input edges are the alarms of the clients. */
+                publish(pPayload.getProperty() == PinProperty.PIN_STATE
+                                ? OutboundScheduler.PriorityClass.CRITICAL
+                                : OutboundScheduler.PriorityClass.TELEMETRY,
+                        AndroidThingsActivity.getPublishTopic(), pPayload, false);
+            }
+        }, mExecutor);
+        mStateMirror = new StateMirror(this, mExecutor);
+        mHistory = new TimeSeriesStore(this);
+        mSegmentLog = new SegmentLog(pLogDirectory, this);
+        mExecutor.scheduleAtFixedRate(new Runnable() {
+            @Override
+            public void run() {
+                publishStats();
+            }
+        }, STATS_PERIOD_MS, STATS_PERIOD_MS, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * The filter applied to the telemetry.
+     * @return the telemetry filter.
+     */
+    public TelemetryFilter getTelemetryFilter() {
+        return mTelemetryFilter;
+    }
+
+    /**
+     * The recent history of the pin and sensor values.
+     * @return the history store.
+     */
+    public TimeSeriesStore getHistory() {
+        return mHistory;
+    }
+
+    /**
+     * The durable log of the pin and sensor values.
+     * @return the segment log.
+     */
+    public SegmentLog getSegmentLog() {
+        return mSegmentLog;
+    }
+
+    /**
+     * The optional compression of the large messages.
+     * @return the compressor.
+     */
+    public PayloadCompressor getCompressor() {
+        return mCompressor;
+    }
+
+    /**
+     * The versioned shadow of the reported and desired states.
+     * @return the shadow.
+     */
+    public ShadowState getShadow() {
+        return mShadow;
+    }
+
+    /**
+     * The queues of the outbound messages.
+     * @return the scheduler.
+     */
+    public OutboundScheduler getScheduler() {
+        return mScheduler;
+    }
+
+    /**
+     * Publish a telemetry payload to the App Inventor topic, subject to the telemetry filter.
+     * @param pPayload
+     */
+    public void publishTelemetry(Payload pPayload) {
+        mHistory.record(pPayload);
+        mSegmentLog.append(pPayload);
+        mStateMirror.update(pPayload);
+        mShadow.report(pPayload);
+        mTelemetryFilter.offer(pPayload);
+    }
+
+    /**
+     * Record the new state of a pin or sensor in its retained state topic only.
+     * @param pPayload
+     */
+    public void publishState(Payload pPayload) {
+        mHistory.record(pPayload);
+        mSegmentLog.append(pPayload);
+        mStateMirror.update(pPayload);
+        mShadow.report(pPayload);
+    }
+
+    /**
+     * Publish the given payload to the App Inventor topic, bypassing the telemetry filter.
+     * @param pPayload
+     */
+    public void publish(Payload pPayload) {
+        publish(AndroidThingsActivity.getPublishTopic(), pPayload);
+    }
+
+    /**
+     * Publish the given payload to the given topic.
+     * @param pTopic
+     * @param pPayload
+     */
+    public void publish(String pTopic, Payload pPayload) {
+        publish(pTopic, pPayload, false);
+    }
+
+    /**
+     * Publish the given payload to the given topic.
+     * @param pTopic
+     * @param pPayload
+     * @param pRetained whether the broker should keep the message for future subscribers.
+     */
+    public void publish(String pTopic, Payload pPayload, boolean pRetained) {
+        publish(OutboundScheduler.PriorityClass.TELEMETRY, pTopic, pPayload, pRetained);
+    }
+
+    /**
+     * Publish a response to a command (an acknowledgment, a reply...) to the given topic, on the
+     * command connection.
+     * @param pTopic
+     * @param pPayload
+     */
+    public void publishResponse(String pTopic, Payload pPayload) {
+        publish(OutboundScheduler.PriorityClass.INTERACTIVE, pTopic, pPayload, false);
+    }
+
+    /**
+     * Publish the given payload to the given topic, in the given priority class. A BULK publish
+     * waits while its queue is full.
+     * @param pClass
+     * @param pTopic
+     * @param pPayload
+     * @param pRetained whether the broker should keep the message for future subscribers.
+     */
+    public void publish(OutboundScheduler.PriorityClass pClass, String pTopic, Payload pPayload,
+                        boolean pRetained) {
+        if (!mScheduler.enqueue(pClass, pTopic, pPayload, pRetained)) {
+            Log.w(TAG, "Dropped a " + pClass + " message to \"" + pTopic + "\".");
+        }
+    }
+
+    /**
+     * Publish the statistics of the priority classes, unless nothing was published since the
+     * last time.
+     */
+    private void publishStats() {
+        if (mScheduler.getEnqueued() == mReportedEnqueued) {
+            return;
+        }
+        String topic = AndroidThingsActivity.getPublishTopic(OUTBOUND_SERVICE);
+        OutboundScheduler.PriorityClass[] classes = OutboundScheduler.PriorityClass.values();
+        for (OutboundScheduler.PriorityClass priorityClass : classes) {
+            Payload payload = new Payload();
+            payload.setName(priorityClass.name());
+            payload.setLabel(mScheduler.getStats(priorityClass));
+            payload.setDoubleValue(mScheduler.getDepth(priorityClass));
+            publish(OutboundScheduler.PriorityClass.TELEMETRY, topic, payload, false);
+        }
+        /* Do not count the statistics themselves as activity. */
+        mReportedEnqueued = mScheduler.getEnqueued();
+    }
+
+    /**
+     * Serialize and publish a payload.
+     * @param pCommand whether to use the command connection.
+     * @param pTopic
+     * @param pPayload
+     * @param pRetained
+     */
+    private void send(boolean pCommand, String pTopic, Payload pPayload, boolean pRetained) {
+        String messageStr = Message.constructMessage(pPayload);
+
+        MqttMessage message = new MqttMessage(mCompressor.encode(messageStr.getBytes()));
+        message.setQos(AndroidThingsActivity.QOS);
+        message.setRetained(pRetained);
+
+        // Publish the message
+        Log.d(TAG, "Publishing to topic \"" + pTopic + "\" qos " + AndroidThingsActivity
+                .QOS + ", the message = " + messageStr);
+        try {
+            mConnectionPool.publish(pCommand, pPayload.getName(), pTopic, message);
+        } catch (Exception e) {
+            Log.e(TAG, e.getLocalizedMessage());
+        }
+    }
+
+    /**
+     * Stop publishing. Messages that are still queued are dropped, the durable log is sealed.
+     */
+    public void shutdown() {
+        mSegmentLog.close();
+        mExecutor.shutdownNow();
+        mScheduler.shutdown();
+    }
+}
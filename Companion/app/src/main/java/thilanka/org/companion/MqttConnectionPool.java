@@ -0,0 +1,370 @@
+package thilanka.org.companion;
+
+import android.util.Log;
+
+import org.eclipse.paho.client.mqttv3.IMqttDeliveryToken;
+import org.eclipse.paho.client.mqttv3.IMqttToken;
+import org.eclipse.paho.client.mqttv3.MqttAsyncClient;
+import org.eclipse.paho.client.mqttv3.MqttCallback;
+import org.eclipse.paho.client.mqttv3.MqttConnectOptions;
+import org.eclipse.paho.client.mqttv3.MqttException;
+import org.eclipse.paho.client.mqttv3.MqttMessage;
+import org.eclipse.paho.client.mqttv3.persist.MemoryPersistence;
+
+import java.util.HashSet;
+import java.util.Set;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * The connections of the board to the broker. The commands arrive, and the responses to them
+ * leave, on a dedicated command connection, so that they never queue behind a telemetry burst on
+ * the same socket. The telemetry is sharded by channel (the name of the payload, a pin or a
+ * sensor) over zero or more telemetry connections (zero meaning that everything shares the
+ * command connection), which keeps the messages of a channel in order while spreading the
+ * telemetry that all goes to the same publish topic. A connection that fails to connect is
+ * retried in the background, after 1 second and then twice as long every time, up to a minute,
+ * as the automatic reconnection of Paho only takes over after a first successful connection;
+ * meanwhile the channels of a telemetry connection fall back to the command connection. The
+ * connections are waited for outside the lock of the pool, so that a slow broker never blocks
+ * {@link #disconnect}.
+ *
+ * Every connection has a client ID derived from the board identifier, so that boards sharing a
+ * broker do not take over each other's session, and its own window of in-flight messages: a
+ * publish only waits when its connection's window is full.
+ *
+ * @author Thilanka Munasinghe (thilankawillbe@gmail.com)
+ */
+public class MqttConnectionPool {
+
+    /* The Log Tag*/
+    private static final String TAG = MqttConnectionPool.class.getSimpleName();
+
+    /* The prefix of the client IDs. */
+    private static final String CLIENT_ID_PREFIX = "at-";
+
+    /* The number of characters of the board identifier used in the client IDs. */
+    private static final int CLIENT_ID_BOARD_LENGTH = 12;
+
+    /* The in-flight window of the command connection. */
+    private static final int COMMAND_MAX_INFLIGHT = 10;
+
+    /* The in-flight window of each telemetry connection. */
+    private static final int TELEMETRY_MAX_INFLIGHT = 100;
+
+    /* The longest wait for a connection, or for room in a full window. */
+    private static final long TIMEOUT_MS = 30000;
+
+    /* The delays between the retries of a connection. */
+    private static final long INITIAL_RETRY_MS = 1000;
+    private static final long MAX_RETRY_MS = 60000;
+
+    /* The URL of the broker. */
+    private final String mServerUrl;
+
+    /* The connection options shared by all the connections, apart from the window. */
+    private final MqttConnectOptions mOptions;
+
+    /* The command connection, once created. */
+    private volatile MqttAsyncClient mCommandClient;
+
+    /* The telemetry connections, once created. */
+    private volatile MqttAsyncClient[] mTelemetryClients = new MqttAsyncClient[0];
+
+    /* Run once the command connection first connects. */
+    private volatile Runnable mOnCommandConnected;
+
+    /* The connections being connected or retried. Guarded by the pool. */
+    private final Set<MqttAsyncClient> mConnecting = new HashSet<>();
+
+    /* Retries the connections that failed to connect. */
+    private final ScheduledExecutorService mRetries = Executors.newSingleThreadScheduledExecutor();
+
+    /* Logs the state of the telemetry connections, which do not receive anything. */
+    private final MqttCallback mTelemetryCallback = new MqttCallback() {
+        @Override
+        public void connectionLost(Throwable pCause) {
+            Log.w(TAG, "Telemetry connection lost: " + pCause);
+        }
+
+        @Override
+        public void messageArrived(String pTopic, MqttMessage pMessage) {
+        }
+
+        @Override
+        public void deliveryComplete(IMqttDeliveryToken pToken) {
+        }
+    };
+
+    /**
+     * The Constructor. Nothing is connected until {@link #connect}.
+     * @param pServerUrl
+     * @param pOptions
+     */
+    public MqttConnectionPool(String pServerUrl, MqttConnectOptions pOptions) {
+        mServerUrl = pServerUrl;
+        mOptions = pOptions;
+    }
+
+    /**
+     * The client ID of a connection of the given board.
+     * @param pBoardIdentifier
+     * @param pRole
+     * @return the client ID, 23 characters at most.
+     */
+    public static String getClientId(String pBoardIdentifier, String pRole) {
+        String board = pBoardIdentifier.replace("-", "");
+        if (board.length() > CLIENT_ID_BOARD_LENGTH) {
+            board = board.substring(0, CLIENT_ID_BOARD_LENGTH);
+        }
+        return CLIENT_ID_PREFIX + board + "-" + pRole;
+    }
+
+    /**
+     * Create the connections on the first call, then connect the ones that are not connected,
+     * waiting for the first attempt of each. The ones that fail are retried in the background.
+     * @param pBoardIdentifier
+     * @param pTelemetryConnections the number of telemetry connections, 0 to share the command
+     *                              connection.
+     * @param pCommandCallback receives the commands.
+     * @param pOnCommandConnected run once the command connection connects, on the thread that
+     *                            connected it, which is not an MQTT callback.
+     * @throws MqttException if the connections cannot be created.
+     */
+    public void connect(String pBoardIdentifier, int pTelemetryConnections,
+                        MqttCallback pCommandCallback, Runnable pOnCommandConnected)
+            throws MqttException {
+        MqttAsyncClient commandClient;
+        MqttAsyncClient[] telemetryClients;
+        synchronized (this) {
+            createClients(pBoardIdentifier, pTelemetryConnections, pCommandCallback,
+                    pOnCommandConnected);
+            commandClient = mCommandClient;
+            telemetryClients = mTelemetryClients;
+        }
+        attempt(commandClient, COMMAND_MAX_INFLIGHT, INITIAL_RETRY_MS);
+        for (MqttAsyncClient client : telemetryClients) {
+            attempt(client, TELEMETRY_MAX_INFLIGHT, INITIAL_RETRY_MS);
+        }
+    }
+
+    /**
+     * Create the connections, if they have not been yet. Must hold the lock.
+     * @param pBoardIdentifier
+     * @param pTelemetryConnections
+     * @param pCommandCallback
+     * @param pOnCommandConnected
+     * @throws MqttException
+     */
+    private void createClients(String pBoardIdentifier, int pTelemetryConnections,
+                               MqttCallback pCommandCallback, Runnable pOnCommandConnected)
+            throws MqttException {
+        if (mCommandClient == null) {
+            MqttAsyncClient commandClient = new MqttAsyncClient(mServerUrl,
+                    getClientId(pBoardIdentifier, "cmd"), new MemoryPersistence());
+            commandClient.setCallback(pCommandCallback);
+            MqttAsyncClient[] telemetryClients = new MqttAsyncClient[Math.max(0,
+                    pTelemetryConnections)];
+            for (int i = 0; i < telemetryClients.length; i++) {
+                telemetryClients[i] = new MqttAsyncClient(mServerUrl,
+                        getClientId(pBoardIdentifier, "tel" + i), new MemoryPersistence());
+                telemetryClients[i].setCallback(mTelemetryCallback);
+            }
+            mCommandClient = commandClient;
+            mTelemetryClients = telemetryClients;
+            mOnCommandConnected = pOnCommandConnected;
+        }
+    }
+
+    /**
+     * Connect a client, unless it is connected or being connected already, and schedule a retry
+     * if it fails. Waits for the connection outside the lock.
+     * @param pClient
+     * @param pMaxInflight
+     * @param pRetryMs the delay before the retry, if this attempt fails.
+     */
+    private void attempt(MqttAsyncClient pClient, int pMaxInflight, long pRetryMs) {
+        synchronized (this) {
+            if (mRetries.isShutdown() || pClient.isConnected() || !mConnecting.add(pClient)) {
+                return;
+            }
+        }
+        retry(pClient, pMaxInflight, pRetryMs);
+    }
+
+    /**
+     * Connect a client that is being connected, or schedule the next retry.
+     * @param pClient
+     * @param pMaxInflight
+     * @param pRetryMs the delay before the next retry, if this one fails.
+     */
+    private void retry(MqttAsyncClient pClient, int pMaxInflight, long pRetryMs) {
+        try {
+            connect(pClient, pMaxInflight);
+        } catch (MqttException e) {
+            Log.w(TAG, "Unable to connect " + pClient.getClientId() + ", retrying in "
+                    + pRetryMs + " ms: " + e.getLocalizedMessage());
+            synchronized (this) {
+                if (!scheduleRetry(pClient, pMaxInflight, pRetryMs)) {
+                    mConnecting.remove(pClient);
+                }
+            }
+            return;
+        }
+        synchronized (this) {
+            mConnecting.remove(pClient);
+            if (mRetries.isShutdown()) {
+                /* Disconnected while this connection was waited for. */
+                disconnect(pClient);
+                return;
+            }
+        }
+        if (pClient == mCommandClient) {
+            mOnCommandConnected.run();
+        }
+    }
+
+    /**
+     * Retry a connection that failed to connect, until it connects. Must hold the lock.
+     * @param pClient
+     * @param pMaxInflight
+     * @param pDelayMs
+     * @return false if the pool is disconnected.
+     */
+    private boolean scheduleRetry(final MqttAsyncClient pClient, final int pMaxInflight,
+                                  final long pDelayMs) {
+        if (mRetries.isShutdown()) {
+            return false;
+        }
+        mRetries.schedule(new Runnable() {
+            @Override
+            public void run() {
+                retry(pClient, pMaxInflight, Math.min(MAX_RETRY_MS, pDelayMs * 2));
+            }
+        }, pDelayMs, TimeUnit.MILLISECONDS);
+        return true;
+    }
+
+    /**
+     * Connect a client, if it is not connected, and wait for the connection.
+     * @param pClient
+     * @param pMaxInflight
+     * @throws MqttException
+     */
+    private void connect(MqttAsyncClient pClient, int pMaxInflight) throws MqttException {
+        if (pClient.isConnected()) {
+            return;
+        }
+        MqttConnectOptions options = new MqttConnectOptions();
+        options.setCleanSession(mOptions.isCleanSession());
+        options.setAutomaticReconnect(mOptions.isAutomaticReconnect());
+        options.setKeepAliveInterval(mOptions.getKeepAliveInterval());
+        options.setMaxInflight(pMaxInflight);
+        pClient.connect(options).waitForCompletion(TIMEOUT_MS);
+        Log.d(TAG, "Connected " + pClient.getClientId() + " to " + mServerUrl);
+    }
+
+    /**
+     * Subscribe the command connection to the given topics. The returned token must not be
+     * waited for from an MQTT callback.
+     * @param pTopics
+     * @param pQos
+     * @return the token of the subscription.
+     * @throws MqttException
+     */
+    public IMqttToken subscribe(String[] pTopics, int[] pQos) throws MqttException {
+        return getCommandClient().subscribe(pTopics, pQos);
+    }
+
+    /**
+     * Publish a message without waiting for its delivery, unless the window of its connection
+     * is full.
+     * @param pCommand true for the responses to the commands, false for the telemetry.
+     * @param pChannel the channel the telemetry is sharded by, or null to use the topic.
+     * @param pTopic
+     * @param pMessage
+     * @throws MqttException
+     */
+    public void publish(boolean pCommand, String pChannel, String pTopic, MqttMessage pMessage)
+            throws MqttException {
+        MqttAsyncClient client = pCommand ? getCommandClient()
+                : getTelemetryClient(pChannel != null ? pChannel : pTopic);
+        while (true) {
+            try {
+                client.publish(pTopic, pMessage);
+                return;
+            } catch (MqttException e) {
+                if (e.getReasonCode() != MqttException.REASON_CODE_MAX_INFLIGHT) {
+                    throw e;
+                }
+                IMqttDeliveryToken[] pending = client.getPendingDeliveryTokens();
+                if (pending.length > 0) {
+                    pending[0].waitForCompletion(TIMEOUT_MS);
+                }
+            }
+        }
+    }
+
+    /**
+     * The command connection.
+     * @return the client.
+     * @throws MqttException if it has not been created yet.
+     */
+    private MqttAsyncClient getCommandClient() throws MqttException {
+        MqttAsyncClient client = mCommandClient;
+        if (client == null) {
+            throw new MqttException(MqttException.REASON_CODE_CLIENT_NOT_CONNECTED);
+        }
+        return client;
+    }
+
+    /**
+     * The telemetry connection of a channel, or the command connection if there is no connected
+     * telemetry connection.
+     * @param pChannel
+     * @return the client.
+     * @throws MqttException if no connection has been created yet.
+     */
+    private MqttAsyncClient getTelemetryClient(String pChannel) throws MqttException {
+        MqttAsyncClient[] clients = mTelemetryClients;
+        if (clients.length > 0) {
+            MqttAsyncClient client = clients[(pChannel.hashCode() & 0x7fffffff) % clients.length];
+            if (client.isConnected()) {
+                return client;
+            }
+        }
+        return getCommandClient();
+    }
+
+    /**
+     * Stop the retries and disconnect all the connections.
+     */
+    public synchronized void disconnect() {
+        mRetries.shutdownNow();
+        mConnecting.clear();
+        MqttAsyncClient commandClient = mCommandClient;
+        if (commandClient == null) {
+            return;
+        }
+        for (MqttAsyncClient client : mTelemetryClients) {
+            disconnect(client);
+        }
+        disconnect(commandClient);
+    }
+
+    /**
+     * Disconnect a client, ignoring the failures.
+     * @param pClient
+     */
+    private void disconnect(MqttAsyncClient pClient) {
+        try {
+            if (pClient.isConnected()) {
+                pClient.disconnect();
+            }
+        } catch (MqttException e) {
+            Log.w(TAG, "Unable to disconnect " + pClient.getClientId() + ": "
+                    + e.getLocalizedMessage());
+        }
+    }
+}
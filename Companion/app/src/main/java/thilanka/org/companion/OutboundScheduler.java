@@ -0,0 +1,363 @@
+package thilanka.org.companion;
+
+import android.util.Log;
+
+import org.thilanka.messaging.domain.Payload;
+
+import java.util.ArrayDeque;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Orders the outbound messages by priority class, so that alarms and the responses to the
+ * commands are never stuck behind a burst of telemetry or a bulk export.
+ *
+ * Each {@link PriorityClass} has its own bounded queue, rate limit (a token bucket) and policy
+ * for when its queue is full. The classes are served by two lanes, one per kind of connection in
+ * the {@link MqttConnectionPool}, each with its own thread: the command lane serves the critical
+ * events before the interactive responses (strict priority), the telemetry lane shares itself
+ * between the telemetry and the bulk messages by weight. A class that is out of tokens waits
+ * while the other classes of its lane go on.
+ *
+ * @author Thilanka Munasinghe (thilankawillbe@gmail.com)
+ */
+public class OutboundScheduler {
+
+    /* The Log Tag*/
+    private static final String TAG = OutboundScheduler.class.getSimpleName();
+
+    /**
+     * What to do with a message whose queue is full.
+     */
+    public enum DropPolicy {
+        /* Drop the oldest queued message: only the latest values matter. */
+        DROP_OLDEST,
+        /* Drop the new message: what is queued has been promised. */
+        DROP_NEWEST,
+        /* Make the producer wait: nothing may be lost and the producer can afford to wait. */
+        BLOCK
+    }
+
+    /**
+     * The priority classes, from the most to the least urgent.
+     */
+    public enum PriorityClass {
+        /* Input edges and alarms. Not rate limited. */
+        CRITICAL(true, 1024, 0, 1, DropPolicy.DROP_OLDEST),
+        /* Acknowledgments and replies to the commands. */
+        INTERACTIVE(true, 256, 50, 1, DropPolicy.DROP_NEWEST),
+        /* Sensor samples, counters and state. */
+        TELEMETRY(false, 512, 100, 4, DropPolicy.DROP_OLDEST),
+        /* History exports and reports. */
+        BULK(false, 64, 20, 1, DropPolicy.BLOCK);
+
+        private final boolean mCommandLane;
+        private final int mCapacity;
+        private final double mRatePerSecond;
+        private final int mWeight;
+        private final DropPolicy mDropPolicy;
+
+        PriorityClass(boolean pCommandLane, int pCapacity, double pRatePerSecond, int pWeight,
+                      DropPolicy pDropPolicy) {
+            mCommandLane = pCommandLane;
+            mCapacity = pCapacity;
+            mRatePerSecond = pRatePerSecond;
+            mWeight = pWeight;
+            mDropPolicy = pDropPolicy;
+        }
+
+        /**
+         * Whether the class is sent on the command connection.
+         * @return true for the command connection, false for the telemetry connections.
+         */
+        public boolean isCommandLane() {
+            return mCommandLane;
+        }
+    }
+
+    /**
+     * Sends the messages, on the thread of their lane.
+     */
+    public interface Sender {
+        /**
+         * Serialize and publish a message.
+         * @param pClass
+         * @param pTopic
+         * @param pPayload
+         * @param pRetained
+         */
+        void send(PriorityClass pClass, String pTopic, Payload pPayload, boolean pRetained);
+    }
+
+    /* The sender of the messages. */
+    private final Sender mSender;
+
+    /* Guards all the queues and counters. */
+    private final ReentrantLock mLock = new ReentrantLock();
+
+    /* Signalled when a BULK-like blocking queue has room. */
+    private final Condition mNotFull = mLock.newCondition();
+
+    /* The queues, by class ordinal. */
+    private final ClassQueue[] mQueues = new ClassQueue[PriorityClass.values().length];
+
+    /* The lanes. */
+    private final Lane mCommandLane;
+    private final Lane mTelemetryLane;
+
+    /* Whether the scheduler still accepts messages. */
+    private volatile boolean mRunning = true;
+
+    /**
+     * The Constructor. Starts the threads of the lanes.
+     * @param pSender
+     */
+    public OutboundScheduler(Sender pSender) {
+        mSender = pSender;
+        for (PriorityClass priorityClass : PriorityClass.values()) {
+            mQueues[priorityClass.ordinal()] = new ClassQueue(priorityClass);
+        }
+        mCommandLane = new Lane("command", true, mQueues[PriorityClass.CRITICAL.ordinal()],
+                mQueues[PriorityClass.INTERACTIVE.ordinal()]);
+        mTelemetryLane = new Lane("telemetry", false, mQueues[PriorityClass.TELEMETRY.ordinal()],
+                mQueues[PriorityClass.BULK.ordinal()]);
+        mCommandLane.start();
+        mTelemetryLane.start();
+    }
+
+    /**
+     * Queue a message in its class.
+     * @param pClass
+     * @param pTopic
+     * @param pPayload
+     * @param pRetained
+     * @return false if the message was dropped.
+     */
+    public boolean enqueue(PriorityClass pClass, String pTopic, Payload pPayload,
+                           boolean pRetained) {
+        ClassQueue queue = mQueues[pClass.ordinal()];
+        mLock.lock();
+        try {
+            while (mRunning && queue.mEntries.size() >= pClass.mCapacity) {
+                if (pClass.mDropPolicy == DropPolicy.DROP_NEWEST) {
+                    queue.mDropped++;
+                    return false;
+                }
+                if (pClass.mDropPolicy == DropPolicy.DROP_OLDEST) {
+                    queue.mEntries.poll();
+                    queue.mDropped++;
+                    break;
+                }
+                try {
+                    mNotFull.await();
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    queue.mDropped++;
+                    return false;
+                }
+            }
+            if (!mRunning) {
+                return false;
+            }
+            queue.mEntries.add(new Entry(pTopic, pPayload, pRetained, System.nanoTime()));
+            queue.mEnqueued++;
+            (pClass.mCommandLane ? mCommandLane : mTelemetryLane).mReady.signal();
+            return true;
+        } finally {
+            mLock.unlock();
+        }
+    }
+
+    /**
+     * The statistics of a class since the start, as label options.
+     * @param pClass
+     * @return {@code depth=..;enqueued=..;sent=..;dropped=..;mean_wait_ms=..;max_wait_ms=..}
+     */
+    public String getStats(PriorityClass pClass) {
+        ClassQueue queue = mQueues[pClass.ordinal()];
+        mLock.lock();
+        try {
+            double meanWaitMs = queue.mSent == 0 ? 0
+                    : queue.mTotalWaitNanos / 1e6 / queue.mSent;
+            return "depth=" + queue.mEntries.size() + ";enqueued=" + queue.mEnqueued + ";sent="
+                    + queue.mSent + ";dropped=" + queue.mDropped + ";mean_wait_ms="
+                    + meanWaitMs + ";max_wait_ms=" + queue.mMaxWaitNanos / 1e6;
+        } finally {
+            mLock.unlock();
+        }
+    }
+
+    /**
+     * The number of messages accepted in all the classes since the start.
+     * @return the count.
+     */
+    public long getEnqueued() {
+        mLock.lock();
+        try {
+            long enqueued = 0;
+            for (ClassQueue queue : mQueues) {
+                enqueued += queue.mEnqueued;
+            }
+            return enqueued;
+        } finally {
+            mLock.unlock();
+        }
+    }
+
+    /**
+     * The number of messages waiting in a class.
+     * @param pClass
+     * @return the queue depth.
+     */
+    public int getDepth(PriorityClass pClass) {
+        mLock.lock();
+        try {
+            return mQueues[pClass.ordinal()].mEntries.size();
+        } finally {
+            mLock.unlock();
+        }
+    }
+
+    /**
+     * Stop the lanes. Messages that are still queued are dropped.
+     */
+    public void shutdown() {
+        mLock.lock();
+        try {
+            mRunning = false;
+            mNotFull.signalAll();
+            mCommandLane.mReady.signal();
+            mTelemetryLane.mReady.signal();
+        } finally {
+            mLock.unlock();
+        }
+        mCommandLane.interrupt();
+        mTelemetryLane.interrupt();
+    }
+
+    /**
+     * A queued message.
+     */
+    private static class Entry {
+        private final String mTopic;
+        private final Payload mPayload;
+        private final boolean mRetained;
+        private final long mEnqueuedAt;
+
+        Entry(String pTopic, Payload pPayload, boolean pRetained, long pEnqueuedAt) {
+            mTopic = pTopic;
+            mPayload = pPayload;
+            mRetained = pRetained;
+            mEnqueuedAt = pEnqueuedAt;
+        }
+    }
+
+    /**
+     * The queue, token bucket and counters of a class. Guarded by the scheduler lock.
+     */
+    private static class ClassQueue {
+        private final PriorityClass mClass;
+        private final ArrayDeque<Entry> mEntries = new ArrayDeque<>();
+        /* The rate limit, or null when not limited. The bucket holds one second worth. */
+        private final TokenBucket mBucket;
+        private int mCredit;
+        private long mEnqueued;
+        private long mSent;
+        private long mDropped;
+        private long mTotalWaitNanos;
+        private long mMaxWaitNanos;
+
+        ClassQueue(PriorityClass pClass) {
+            mClass = pClass;
+            mBucket = pClass.mRatePerSecond > 0
+                    ? new TokenBucket(pClass.mRatePerSecond, pClass.mRatePerSecond) : null;
+        }
+
+        /**
+         * Tell how long until the next message may go.
+         * @param pNow
+         * @return 0 if a message may go now, otherwise the wait in nanoseconds.
+         */
+        private long refill(long pNow) {
+            return mBucket == null ? 0 : mBucket.refill(pNow);
+        }
+    }
+
+    /**
+     * A thread that serves some classes, in strict priority or by weight.
+     */
+    private class Lane extends Thread {
+        private final boolean mStrict;
+        private final ClassQueue[] mClasses;
+        private final Condition mReady = mLock.newCondition();
+
+        Lane(String pName, boolean pStrict, ClassQueue... pClasses) {
+            super(TAG + "-" + pName);
+            mStrict = pStrict;
+            mClasses = pClasses;
+        }
+
+        @Override
+        public void run() {
+            while (mRunning) {
+                Entry entry;
+                ClassQueue from;
+                mLock.lock();
+                try {
+                    long wait = Long.MAX_VALUE;
+                    from = null;
+                    long now = System.nanoTime();
+                    for (int pass = 0; pass < 2 && from == null; pass++) {
+                        for (ClassQueue queue : mClasses) {
+                            if (queue.mEntries.isEmpty()) {
+                                continue;
+                            }
+                            long tokenWait = queue.refill(now);
+                            if (tokenWait > 0) {
+                                wait = Math.min(wait, tokenWait);
+                            } else if (mStrict || queue.mCredit > 0) {
+                                from = queue;
+                                break;
+                            }
+                        }
+                        if (from == null && !mStrict) {
+                            /* A new round: every class gets its weight in messages. */
+                            for (ClassQueue queue : mClasses) {
+                                queue.mCredit = queue.mClass.mWeight;
+                            }
+                        }
+                    }
+                    if (from == null) {
+                        try {
+                            if (wait == Long.MAX_VALUE) {
+                                mReady.await();
+                            } else {
+                                mReady.awaitNanos(wait);
+                            }
+                        } catch (InterruptedException e) {
+                            return;
+                        }
+                        continue;
+                    }
+                    entry = from.mEntries.poll();
+                    if (from.mBucket != null) {
+                        from.mBucket.take();
+                    }
+                    from.mCredit--;
+                    long waited = now - entry.mEnqueuedAt;
+                    from.mSent++;
+                    from.mTotalWaitNanos += waited;
+                    from.mMaxWaitNanos = Math.max(from.mMaxWaitNanos, waited);
+                    mNotFull.signalAll();
+                } finally {
+                    mLock.unlock();
+                }
+                try {
+                    mSender.send(from.mClass, entry.mTopic, entry.mPayload, entry.mRetained);
+                } catch (RuntimeException e) {
+                    Log.e(TAG, "Unable to send a message: " + e.getLocalizedMessage());
+                }
+            }
+        }
+    }
+}
@@ -0,0 +1,192 @@
+package thilanka.org.companion;
+
+import android.util.Log;
+
+import org.thilanka.messaging.domain.Action;
+import org.thilanka.messaging.domain.Payload;
+
+import java.io.ByteArrayOutputStream;
+import java.nio.charset.Charset;
+import java.util.Arrays;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+/**
+ * Optionally compresses the large outbound messages (history replies, export chunks...), whose
+ * JSON repeats the same field names and enum values over and over.
+ *
+ * A compressed message is an envelope: the {@link #ENVELOPE_MAGIC} byte, which can never start a
+ * JSON message, the {@link #FORMAT_ZLIB_SCHEMA} format byte, then a zlib stream deflated with
+ * the preset {@link #DICTIONARY} built from the {@code Payload} schema. The zlib header carries
+ * the Adler-32 of the dictionary, so a receiver can check it has the right one. Messages that
+ * are below the threshold, or that do not shrink, are sent as plain JSON.
+ *
+ * Compression is off until a REGISTER on the compression topic enables it, with the threshold
+ * in bytes as the double value (256 if not set); a SHUTDOWN disables it again. The publishing
+ * threads take turns on the shared compressor.
+ *
+ * @author Thilanka Munasinghe (thilankawillbe@gmail.com)
+ */
+public class PayloadCompressor {
+
+    /* The Log Tag*/
+    private static final String TAG = PayloadCompressor.class.getSimpleName();
+
+    /* The sub-topic the compression settings are received on. */
+    public static final String COMPRESSION_SERVICE = "compression";
+
+    /* The first byte of a compressed message. */
+    public static final byte ENVELOPE_MAGIC = 0x1f;
+
+    /* The format of a zlib stream deflated with the schema dictionary. */
+    public static final byte FORMAT_ZLIB_SCHEMA = 1;
+
+    /* The default size from which the messages are compressed. */
+    public static final int DEFAULT_THRESHOLD = 256;
+
+    /*
+     * The preset dictionary: the field names, enum values and separators of the serialized
+     * payloads. The most frequent strings come last, where the matches are cheapest.
+     */
+    public static final byte[] DICTIONARY = ("I2C\"SPI\"UART\"I2S\"NATIVE_PIO\""
+            + "\"mAndroidThingsBoard\":\"\"mRecords\":[\"\"mRequestId\":\""
+            + "\"mProperty\":\"REGISTER\"\"mProperty\":\"DUTY_CYCLE\"\"mProperty\":\"FREQUENCY\""
+            + "\"mProperty\":\"TEMPERATURE\"\"mPeripheralIO\":\"TEMPERATURE_SENSOR\""
+            + "\"mPeripheralIO\":\"PWM\"\"mAction\":\"REGISTER\"\"mAction\":\"MONITOR\""
+            + "\"mAction\":\"SHUTDOWN\"\"mDirection\":\"OUT\"\"mDirection\":\"IN\""
+            + "\"mValue\":\"HIGH\"\"mValue\":\"LOW\"\"mLabel\":\"\"mDoubleValue\":0.0"
+            + "\"mProperty\":\"PIN_STATE\"/PIN_STATE,1.0\",\"/PIN_STATE,0.0\",\"\\u003d"
+            + "{\"mPeripheralIO\":\"GPIO\",\"mAction\":\"EVENT\",\"mName\":\"BCM")
+            .getBytes(Charset.forName("UTF-8"));
+
+    /* The compressor, reused for every message. */
+    private final Deflater mDeflater = new Deflater(Deflater.DEFAULT_COMPRESSION);
+
+    /* The output buffer, grown as needed and reused. */
+    private byte[] mBuffer = new byte[1024];
+
+    /* The size from which the messages are compressed, or 0 when compression is off. */
+    private volatile int mThreshold;
+
+    /* The size of the messages that were compressed, before and after. */
+    private final AtomicLong mBytesIn = new AtomicLong();
+    private final AtomicLong mBytesOut = new AtomicLong();
+
+    /**
+     * Handle the messages that change the compression settings.
+     * @param pPayload
+     */
+    public void handleMessage(Payload pPayload) {
+        Action messageType = pPayload.getAction();
+        switch (messageType) {
+            case REGISTER:
+                int threshold = (int) pPayload.getDoubleValue();
+                mThreshold = threshold > 0 ? threshold : DEFAULT_THRESHOLD;
+                Log.d(TAG, "Compressing the messages from " + mThreshold + " bytes.");
+                break;
+            case SHUTDOWN:
+                mThreshold = 0;
+                Log.d(TAG, "Compression disabled.");
+                break;
+            default:
+                Log.d(TAG, "Message not supported!");
+                break;
+        }
+    }
+
+    /**
+     * Set the size from which the messages are compressed.
+     * @param pThreshold the size in bytes, or 0 to disable compression.
+     */
+    public void setThreshold(int pThreshold) {
+        mThreshold = Math.max(0, pThreshold);
+    }
+
+    /**
+     * Compress a serialized message if it is worth it.
+     * @param pMessage the JSON message.
+     * @return the envelope, or the message itself.
+     */
+    public synchronized byte[] encode(byte[] pMessage) {
+        int threshold = mThreshold;
+        if (threshold == 0 || pMessage.length < threshold) {
+            return pMessage;
+        }
+        mDeflater.reset();
+        mDeflater.setDictionary(DICTIONARY);
+        mDeflater.setInput(pMessage);
+        mDeflater.finish();
+        mBuffer[0] = ENVELOPE_MAGIC;
+        mBuffer[1] = FORMAT_ZLIB_SCHEMA;
+        int length = 2;
+        while (!mDeflater.finished()) {
+            if (length >= pMessage.length) {
+                /* Not worth it. */
+                return pMessage;
+            }
+            if (length == mBuffer.length) {
+                mBuffer = Arrays.copyOf(mBuffer, mBuffer.length * 2);
+            }
+            length += mDeflater.deflate(mBuffer, length, mBuffer.length - length);
+        }
+        if (length >= pMessage.length) {
+            return pMessage;
+        }
+        mBytesIn.addAndGet(pMessage.length);
+        mBytesOut.addAndGet(length);
+        return Arrays.copyOf(mBuffer, length);
+    }
+
+    /**
+     * Read back a message that may be compressed.
+     * @param pMessage the envelope or the plain JSON message.
+     * @return the JSON message.
+     * @throws DataFormatException if the envelope is corrupt or in an unknown format.
+     */
+    public static byte[] decode(byte[] pMessage) throws DataFormatException {
+        if (pMessage.length == 0 || pMessage[0] != ENVELOPE_MAGIC) {
+            return pMessage;
+        }
+        if (pMessage.length < 2 || pMessage[1] != FORMAT_ZLIB_SCHEMA) {
+            throw new DataFormatException("Unknown compression format");
+        }
+        Inflater inflater = new Inflater();
+        try {
+            inflater.setInput(pMessage, 2, pMessage.length - 2);
+            ByteArrayOutputStream out = new ByteArrayOutputStream(pMessage.length * 4);
+            byte[] buffer = new byte[1024];
+            while (!inflater.finished()) {
+                int length = inflater.inflate(buffer);
+                if (length == 0) {
+                    if (inflater.needsDictionary()) {
+                        inflater.setDictionary(DICTIONARY);
+                    } else if (inflater.needsInput()) {
+                        throw new DataFormatException("Truncated message");
+                    }
+                }
+                out.write(buffer, 0, length);
+            }
+            return out.toByteArray();
+        } finally {
+            inflater.end();
+        }
+    }
+
+    /**
+     * The total size of the compressed messages before compression.
+     * @return the size in bytes.
+     */
+    public long getBytesIn() {
+        return mBytesIn.get();
+    }
+
+    /**
+     * The total size of the compressed messages after compression.
+     * @return the size in bytes.
+     */
+    public long getBytesOut() {
+        return mBytesOut.get();
+    }
+}
@@ -0,0 +1,120 @@
+package thilanka.org.companion;
+
+/**
+ * A perfect hash of a fixed set of ASCII keys (field names, enum names...): every key has its
+ * own slot, so a lookup is one multiplication and one comparison. Lookups work straight from the
+ * bytes of a message, with the hash computed while scanning them, so nothing is allocated.
+ *
+ * The hash of the bytes is the {@link String#hashCode()} of the same characters; the slot is the
+ * top bits of that hash times a multiplier, searched once when the table is built.
+ *
+ * @author Thilanka Munasinghe (thilankawillbe@gmail.com)
+ */
+public class PerfectHash {
+
+    /* The most multipliers tried per table size. */
+    private static final int MAX_TRIES = 10000;
+
+    /* The keys, by slot, or null for an empty slot. */
+    private final String[] mSlots;
+
+    /* The index of the key of each slot. */
+    private final int[] mIndexes;
+
+    /* The multiplier of the hash. */
+    private final int mMultiplier;
+
+    /* The number of bits of a slot. */
+    private final int mBits;
+
+    /**
+     * Build the table of the given keys.
+     * @param pKeys the keys, all distinct and ASCII.
+     */
+    public PerfectHash(String[] pKeys) {
+        int bits = 1;
+        while ((1 << bits) < pKeys.length) {
+            bits++;
+        }
+        while (true) {
+            int multiplier = 0x9e3779b1;
+            for (int i = 0; i < MAX_TRIES; i++, multiplier += 0x6a09e668) {
+                String[] slots = place(pKeys, multiplier | 1, bits);
+                if (slots != null) {
+                    mSlots = slots;
+                    mMultiplier = multiplier | 1;
+                    mBits = bits;
+                    mIndexes = new int[slots.length];
+                    for (int k = 0; k < pKeys.length; k++) {
+                        mIndexes[slot(pKeys[k].hashCode())] = k;
+                    }
+                    return;
+                }
+            }
+            bits++;
+        }
+    }
+
+    /**
+     * Build the table of the names of the given enum values.
+     * @param pValues the values, in ordinal order.
+     * @return the table, whose indexes are the ordinals.
+     */
+    public static PerfectHash of(Enum<?>[] pValues) {
+        String[] names = new String[pValues.length];
+        for (int i = 0; i < pValues.length; i++) {
+            names[i] = pValues[i].name();
+        }
+        return new PerfectHash(names);
+    }
+
+    /**
+     * Try to place every key in its own slot.
+     * @param pKeys
+     * @param pMultiplier
+     * @param pBits
+     * @return the slots, or null on a collision.
+     */
+    private static String[] place(String[] pKeys, int pMultiplier, int pBits) {
+        String[] slots = new String[1 << pBits];
+        for (String key : pKeys) {
+            int slot = (key.hashCode() * pMultiplier) >>> (32 - pBits);
+            if (slots[slot] != null) {
+                return null;
+            }
+            slots[slot] = key;
+        }
+        return slots;
+    }
+
+    /**
+     * The slot of a hash.
+     * @param pHash
+     * @return the slot.
+     */
+    private int slot(int pHash) {
+        return (pHash * mMultiplier) >>> (32 - mBits);
+    }
+
+    /**
+     * Look up a key from its bytes.
+     * @param pBytes
+     * @param pOffset
+     * @param pLength
+     * @param pHash the {@link String#hashCode()} of the bytes, as characters.
+     * @return the index of the key, or -1 if the bytes are not one of the keys.
+     */
+    public int indexOf(byte[] pBytes, int pOffset, int pLength, int pHash) {
+        int slot = slot(pHash);
+        String key = mSlots[slot];
+        if (key == null || key.length() != pLength) {
+            return -1;
+        }
+        for (int i = 0; i < pLength; i++) {
+            if (key.charAt(i) != pBytes[pOffset + i]) {
+                return -1;
+            }
+        }
+        return mIndexes[slot];
+    }
+}
@@ -0,0 +1,245 @@
+package thilanka.org.companion;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * A thread safe registry of open pins, usable from the messaging thread, the main thread and the
+ * peripheral callbacks at the same time.
+ *
+ * Lookups never lock: the name to pin map is concurrent, and the pin to name map used on every
+ * GPIO edge is an identity keyed snapshot that is replaced (copy on write) when the registry
+ * changes, which only happens on registration. Compound updates of one pin (close the old
+ * handle, open a new one, register it) are serialized with {@link #lockFor(String)}, whose locks
+ * are striped by pin name so that unrelated pins do not wait for each other.
+ *
+ * The names registered in any registry are also kept in a shared table, from which the decoder
+ * of the inbound commands takes the pin names instead of allocating a new string per command.
+ *
+ * @param <T> the type of the pin handle.
+ * @author Thilanka Munasinghe (thilankawillbe@gmail.com)
+ */
+public class PinRegistry<T> {
+
+    /* The number of lock stripes, a power of two. */
+    private static final int STRIPE_COUNT = 16;
+
+    /* The number of slots of the table of the names, a power of two. */
+    private static final int NAME_SLOTS = 512;
+
+    /* The most names kept in the table, so that it stays sparse. */
+    private static final int MAX_NAMES = NAME_SLOTS / 2;
+
+    /* The names ever registered, by hash (open addressing). Never modified once published. */
+    private static volatile String[] sNames = new String[NAME_SLOTS];
+
+    /* The number of names in the table. */
+    private static int sNameCount;
+
+    /* Serializes the replacement of the table of the names. */
+    private static final Object sNamesLock = new Object();
+
+    /* The pins by name. */
+    private final ConcurrentHashMap<String, T> mPinsByName = new ConcurrentHashMap<>();
+
+    /* The names by pin identity. Never modified once published. */
+    private volatile Map<T, String> mNamesByPin = new IdentityHashMap<>();
+
+    /* Serializes the replacement of the identity snapshot. */
+    private final Object mSnapshotLock = new Object();
+
+    /* The locks that serialize compound updates, striped by pin name. */
+    private final Object[] mStripes = new Object[STRIPE_COUNT];
+
+    /**
+     * The Constructor.
+     */
+    public PinRegistry() {
+        for (int i = 0; i < STRIPE_COUNT; i++) {
+            mStripes[i] = new Object();
+        }
+    }
+
+    /**
+     * The lock to hold while closing, opening and registering the pin by the given name.
+     * @param pName
+     * @return the stripe lock of the pin.
+     */
+    public Object lockFor(String pName) {
+        int hash = pName.hashCode();
+        return mStripes[(hash ^ (hash >>> 16)) & (STRIPE_COUNT - 1)];
+    }
+
+    /**
+     * Get the pin by the given name.
+     * @param pName
+     * @return the pin, or null if none is registered.
+     */
+    public T get(String pName) {
+        return mPinsByName.get(pName);
+    }
+
+    /**
+     * Whether a pin is registered by the given name.
+     * @param pName
+     * @return true if registered.
+     */
+    public boolean containsKey(String pName) {
+        return mPinsByName.containsKey(pName);
+    }
+
+    /**
+     * Get the name the given pin is registered by, comparing pins by identity.
+     * @param pPin
+     * @return the name, or null if the pin is not registered.
+     */
+    public String nameOf(T pPin) {
+        return mNamesByPin.get(pPin);
+    }
+
+    /**
+     * Register a pin, replacing any pin registered by the same name.
+     * @param pName
+     * @param pPin
+     * @return the pin previously registered by that name, or null.
+     */
+    public T put(String pName, T pPin) {
+        addName(pName);
+        T previous = mPinsByName.put(pName, pPin);
+        synchronized (mSnapshotLock) {
+            Map<T, String> namesByPin = new IdentityHashMap<>(mNamesByPin);
+            if (previous != null) {
+                namesByPin.remove(previous);
+            }
+            namesByPin.put(pPin, pName);
+            mNamesByPin = namesByPin;
+        }
+        return previous;
+    }
+
+    /**
+     * Add a name to the shared table, if it is not there yet and there is room.
+     * @param pName
+     */
+    private static void addName(String pName) {
+        if (find(sNames, pName) >= 0) {
+            return;
+        }
+        synchronized (sNamesLock) {
+            if (sNameCount >= MAX_NAMES || find(sNames, pName) >= 0) {
+                return;
+            }
+            String[] names = sNames.clone();
+            int slot = pName.hashCode() & (NAME_SLOTS - 1);
+            while (names[slot] != null) {
+                slot = (slot + 1) & (NAME_SLOTS - 1);
+            }
+            names[slot] = pName;
+            sNameCount++;
+            sNames = names;
+        }
+    }
+
+    /**
+     * The slot of a name in a table of the names.
+     * @param pNames
+     * @param pName
+     * @return the slot, or -1 if the name is not in the table.
+     */
+    private static int find(String[] pNames, String pName) {
+        int slot = pName.hashCode() & (NAME_SLOTS - 1);
+        for (String name; (name = pNames[slot]) != null; slot = (slot + 1) & (NAME_SLOTS - 1)) {
+            if (name.equals(pName)) {
+                return slot;
+            }
+        }
+        return -1;
+    }
+
+    /**
+     * The registered name spelled by the given ASCII bytes, if any pin was ever registered by it.
+     * @param pBytes
+     * @param pOffset
+     * @param pLength
+     * @param pHash the {@link String#hashCode()} of the bytes, as characters.
+     * @return the name, or null.
+     */
+    public static String internName(byte[] pBytes, int pOffset, int pLength, int pHash) {
+        String[] names = sNames;
+        int slot = pHash & (NAME_SLOTS - 1);
+        for (String name; (name = names[slot]) != null; slot = (slot + 1) & (NAME_SLOTS - 1)) {
+            if (name.length() == pLength && matches(name, pBytes, pOffset)) {
+                return name;
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Whether a name is spelled by the given bytes.
+     * @param pName
+     * @param pBytes
+     * @param pOffset
+     * @return true if every character matches.
+     */
+    private static boolean matches(String pName, byte[] pBytes, int pOffset) {
+        for (int i = 0; i < pName.length(); i++) {
+            if (pName.charAt(i) != pBytes[pOffset + i]) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Unregister the pin by the given name.
+     * @param pName
+     * @return the pin that was registered by that name, or null.
+     */
+    public T remove(String pName) {
+        T previous = mPinsByName.remove(pName);
+        if (previous != null) {
+            synchronized (mSnapshotLock) {
+                Map<T, String> namesByPin = new IdentityHashMap<>(mNamesByPin);
+                namesByPin.remove(previous);
+                mNamesByPin = namesByPin;
+            }
+        }
+        return previous;
+    }
+
+    /**
+     * Unregister all the pins.
+     * @return the pins that were registered.
+     */
+    public List<T> removeAll() {
+        List<T> removed = new ArrayList<>();
+        for (String name : mPinsByName.keySet()) {
+            T pin = remove(name);
+            if (pin != null) {
+                removed.add(pin);
+            }
+        }
+        return removed;
+    }
+
+    /**
+     * The registered pins. The view is weakly consistent and never throws while iterating.
+     * @return the pins.
+     */
+    public Collection<T> pins() {
+        return mPinsByName.values();
+    }
+
+    /**
+     * The registered pin names. The view is weakly consistent and never throws while iterating.
+     * @return the names.
+     */
+    public Collection<String> names() {
+        return mPinsByName.keySet();
+    }
+}
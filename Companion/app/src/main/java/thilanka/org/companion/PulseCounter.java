@@ -0,0 +1,208 @@
+package thilanka.org.companion;
+
+import android.os.Handler;
+import android.os.HandlerThread;
+import android.util.Log;
+
+import com.google.android.things.pio.Gpio;
+import com.google.android.things.pio.GpioCallback;
+
+import org.thilanka.device.pin.PinDirection;
+import org.thilanka.device.pin.PinProperty;
+import org.thilanka.messaging.domain.Action;
+import org.thilanka.messaging.domain.Payload;
+import org.thilanka.messaging.domain.PeripheralIO;
+
+import java.io.IOException;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Counts the pulses on GPIO inputs (flow meters, anemometers, encoders...) on the device, and
+ * only publishes the aggregated figures at a fixed interval. An edge costs an atomic increment
+ * and a timestamp; it is never forwarded on its own.
+ *
+ * Each report is a FREQUENCY payload whose double value is the pulse rate in Hz over the last
+ * interval, and whose label holds {@code count=..;delta=..;period_ms=..;last_period_ms=..}: the
+ * total count since registration, the count in the interval, the mean period in the interval and
+ * the period between the last two pulses.
+ *
+ * @author Thilanka Munasinghe (thilankawillbe@gmail.com)
+ */
+public class PulseCounter {
+
+    /* The Log Tag*/
+    private static final String TAG = PulseCounter.class.getSimpleName();
+
+    /* The default time between two reports. */
+    public static final long DEFAULT_REPORT_INTERVAL_MS = 1000;
+
+    /* The shortest time allowed between two reports. */
+    private static final long MIN_REPORT_INTERVAL_MS = 100;
+
+    /* The publisher of the reports */
+    private final MessagePublisher mPublisher;
+
+    /* The counted pins, by name. */
+    private final Map<String, Counter> mCounters = new ConcurrentHashMap<>();
+
+    /* Publishes the reports. */
+    private final ScheduledExecutorService mReporter = Executors
+            .newSingleThreadScheduledExecutor();
+
+    /* The thread the edge callbacks run on, kept off the main thread. Started on first use. */
+    private HandlerThread mEdgeThread;
+
+    /* The handler of the edge thread. */
+    private Handler mEdgeHandler;
+
+    /**
+     * The Constructor.
+     * @param pPublisher
+     */
+    public PulseCounter(MessagePublisher pPublisher) {
+        mPublisher = pPublisher;
+    }
+
+    /**
+     * Start counting the edges of the given (already opened) input pin. An existing counter by
+     * the same name is closed and replaced.
+     * @param pPinName
+     * @param pGpio
+     * @param pEdgeType the {@link Gpio} edge trigger type to count.
+     * @param pReportIntervalMs
+     * @throws IOException
+     */
+    public synchronized void register(String pPinName, Gpio pGpio, int pEdgeType,
+                                      long pReportIntervalMs) throws IOException {
+        unregister(pPinName);
+        if (mEdgeThread == null) {
+            mEdgeThread = new HandlerThread(TAG);
+            mEdgeThread.start();
+            mEdgeHandler = new Handler(mEdgeThread.getLooper());
+        }
+        long interval = Math.max(MIN_REPORT_INTERVAL_MS, pReportIntervalMs);
+        final Counter counter = new Counter(pPinName, pGpio);
+        pGpio.setEdgeTriggerType(pEdgeType);
+        pGpio.registerGpioCallback(mEdgeHandler, counter);
+        counter.mReportFuture = mReporter.scheduleAtFixedRate(new Runnable() {
+            @Override
+            public void run() {
+                report(counter);
+            }
+        }, interval, interval, TimeUnit.MILLISECONDS);
+        mCounters.put(pPinName, counter);
+        Log.d(TAG, "Counting pulses on " + pPinName + ", reporting every " + interval + " ms.");
+    }
+
+    /**
+     * Stop counting and close the pin by the given name.
+     * @param pPinName
+     * @return true if the pin was being counted.
+     */
+    public synchronized boolean unregister(String pPinName) {
+        Counter counter = mCounters.remove(pPinName);
+        if (counter == null) {
+            return false;
+        }
+        counter.mReportFuture.cancel(false);
+        counter.mGpio.unregisterGpioCallback(counter);
+        try {
+            counter.mGpio.close();
+        } catch (IOException e) {
+            Log.w(TAG, "Unable to close GPIO " + pPinName, e);
+        }
+        return true;
+    }
+
+    /**
+     * Stop counting on all the pins and close them.
+     */
+    public synchronized void close() {
+        for (String pinName : mCounters.keySet()) {
+            unregister(pinName);
+        }
+        if (mEdgeThread != null) {
+            mEdgeThread.quitSafely();
+            mEdgeThread = null;
+            mEdgeHandler = null;
+        }
+    }
+
+    /**
+     * Publish the figures of a counter for the interval that just ended.
+     * @param pCounter
+     */
+    private void report(Counter pCounter) {
+        long now = System.nanoTime();
+        long count = pCounter.mCount.get();
+        long lastEdge = pCounter.mLastEdgeNanos;
+        long previousEdge = pCounter.mPreviousEdgeNanos;
+
+        long delta = count - pCounter.mReportedCount;
+        double rate = delta * (double) TimeUnit.SECONDS.toNanos(1)
+                / (now - pCounter.mReportedAtNanos);
+        double meanPeriodMs = 0;
+        if (delta > 0 && pCounter.mReportedLastEdgeNanos != 0) {
+            meanPeriodMs = (lastEdge - pCounter.mReportedLastEdgeNanos) / 1e6 / delta;
+        }
+        double lastPeriodMs = previousEdge == 0 ? 0 : (lastEdge - previousEdge) / 1e6;
+
+        pCounter.mReportedCount = count;
+        pCounter.mReportedAtNanos = now;
+        pCounter.mReportedLastEdgeNanos = lastEdge;
+
+        Payload payload = new Payload();
+        payload.setPeripheralIO(PeripheralIO.GPIO);
+        payload.setAction(Action.EVENT);
+        payload.setName(pCounter.mName);
+        payload.setProperty(PinProperty.FREQUENCY);
+        payload.setDirection(PinDirection.IN);
+        payload.setDoubleValue(rate);
+        payload.setLabel("count=" + count + ";delta=" + delta + ";period_ms=" + meanPeriodMs
+                + ";last_period_ms=" + lastPeriodMs);
+
+        mPublisher.publish(payload);
+        mPublisher.publishState(payload);
+    }
+
+    /**
+     * The edge count of a pin. The edge fields are only written by the edge thread, the report
+     * fields only by the reporter thread.
+     */
+    private static class Counter implements GpioCallback {
+        private final String mName;
+        private final Gpio mGpio;
+        private final AtomicLong mCount = new AtomicLong();
+        private volatile long mLastEdgeNanos;
+        private volatile long mPreviousEdgeNanos;
+        private long mReportedCount;
+        private long mReportedAtNanos = System.nanoTime();
+        private long mReportedLastEdgeNanos;
+        private ScheduledFuture<?> mReportFuture;
+
+        Counter(String pName, Gpio pGpio) {
+            mName = pName;
+            mGpio = pGpio;
+        }
+
+        @Override
+        public boolean onGpioEdge(Gpio pGpio) {
+            long now = System.nanoTime();
+            mPreviousEdgeNanos = mLastEdgeNanos;
+            mLastEdgeNanos = now;
+            mCount.incrementAndGet();
+            return true;
+        }
+
+        @Override
+        public void onGpioError(Gpio pGpio, int pError) {
+            Log.w(TAG, mName + ": Error event " + pError);
+        }
+    }
+}
@@ -4,18 +4,20 @@ import android.util.Log;
 
 import com.google.android.things.pio.PeripheralManager;
 import com.google.android.things.pio.Pwm;
-import com.google.common.collect.BiMap;
-import com.google.common.collect.HashBiMap;
 
-import org.eclipse.paho.client.mqttv3.MqttClient;
 import org.thilanka.device.pin.PinProperty;
 import org.thilanka.device.pin.PinValue;
+import org.thilanka.messaging.domain.Action;
 import org.thilanka.messaging.domain.Payload;
+import org.thilanka.messaging.domain.PeripheralIO;
 
 import java.io.IOException;
+import java.util.List;
 
 /**
- * The logic that handles PWM related activities.
+ * The logic that handles PWM related activities. The GPIO lines named in messages labelled
+ * {@link #PWM_MODE_SOFT} are driven as software PWM by the {@link SoftPwmEngine}, as are all the
+ * later messages on them.
  *
  * @author Thilanka Munasinghe (thilankawillbe@gmail.com)
  */
@@ -24,8 +26,11 @@ public class PwmHandler {
     /* The Log Tag*/
     private static final String TAG = PwmHandler.class.getSimpleName();
 
-    /* The MQTT Client*/
-    private final MqttClient mMqttClient;
+    /* The label that requests a software PWM channel on a GPIO line. */
+    public static final String PWM_MODE_SOFT = "SOFT";
+
+    /* The publisher of the outbound messages */
+    private final MessagePublisher mPublisher;
 
     /* The Android Things Peripheral Manager */
     private final PeripheralManager mPeripheralManager;
@@ -34,22 +39,23 @@ public class PwmHandler {
     private final AndroidThingsActivity sParent;
 
     /* The PWM output pins */
-    private BiMap<String, Pwm> mPwmPinsMap;
+    private final PinRegistry<Pwm> mPwmPins = new PinRegistry<>();
+
+    /* The software PWM channels on GPIO lines */
+    private final SoftPwmEngine mSoftPwmEngine;
 
     /**
      * The Constructor.
      * @param pAndroidThingsActivity
-     * @param pMqttClient
+     * @param pPublisher
      * @param pPeripheralManagerService
      */
-    public PwmHandler(AndroidThingsActivity pAndroidThingsActivity, MqttClient pMqttClient,
+    public PwmHandler(AndroidThingsActivity pAndroidThingsActivity, MessagePublisher pPublisher,
                       PeripheralManager pPeripheralManagerService) {
-        mPwmPinsMap = HashBiMap.create();
-        mMqttClient = pMqttClient;
+        mPublisher = pPublisher;
         mPeripheralManager = pPeripheralManagerService;
         sParent = pAndroidThingsActivity;
-
-        Log.d(TAG, "Available PWM: " + mPeripheralManager.getPwmList());
+        mSoftPwmEngine = new SoftPwmEngine(pPeripheralManagerService, pPublisher);
     }
 
     /**
@@ -60,6 +66,15 @@ public class PwmHandler {
     public void handleMessage(Payload pPayload) throws IOException {
         Log.d(TAG, "Received a PWM Event triggered from App Inventor with payload " + pPayload);
         String pwmName = pPayload.getName();
+        if (PWM_MODE_SOFT.equalsIgnoreCase(pPayload.getLabel())) {
+            checkGpio(pwmName);
+            handleSoftPwmMessage(pPayload);
+            return;
+        }
+        if (isSoftPwm(pwmName)) {
+            handleSoftPwmMessage(pPayload);
+            return;
+        }
         Pwm pwm = openPwm(pwmName);
         PinProperty property = pPayload.getProperty();
         switch (property){
@@ -81,7 +96,138 @@ public class PwmHandler {
                 break;
             default:
                 Log.d(TAG, "Unknown PWM case : " + property);
+                return;
+        }
+        publishState(pPayload);
+    }
+
+    /**
+     * Handle the messages intended for a software PWM channel.
+     * @param pPayload
+     * @throws IOException
+     */
+    private void handleSoftPwmMessage(Payload pPayload) throws IOException {
+        String pwmName = pPayload.getName();
+        PinProperty property = pPayload.getProperty();
+        switch (property){
+            case PIN_STATE:
+                boolean enabled = (pPayload.getValue() == PinValue.HIGH);
+                mSoftPwmEngine.setEnabled(pwmName, enabled);
+                Log.d(TAG, "Set soft PWM " + pwmName + " enabled = " + enabled );
+                break;
+            case FREQUENCY:
+                mSoftPwmEngine.setFrequency(pPayload.getDoubleValue());
+                Log.d(TAG, "Set the frequency of all the soft PWMs = " + pPayload
+                        .getDoubleValue());
+                break;
+            case DUTY_CYCLE:
+                mSoftPwmEngine.setDutyCycle(pwmName, pPayload.getDoubleValue());
+                Log.d(TAG, "Set soft PWM " + pwmName + " duty cycle = " + pPayload
+                        .getDoubleValue());
+                break;
+            default:
+                Log.d(TAG, "Unknown PWM case : " + property);
+                return;
+        }
+        publishState(pPayload);
+    }
+
+    /**
+     * Whether the given name is driven as a software PWM channel, having been requested as one.
+     * @param pPwmName
+     * @return true for a software PWM channel.
+     */
+    private boolean isSoftPwm(String pPwmName) {
+        return mSoftPwmEngine.hasChannel(pPwmName);
+    }
+
+    /**
+     * Make sure a software PWM channel is requested on a GPIO line of the board.
+     * @param pPwmName
+     */
+    private void checkGpio(String pPwmName) {
+        List<String> gpios = mPeripheralManager.getGpioList();
+        if (gpios != null && !gpios.contains(pPwmName)) {
+            throw new IllegalArgumentException("No GPIO line " + pPwmName
+                    + " for a software PWM channel");
+        }
+    }
+
+    /**
+     * Close the hardware and software PWM channels.
+     */
+    public void closeOpenPwms() {
+        mSoftPwmEngine.close();
+        for (Pwm pwm : mPwmPins.removeAll()) {
+            try {
+                pwm.close();
+            } catch (IOException e) {
+                Log.w(TAG, "Unable to close PWM " + pwm.getName(), e);
+            }
+        }
+    }
+
+    /**
+     * Set the duty cycle of a PWM and enable it, opening it if it is not open yet.
+     * @param pPwmName
+     * @param pDutyCycle the duty cycle, in percent.
+     * @throws IOException
+     */
+    public void setDutyCycle(String pPwmName, double pDutyCycle) throws IOException {
+        if (isSoftPwm(pPwmName)) {
+            mSoftPwmEngine.setDutyCycle(pPwmName, pDutyCycle);
+            mSoftPwmEngine.setEnabled(pPwmName, true);
+        } else {
+            Pwm pwm = openPwm(pPwmName);
+            pwm.setPwmDutyCycle(pDutyCycle);
+            pwm.setEnabled(true);
         }
+        publishState(pPwmName, PinProperty.DUTY_CYCLE, null, pDutyCycle);
+        publishState(pPwmName, PinProperty.PIN_STATE, PinValue.HIGH, 0);
+    }
+
+    /**
+     * Enable or disable a PWM, opening it if it is not open yet.
+     * @param pPwmName
+     * @param pEnabled
+     * @throws IOException
+     */
+    public void setEnabled(String pPwmName, boolean pEnabled) throws IOException {
+        if (isSoftPwm(pPwmName)) {
+            mSoftPwmEngine.setEnabled(pPwmName, pEnabled);
+        } else {
+            openPwm(pPwmName).setEnabled(pEnabled);
+        }
+        publishState(pPwmName, PinProperty.PIN_STATE, pEnabled ? PinValue.HIGH : PinValue.LOW, 0);
+    }
+
+    /**
+     * Record the new state of a PWM, as requested by App Inventor, in its retained state topic.
+     * @param pPayload
+     */
+    private void publishState(Payload pPayload) {
+        publishState(pPayload.getName(), pPayload.getProperty(), pPayload.getValue(),
+                pPayload.getDoubleValue());
+    }
+
+    /**
+     * Record the new state of a PWM in its retained state topic.
+     * @param pPwmName
+     * @param pProperty
+     * @param pValue
+     * @param pDoubleValue
+     */
+    private void publishState(String pPwmName, PinProperty pProperty, PinValue pValue,
+                              double pDoubleValue) {
+        Payload payload = new Payload();
+        payload.setPeripheralIO(PeripheralIO.PWM);
+        payload.setAction(Action.EVENT);
+        payload.setName(pPwmName);
+        payload.setProperty(pProperty);
+        payload.setValue(pValue);
+        payload.setDoubleValue(pDoubleValue);
+
+        mPublisher.publishState(payload);
     }
 
     /**
@@ -91,13 +237,42 @@ public class PwmHandler {
      * @throws IOException
      */
     private Pwm openPwm(String pPwmName) throws IOException {
-        Pwm pwm;
-        if (mPwmPinsMap.containsKey(pPwmName)) {
-            pwm = mPwmPinsMap.get(pPwmName);
-        } else {
-            pwm = mPeripheralManager.openPwm(pPwmName);
-            mPwmPinsMap.put(pPwmName, pwm);
+        Pwm pwm = mPwmPins.get(pPwmName);
+        if (pwm == null) {
+            synchronized (mPwmPins.lockFor(pPwmName)) {
+                pwm = mPwmPins.get(pPwmName);
+                if (pwm == null) {
+                    pwm = mPeripheralManager.openPwm(pPwmName);
+                    mPwmPins.put(pPwmName, pwm);
+                }
+            }
         }
         return pwm;
     }
+
+    /**
+     * Reopen the handle of a PWM after failures, closing the open one if any. A PWM that is not
+     * open is only probed by opening and closing it.
+     * @param pPwmName
+     * @throws IOException if the PWM still cannot be opened.
+     */
+    public void reopen(String pPwmName) throws IOException {
+        if (isSoftPwm(pPwmName)) {
+            return;
+        }
+        synchronized (mPwmPins.lockFor(pPwmName)) {
+            Pwm pwm = mPwmPins.remove(pPwmName);
+            if (pwm == null) {
+                mPeripheralManager.openPwm(pPwmName).close();
+                return;
+            }
+            try {
+                pwm.close();
+            } catch (IOException e) {
+                Log.w(TAG, "Unable to close PWM " + pPwmName + ": " + e.getLocalizedMessage());
+            }
+            mPwmPins.put(pPwmName, mPeripheralManager.openPwm(pPwmName));
+        }
+        mPublisher.getShadow().invalidate(pPwmName);
+    }
 }
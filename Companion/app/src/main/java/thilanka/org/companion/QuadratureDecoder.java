@@ -0,0 +1,250 @@
+package thilanka.org.companion;
+
+import android.os.Handler;
+import android.os.HandlerThread;
+import android.util.Log;
+
+import com.google.android.things.pio.Gpio;
+import com.google.android.things.pio.GpioCallback;
+
+import org.thilanka.device.pin.PinDirection;
+import org.thilanka.messaging.domain.Action;
+import org.thilanka.messaging.domain.Payload;
+import org.thilanka.messaging.domain.PeripheralIO;
+
+import java.io.IOException;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Decodes rotary encoders wired to two GPIO inputs (A and B) on the device. Every edge on either
+ * line is decoded inside the GPIO callback with a transition lookup table into a position
+ * counter, and the position and velocity are published at a throttled rate instead of one
+ * message per edge.
+ *
+ * An encoder is named after its A pin. Each report has the position as the double value and
+ * {@code position=..;velocity=..;errors=..} as the label, where the velocity is in steps per
+ * second and errors counts the impossible transitions (both lines changed at once), which mean
+ * that edges were missed. Nothing is published while the encoder does not move.
+ *
+ * @author Thilanka Munasinghe (thilankawillbe@gmail.com)
+ */
+public class QuadratureDecoder {
+
+    /* The Log Tag*/
+    private static final String TAG = QuadratureDecoder.class.getSimpleName();
+
+    /* The default time between two reports. */
+    public static final long DEFAULT_REPORT_INTERVAL_MS = 100;
+
+    /* The shortest time allowed between two reports. */
+    private static final long MIN_REPORT_INTERVAL_MS = 20;
+
+    /*
+     * The position change for every (previous state, new state) pair, indexed by
+     * (previous << 2) | new, where a state is (A << 1) | B. Zero means no change, or an
+     * impossible transition when the two states differ in both bits.
+     */
+    private static final int[] TRANSITIONS = {
+            0, -1, 1, 0,
+            1, 0, 0, -1,
+            -1, 0, 0, 1,
+            0, 1, -1, 0
+    };
+
+    /* The publisher of the reports */
+    private final MessagePublisher mPublisher;
+
+    /* The encoders, by the name of their A pin. */
+    private final Map<String, Encoder> mEncoders = new ConcurrentHashMap<>();
+
+    /* Publishes the reports. */
+    private final ScheduledExecutorService mReporter = Executors
+            .newSingleThreadScheduledExecutor();
+
+    /* The thread all the encoder edges are decoded on. Started on first use. */
+    private HandlerThread mEdgeThread;
+
+    /* The handler of the edge thread. */
+    private Handler mEdgeHandler;
+
+    /**
+     * The Constructor.
+     * @param pPublisher
+     */
+    public QuadratureDecoder(MessagePublisher pPublisher) {
+        mPublisher = pPublisher;
+    }
+
+    /**
+     * Start decoding the encoder on the given (already opened) input pins. Any encoder using
+     * either pin is closed and replaced.
+     * @param pPinNameA
+     * @param pGpioA
+     * @param pPinNameB
+     * @param pGpioB
+     * @param pReportIntervalMs
+     * @throws IOException
+     */
+    public synchronized void register(String pPinNameA, Gpio pGpioA, String pPinNameB,
+                                      Gpio pGpioB, long pReportIntervalMs) throws IOException {
+        unregister(pPinNameA);
+        unregister(pPinNameB);
+        if (mEdgeThread == null) {
+            mEdgeThread = new HandlerThread(TAG);
+            mEdgeThread.start();
+            mEdgeHandler = new Handler(mEdgeThread.getLooper());
+        }
+        final Encoder encoder = new Encoder(pPinNameA, pGpioA, pPinNameB, pGpioB);
+        for (Gpio gpio : new Gpio[]{pGpioA, pGpioB}) {
+            gpio.setEdgeTriggerType(Gpio.EDGE_BOTH);
+        }
+        encoder.mState = encoder.readState();
+        pGpioA.registerGpioCallback(mEdgeHandler, encoder);
+        pGpioB.registerGpioCallback(mEdgeHandler, encoder);
+
+        long interval = Math.max(MIN_REPORT_INTERVAL_MS, pReportIntervalMs);
+        encoder.mReportFuture = mReporter.scheduleAtFixedRate(new Runnable() {
+            @Override
+            public void run() {
+                report(encoder);
+            }
+        }, interval, interval, TimeUnit.MILLISECONDS);
+        mEncoders.put(pPinNameA, encoder);
+        Log.d(TAG, "Decoding the encoder on " + pPinNameA + "/" + pPinNameB + ", reporting " +
+                "every " + interval + " ms.");
+    }
+
+    /**
+     * Stop decoding the encoder that uses the pin by the given name, and close both its pins.
+     * @param pPinName the name of either pin of the encoder.
+     * @return true if an encoder was using the pin.
+     */
+    public synchronized boolean unregister(String pPinName) {
+        Encoder encoder = mEncoders.remove(pPinName);
+        if (encoder == null) {
+            for (Encoder candidate : mEncoders.values()) {
+                if (candidate.mNameB.equals(pPinName)) {
+                    encoder = mEncoders.remove(candidate.mNameA);
+                    break;
+                }
+            }
+        }
+        if (encoder == null) {
+            return false;
+        }
+        encoder.mReportFuture.cancel(false);
+        for (Gpio gpio : new Gpio[]{encoder.mGpioA, encoder.mGpioB}) {
+            gpio.unregisterGpioCallback(encoder);
+            try {
+                gpio.close();
+            } catch (IOException e) {
+                Log.w(TAG, "Unable to close GPIO " + gpio, e);
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Stop decoding all the encoders and close their pins.
+     */
+    public synchronized void close() {
+        for (String pinName : mEncoders.keySet()) {
+            unregister(pinName);
+        }
+        if (mEdgeThread != null) {
+            mEdgeThread.quitSafely();
+            mEdgeThread = null;
+            mEdgeHandler = null;
+        }
+    }
+
+    /**
+     * Publish the position and velocity of an encoder, if it moved since the last report.
+     * @param pEncoder
+     */
+    private void report(Encoder pEncoder) {
+        long now = System.nanoTime();
+        long position = pEncoder.mPosition;
+        long moved = position - pEncoder.mReportedPosition;
+        if (moved == 0 && pEncoder.mReportedVelocity == 0) {
+            pEncoder.mReportedAtNanos = now;
+            return;
+        }
+        double velocity = moved * (double) TimeUnit.SECONDS.toNanos(1)
+                / (now - pEncoder.mReportedAtNanos);
+        pEncoder.mReportedPosition = position;
+        pEncoder.mReportedVelocity = velocity;
+        pEncoder.mReportedAtNanos = now;
+
+        Payload payload = new Payload();
+        payload.setPeripheralIO(PeripheralIO.GPIO);
+        payload.setAction(Action.EVENT);
+        payload.setName(pEncoder.mNameA);
+        payload.setDirection(PinDirection.IN);
+        payload.setDoubleValue(position);
+        payload.setLabel("position=" + position + ";velocity=" + velocity + ";errors="
+                + pEncoder.mErrors);
+
+        mPublisher.publish(payload);
+        mPublisher.publishState(payload);
+    }
+
+    /**
+     * An encoder. The decoding fields are only written by the edge thread, the report fields
+     * only by the reporter thread.
+     */
+    private static class Encoder implements GpioCallback {
+        private final String mNameA;
+        private final Gpio mGpioA;
+        private final String mNameB;
+        private final Gpio mGpioB;
+        private int mState;
+        private volatile long mPosition;
+        private volatile long mErrors;
+        private long mReportedPosition;
+        private double mReportedVelocity;
+        private long mReportedAtNanos = System.nanoTime();
+        private ScheduledFuture<?> mReportFuture;
+
+        Encoder(String pNameA, Gpio pGpioA, String pNameB, Gpio pGpioB) {
+            mNameA = pNameA;
+            mGpioA = pGpioA;
+            mNameB = pNameB;
+            mGpioB = pGpioB;
+        }
+
+        /**
+         * The current state of the two lines, (A << 1) | B.
+         */
+        private int readState() throws IOException {
+            return (mGpioA.getValue() ? 2 : 0) | (mGpioB.getValue() ? 1 : 0);
+        }
+
+        @Override
+        public boolean onGpioEdge(Gpio pGpio) {
+            try {
+                int state = readState();
+                int transition = (mState << 2) | state;
+                if (state != mState && TRANSITIONS[transition] == 0) {
+                    mErrors++;
+                } else {
+                    mPosition += TRANSITIONS[transition];
+                }
+                mState = state;
+            } catch (IOException e) {
+                Log.e(TAG, e.getLocalizedMessage());
+            }
+            return true;
+        }
+
+        @Override
+        public void onGpioError(Gpio pGpio, int pError) {
+            Log.w(TAG, mNameA + ": Error event " + pError);
+        }
+    }
+}
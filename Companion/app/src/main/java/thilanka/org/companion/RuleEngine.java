@@ -0,0 +1,320 @@
+package thilanka.org.companion;
+
+import android.util.Log;
+
+import org.thilanka.messaging.domain.Action;
+import org.thilanka.messaging.domain.Payload;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+
+/**
+ * Evaluates the rules uploaded by App Inventor directly on the device, so that an input change or
+ * a sensor threshold can drive an output without a round trip through the broker.
+ *
+ * Rules arrive on the rules topic as a payload whose name is the rule identifier and whose label
+ * is the rule itself. A REGISTER installs (or replaces) the rule and a SHUTDOWN removes it, or
+ * removes all the rules when no name is given. A rule looks like:
+ * <pre>
+ * GPIO BCM21 CHANGES -> GPIO BCM6 FOLLOW
+ * GPIO BCM21 HIGH -> GPIO BCM6 TOGGLE
+ * TEMPERATURE > 30.5 -> PWM PWM0 75
+ * TEMPERATURE < 28 -> PWM PWM0 OFF
+ * </pre>
+ * The installed rules are compiled into an immutable dispatch table, which the event path reads
+ * without locking.
+ *
+ * @author Thilanka Munasinghe (thilankawillbe@gmail.com)
+ */
+public class RuleEngine {
+
+    /* The Log Tag*/
+    private static final String TAG = RuleEngine.class.getSimpleName();
+
+    /* Separates the trigger from the action in a rule. */
+    private static final String RULE_SEPARATOR = "->";
+
+    /* The GPIO Handler that drives the GPIO outputs. */
+    private final GpioHandler mGpioHandler;
+
+    /* The PWM Handler that drives the PWM outputs. */
+    private final PwmHandler mPwmHandler;
+
+    /* The installed rules, by rule identifier. Only touched by the messaging thread. */
+    private final Map<String, Rule> mRules = new LinkedHashMap<>();
+
+    /* The compiled rules that the event path evaluates. */
+    private volatile DispatchTable mDispatchTable = new DispatchTable(mRules.values());
+
+    /* The previous temperature reading, to detect threshold crossings. */
+    private float mLastTemperature = Float.NaN;
+
+    /**
+     * The Constructor.
+     * @param pGpioHandler
+     * @param pPwmHandler
+     */
+    public RuleEngine(GpioHandler pGpioHandler, PwmHandler pPwmHandler) {
+        mGpioHandler = pGpioHandler;
+        mPwmHandler = pPwmHandler;
+    }
+
+    /**
+     * Handle the messages intended for the rule engine.
+     * @param pPayload
+     * @throws IllegalArgumentException if the rule to register is malformed.
+     */
+    public void handleMessage(Payload pPayload) {
+        Action messageType = pPayload.getAction();
+        String ruleId = pPayload.getName();
+        switch (messageType) {
+            case REGISTER:
+                Rule rule = Rule.parse(ruleId, pPayload.getLabel());
+                mRules.put(ruleId, rule);
+                Log.d(TAG, "Installed rule " + rule);
+                break;
+            case SHUTDOWN:
+                if (ruleId == null || ruleId.isEmpty()) {
+                    mRules.clear();
+                    Log.d(TAG, "Removed all the rules.");
+                } else if (mRules.remove(ruleId) != null) {
+                    Log.d(TAG, "Removed rule " + ruleId);
+                }
+                break;
+            default:
+                Log.d(TAG, "Message not supported!");
+                return;
+        }
+        mDispatchTable = new DispatchTable(mRules.values());
+    }
+
+    /**
+     * Evaluate the rules triggered by a GPIO input. Called inline from the edge path.
+     * @param pPinName
+     * @param pValue
+     */
+    public void onPinChanged(String pPinName, boolean pValue) {
+        Rule[] rules = mDispatchTable.mPinRules.get(pPinName);
+        if (rules == null) {
+            return;
+        }
+        for (Rule rule : rules) {
+            if (rule.mTrigger == Trigger.CHANGES
+                    || (rule.mTrigger == Trigger.HIGH) == pValue) {
+                execute(rule, pValue);
+            }
+        }
+    }
+
+    /**
+     * Evaluate the rules triggered by a temperature crossing a threshold. Called inline from the
+     * sensor path.
+     * @param pTemperature
+     */
+    public void onTemperature(float pTemperature) {
+        float previous = mLastTemperature;
+        mLastTemperature = pTemperature;
+        for (Rule rule : mDispatchTable.mTemperatureRules) {
+            boolean wasMet = !Float.isNaN(previous) && rule.isMet(previous);
+            if (!wasMet && rule.isMet(pTemperature)) {
+                execute(rule, true);
+            }
+        }
+    }
+
+    /**
+     * Perform the action of a rule.
+     * @param pRule
+     * @param pTriggerValue the state that the trigger entered.
+     */
+    private void execute(Rule pRule, boolean pTriggerValue) {
+        try {
+            switch (pRule.mOutput) {
+                case GPIO:
+                    if (pRule.mOutputAction == OutputAction.TOGGLE) {
+                        mGpioHandler.toggleOutputPin(pRule.mOutputName);
+                    } else {
+                        mGpioHandler.setOutputPin(pRule.mOutputName,
+                                pRule.mOutputAction.apply(pTriggerValue));
+                    }
+                    break;
+                case PWM:
+                    if (pRule.mOutputAction == OutputAction.LOW) {
+                        mPwmHandler.setEnabled(pRule.mOutputName, false);
+                    } else {
+                        mPwmHandler.setDutyCycle(pRule.mOutputName, pRule.mDutyCycle);
+                    }
+                    break;
+            }
+            Log.d(TAG, "Fired rule " + pRule.mId);
+        } catch (IOException e) {
+            Log.e(TAG, "Rule " + pRule.mId + " failed: " + e.getLocalizedMessage());
+        }
+    }
+
+    /* What makes a rule fire. */
+    private enum Trigger {
+        CHANGES, HIGH, LOW, ABOVE, BELOW
+    }
+
+    /* The kind of output a rule drives. */
+    private enum Output {
+        GPIO, PWM
+    }
+
+    /* What a rule does to its output. */
+    private enum OutputAction {
+        HIGH, LOW, FOLLOW, INVERT, TOGGLE;
+
+        boolean apply(boolean pTriggerValue) {
+            switch (this) {
+                case HIGH:
+                    return true;
+                case LOW:
+                    return false;
+                case INVERT:
+                    return !pTriggerValue;
+                default:
+                    return pTriggerValue;
+            }
+        }
+    }
+
+    /**
+     * A single parsed rule.
+     */
+    private static class Rule {
+        private final String mId;
+        private final String mText;
+        private Trigger mTrigger;
+        private String mInputName;
+        private float mThreshold;
+        private Output mOutput;
+        private String mOutputName;
+        private OutputAction mOutputAction;
+        private double mDutyCycle;
+
+        private Rule(String pId, String pText) {
+            mId = pId;
+            mText = pText;
+        }
+
+        /**
+         * Whether a temperature rule's condition holds for the given reading.
+         */
+        private boolean isMet(float pTemperature) {
+            return mTrigger == Trigger.ABOVE ? pTemperature > mThreshold
+                    : pTemperature < mThreshold;
+        }
+
+        /**
+         * Parse a rule.
+         * @param pId
+         * @param pText
+         * @return the parsed rule.
+         * @throws IllegalArgumentException if the rule is malformed.
+         */
+        static Rule parse(String pId, String pText) {
+            if (pId == null || pId.isEmpty() || pText == null) {
+                throw new IllegalArgumentException("A rule needs a name and a label.");
+            }
+            int separator = pText.indexOf(RULE_SEPARATOR);
+            if (separator < 0) {
+                throw new IllegalArgumentException("Missing " + RULE_SEPARATOR + " in " + pText);
+            }
+            String[] trigger = tokenize(pText.substring(0, separator));
+            String[] action = tokenize(pText.substring(separator + RULE_SEPARATOR.length()));
+            Rule rule = new Rule(pId, pText.trim());
+
+            if (trigger.length == 3 && trigger[0].equals("GPIO")) {
+                rule.mInputName = trigger[1];
+                rule.mTrigger = Trigger.valueOf(trigger[2]);
+                if (rule.mTrigger == Trigger.ABOVE || rule.mTrigger == Trigger.BELOW) {
+                    throw new IllegalArgumentException("Bad GPIO trigger in " + pText);
+                }
+            } else if (trigger.length == 3 && trigger[0].equals("TEMPERATURE")) {
+                rule.mTrigger = trigger[1].equals(">") || trigger[1].equals("ABOVE")
+                        ? Trigger.ABOVE : trigger[1].equals("<") || trigger[1].equals("BELOW")
+                        ? Trigger.BELOW : null;
+                if (rule.mTrigger == null) {
+                    throw new IllegalArgumentException("Bad comparison in " + pText);
+                }
+                rule.mThreshold = Float.parseFloat(trigger[2]);
+            } else {
+                throw new IllegalArgumentException("Bad trigger in " + pText);
+            }
+
+            if (action.length != 3) {
+                throw new IllegalArgumentException("Bad action in " + pText);
+            }
+            rule.mOutput = Output.valueOf(action[0]);
+            rule.mOutputName = action[1];
+            if (rule.mOutput == Output.PWM) {
+                if (action[2].equals("OFF")) {
+                    rule.mOutputAction = OutputAction.LOW;
+                } else {
+                    rule.mOutputAction = OutputAction.HIGH;
+                    rule.mDutyCycle = Double.parseDouble(action[2]);
+                }
+            } else {
+                rule.mOutputAction = OutputAction.valueOf(action[2]);
+            }
+            return rule;
+        }
+
+        /**
+         * Split a rule fragment into upper case words, keeping pin names as they were given.
+         */
+        private static String[] tokenize(String pFragment) {
+            String[] tokens = pFragment.trim().split("\\s+");
+            tokens[0] = tokens[0].toUpperCase(Locale.US);
+            for (int i = 2; i < tokens.length; i++) {
+                tokens[i] = tokens[i].toUpperCase(Locale.US);
+            }
+            return tokens;
+        }
+
+        @Override
+        public String toString() {
+            return mId + " [" + mText + "]";
+        }
+    }
+
+    /**
+     * The immutable, pre-indexed view of the installed rules.
+     */
+    private static class DispatchTable {
+
+        /* The GPIO rules by input pin name. */
+        private final Map<String, Rule[]> mPinRules = new HashMap<>();
+
+        /* The temperature rules. */
+        private final Rule[] mTemperatureRules;
+
+        DispatchTable(Iterable<Rule> pRules) {
+            Map<String, List<Rule>> pinRules = new HashMap<>();
+            List<Rule> temperatureRules = new ArrayList<>();
+            for (Rule rule : pRules) {
+                if (rule.mInputName == null) {
+                    temperatureRules.add(rule);
+                    continue;
+                }
+                List<Rule> rules = pinRules.get(rule.mInputName);
+                if (rules == null) {
+                    rules = new ArrayList<>();
+                    pinRules.put(rule.mInputName, rules);
+                }
+                rules.add(rule);
+            }
+            for (Map.Entry<String, List<Rule>> entry : pinRules.entrySet()) {
+                mPinRules.put(entry.getKey(), entry.getValue().toArray(new Rule[0]));
+            }
+            mTemperatureRules = temperatureRules.toArray(new Rule[0]);
+        }
+    }
+}
@@ -0,0 +1,247 @@
+package thilanka.org.companion;
+
+import android.util.Log;
+
+import org.thilanka.messaging.domain.Action;
+import org.thilanka.messaging.domain.Payload;
+
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Counts the interest of the clients in the sampled channels (the temperature sensor, the polled
+ * input pins...), so that a channel is only sampled while someone listens to it.
+ *
+ * The clients take leases on the lease sub-topic of the subscribe topic, the name being the
+ * channel: REGISTER takes or renews the lease of the client (by the {@code mClientId} of the
+ * message) for {@code ttl_ms=..} (30 seconds by default), SHUTDOWN gives it back. A channel is
+ * demand driven once it was leased: when its last lease expires or is given back, its sampling
+ * is suspended (the sensor driver closed, the pin no longer read) until the next lease. The
+ * channels never leased are sampled as before. Each suspension and resumption is published on the
+ * lease sub-topic of the publish topic as {@code leases=..;sampling=on|off}.
+ *
+ * The suspensions and resumptions run one at a time, in order, on the thread of the leases.
+ *
+ * @author Thilanka Munasinghe (thilankawillbe@gmail.com)
+ */
+public class SamplingLeases {
+
+    /**
+     * A channel that can stop and restart sampling. Both calls must do nothing if the channel is
+     * already in that state, or was not started by its handler.
+     */
+    public interface Channel {
+        void resume();
+
+        void suspend();
+    }
+
+    /* The Log Tag*/
+    private static final String TAG = SamplingLeases.class.getSimpleName();
+
+    /* The sub-topic the leases are taken on and the sampling changes published on. */
+    public static final String LEASE_SERVICE = "lease";
+
+    /* The default and the longest time to live of a lease. */
+    private static final long DEFAULT_TTL_MS = 30000;
+    private static final long MAX_TTL_MS = TimeUnit.MINUTES.toMillis(10);
+
+    /* How often the expired leases are looked for. */
+    private static final long SWEEP_PERIOD_MS = 1000;
+
+    /* The holder of the leases taken without a client ID. */
+    private static final String ANONYMOUS_CLIENT = "*";
+
+    /* The publisher of the sampling changes */
+    private final MessagePublisher mPublisher;
+
+    /* The leased channels, by name. */
+    private final Map<String, LeasedChannel> mChannels = new HashMap<>();
+
+    /* Expires the leases and runs the suspensions and resumptions. */
+    private final ScheduledExecutorService mExecutor = Executors.newSingleThreadScheduledExecutor();
+
+    /**
+     * The Constructor.
+     * @param pPublisher
+     */
+    public SamplingLeases(MessagePublisher pPublisher) {
+        mPublisher = pPublisher;
+        mExecutor.scheduleAtFixedRate(new Runnable() {
+            @Override
+            public void run() {
+                expire(System.nanoTime());
+            }
+        }, SWEEP_PERIOD_MS, SWEEP_PERIOD_MS, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Handle the messages intended for the leases.
+     * @param pCommand
+     */
+    public void handleMessage(Command pCommand) {
+        Action messageType = pCommand.getAction();
+        String client = pCommand.getClientId() != null ? pCommand.getClientId()
+                : ANONYMOUS_CLIENT;
+        switch (messageType) {
+            case REGISTER:
+                long ttl = LabelOptions.parse(pCommand.getLabel()).getLong("ttl_ms",
+                        DEFAULT_TTL_MS);
+                if (ttl <= 0 || ttl > MAX_TTL_MS) {
+                    throw new IllegalArgumentException("Bad lease time to live " + ttl);
+                }
+                acquire(pCommand.getName(), client, ttl);
+                break;
+            case SHUTDOWN:
+                release(pCommand.getName(), client);
+                break;
+            default:
+                Log.d(TAG, "Message not supported!");
+                break;
+        }
+    }
+
+    /**
+     * Attach the sampling of a channel to its leases. Replaces any channel by the same name.
+     * @param pName
+     * @param pChannel
+     * @return whether the channel should be sampled now.
+     */
+    public synchronized boolean attach(String pName, Channel pChannel) {
+        LeasedChannel channel = getChannel(pName);
+        channel.mChannel = pChannel;
+        return channel.isWanted();
+    }
+
+    /**
+     * Whether a channel should be sampled now.
+     * @param pName
+     * @return false if the channel was leased and all its leases are gone.
+     */
+    public synchronized boolean isWanted(String pName) {
+        LeasedChannel channel = mChannels.get(pName);
+        return channel == null || channel.isWanted();
+    }
+
+    /**
+     * Take or renew a lease.
+     * @param pName
+     * @param pClient
+     * @param pTtlMs
+     */
+    private synchronized void acquire(String pName, String pClient, long pTtlMs) {
+        LeasedChannel channel = getChannel(pName);
+        boolean wanted = channel.isWanted();
+        channel.mLeased = true;
+        channel.mLeases.put(pClient, System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(pTtlMs));
+        if (!wanted) {
+            changed(channel);
+        }
+    }
+
+    /**
+     * Give a lease back.
+     * @param pName
+     * @param pClient
+     */
+    private synchronized void release(String pName, String pClient) {
+        LeasedChannel channel = mChannels.get(pName);
+        if (channel != null && channel.mLeases.remove(pClient) != null
+                && channel.mLeases.isEmpty()) {
+            changed(channel);
+        }
+    }
+
+    /**
+     * Drop the expired leases.
+     * @param pNow
+     */
+    private synchronized void expire(long pNow) {
+        for (LeasedChannel channel : mChannels.values()) {
+            if (channel.mLeases.isEmpty()) {
+                continue;
+            }
+            Iterator<Long> iterator = channel.mLeases.values().iterator();
+            while (iterator.hasNext()) {
+                if (iterator.next() - pNow <= 0) {
+                    iterator.remove();
+                }
+            }
+            if (channel.mLeases.isEmpty()) {
+                Log.d(TAG, "The last lease on " + channel.mName + " expired.");
+                changed(channel);
+            }
+        }
+    }
+
+    private LeasedChannel getChannel(String pName) {
+        LeasedChannel channel = mChannels.get(pName);
+        if (channel == null) {
+            channel = new LeasedChannel(pName);
+            mChannels.put(pName, channel);
+        }
+        return channel;
+    }
+
+    /**
+     * Suspend or resume a channel whose leases went from none to some or back, on the thread
+     * of the leases, and publish the change.
+     * @param pChannel
+     */
+    private void changed(LeasedChannel pChannel) {
+        final Channel channel = pChannel.mChannel;
+        final boolean wanted = pChannel.isWanted();
+        Payload payload = new Payload();
+        payload.setName(pChannel.mName);
+        payload.setLabel("leases=" + pChannel.mLeases.size() + ";sampling=" + (wanted ? "on"
+                : "off"));
+        mPublisher.publish(AndroidThingsActivity.getPublishTopic(LEASE_SERVICE), payload);
+        if (channel == null) {
+            return;
+        }
+        mExecutor.execute(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    if (wanted) {
+                        channel.resume();
+                    } else {
+                        channel.suspend();
+                    }
+                } catch (RuntimeException e) {
+                    Log.e(TAG, "Unable to " + (wanted ? "resume" : "suspend") + " sampling: "
+                            + e.getLocalizedMessage());
+                }
+            }
+        });
+    }
+
+    /**
+     * Stop expiring the leases. The channels are left as they are.
+     */
+    public void shutdown() {
+        mExecutor.shutdownNow();
+    }
+
+    /**
+     * The leases on a channel. Guarded by the leases.
+     */
+    private static class LeasedChannel {
+        private final String mName;
+        private final Map<String, Long> mLeases = new HashMap<>();
+        private boolean mLeased;
+        private Channel mChannel;
+
+        LeasedChannel(String pName) {
+            mName = pName;
+        }
+
+        private boolean isWanted() {
+            return !mLeased || !mLeases.isEmpty();
+        }
+    }
+}
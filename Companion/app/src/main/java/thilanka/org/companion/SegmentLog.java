@@ -0,0 +1,663 @@
+package thilanka.org.companion;
+
+import android.util.Log;
+
+import org.thilanka.messaging.domain.Action;
+import org.thilanka.messaging.domain.Payload;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * A durable log of every input edge and sensor sample, kept on the device across reboots for a
+ * later bulk upload.
+ *
+ * The log is a directory of append only segment files, named after the epoch millisecond of
+ * their first record. The active segment is memory mapped and preallocated; it is sealed
+ * (truncated to its used size) when it is full. A segment starts with a header (magic, version,
+ * flags, base time) followed by records: a channel record (type, id, name) the first time a
+ * channel appears in the segment, and an 11 byte sample record (type, channel id, time offset
+ * from the base in ms, float value). A zero type byte ends the segment.
+ *
+ * The callers only enqueue the samples. The mapped writes, the periodic flush, the retention
+ * (age and total size), the compaction of the old segments (dropping the samples that repeat the
+ * previous value of their channel) and the exports all run on a single writer thread, so no file
+ * I/O ever happens on the GPIO or sensor threads. When the queue is full, samples are dropped
+ * and counted rather than blocking.
+ *
+ * A MONITOR on the export topic streams the records of the range {@code from=<ms>;to=<ms>}
+ * (optionally only the channels of the payload name) as chunks on the same sub-topic of the
+ * publish topic. Each chunk has an {@code mRecords} array of {@code time,channel,value} rows and
+ * {@code seq=..;count=..;last=0|1} as the label.
+ *
+ * @author Thilanka Munasinghe (thilankawillbe@gmail.com)
+ */
+public class SegmentLog {
+
+    /* The Log Tag*/
+    private static final String TAG = SegmentLog.class.getSimpleName();
+
+    /* The sub-topic the export requests and chunks are on. */
+    public static final String EXPORT_SERVICE = "export";
+
+    /* The size of a segment file while it is active. */
+    private static final int SEGMENT_SIZE = 1 << 20;
+
+    /* The extension of the segment files. */
+    private static final String SEGMENT_SUFFIX = ".seg";
+
+    /* The first bytes of a segment, "ATLG". */
+    private static final int MAGIC = 0x41544c47;
+
+    /* The version of the record format. */
+    private static final byte VERSION = 1;
+
+    /* The header flag of the segments that have been compacted. */
+    private static final byte FLAG_COMPACTED = 1;
+
+    /* The size of the segment header: magic, version, flags and base time. */
+    private static final int HEADER_SIZE = 4 + 1 + 1 + 8;
+
+    /* The record types. */
+    private static final byte RECORD_END = 0;
+    private static final byte RECORD_CHANNEL = 1;
+    private static final byte RECORD_SAMPLE = 2;
+
+    /* The size of a sample record. */
+    private static final int SAMPLE_SIZE = 1 + 2 + 4 + 4;
+
+    /* How long the records are kept. */
+    private static final long RETENTION_MS = TimeUnit.DAYS.toMillis(7);
+
+    /* The most disk space used by the log. */
+    private static final long MAX_BYTES = 64L << 20;
+
+    /* The age after which the segments are compacted. */
+    private static final long COMPACT_AFTER_MS = TimeUnit.DAYS.toMillis(1);
+
+    /* How often the active segment is forced to disk. */
+    private static final long FLUSH_INTERVAL_MS = 5000;
+
+    /* How often the retention and the compaction run. */
+    private static final long MAINTENANCE_INTERVAL_MS = TimeUnit.HOURS.toMillis(1);
+
+    /* The most samples waiting for the writer thread. */
+    private static final int QUEUE_CAPACITY = 4096;
+
+    /* The number of records in an export chunk. */
+    private static final int EXPORT_CHUNK_RECORDS = 200;
+
+    /* The most records exported by one request. */
+    private static final int MAX_EXPORT_RECORDS = 50000;
+
+    /* The encoding of the channel names. */
+    private static final Charset UTF_8 = Charset.forName("UTF-8");
+
+    /* The directory of the segment files. */
+    private final File mDirectory;
+
+    /* The publisher of the export chunks */
+    private final MessagePublisher mPublisher;
+
+    /* The samples waiting for the writer thread. */
+    private final ArrayBlockingQueue<Sample> mQueue = new ArrayBlockingQueue<>(QUEUE_CAPACITY);
+
+    /* Whether a drain of the queue is already scheduled. */
+    private final AtomicBoolean mDrainScheduled = new AtomicBoolean();
+
+    /* The number of samples dropped because the queue was full. */
+    private final AtomicLong mDropped = new AtomicLong();
+
+    /* The thread that does all the file I/O. */
+    private final ScheduledExecutorService mWriter = Executors.newSingleThreadScheduledExecutor();
+
+    /* The active segment file. Only used on the writer thread, like all the fields below. */
+    private RandomAccessFile mActiveFile;
+
+    /* The mapping of the active segment. */
+    private MappedByteBuffer mActive;
+
+    /* The base time of the active segment. */
+    private long mActiveBase;
+
+    /* The ids of the channels in the active segment. */
+    private final Map<String, Integer> mActiveChannels = new HashMap<>();
+
+    /* Whether the active segment has writes that are not forced to disk yet. */
+    private boolean mDirty;
+
+    /**
+     * Receives the records read back from a segment.
+     */
+    private interface Visitor {
+        /**
+         * Called for every sample, in the order of the segment.
+         * @param pTime
+         * @param pChannel
+         * @param pValue
+         * @return false to stop reading.
+         */
+        boolean visit(long pTime, String pChannel, float pValue);
+    }
+
+    /**
+     * The Constructor. The directory is only touched from the writer thread.
+     * @param pDirectory
+     * @param pPublisher
+     */
+    public SegmentLog(File pDirectory, MessagePublisher pPublisher) {
+        mDirectory = pDirectory;
+        mPublisher = pPublisher;
+        mWriter.scheduleWithFixedDelay(new Runnable() {
+            @Override
+            public void run() {
+                flush();
+            }
+        }, FLUSH_INTERVAL_MS, FLUSH_INTERVAL_MS, TimeUnit.MILLISECONDS);
+        mWriter.scheduleWithFixedDelay(new Runnable() {
+            @Override
+            public void run() {
+                maintain();
+            }
+        }, 0, MAINTENANCE_INTERVAL_MS, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Log the value of a pin or sensor payload, timestamped now. Never blocks.
+     * @param pPayload
+     */
+    public void append(Payload pPayload) {
+        Sample sample = new Sample(System.currentTimeMillis(),
+                TelemetryFilter.channelKey(pPayload.getName(), pPayload.getProperty()),
+                (float) TelemetryFilter.valueOf(pPayload));
+        if (!mQueue.offer(sample)) {
+            mDropped.incrementAndGet();
+            return;
+        }
+        if (mDrainScheduled.compareAndSet(false, true)) {
+            try {
+                mWriter.execute(mDrain);
+            } catch (RuntimeException e) {
+                /* Closed. */
+                mDrainScheduled.set(false);
+            }
+        }
+    }
+
+    /**
+     * Handle the export requests. The range is checked here, so that a bad request is
+     * acknowledged as such, and exported later on the writer thread.
+     * @param pPayload
+     * @throws IllegalArgumentException if the range is not numbers, or is empty.
+     */
+    public void handleMessage(final Payload pPayload) {
+        Action messageType = pPayload.getAction();
+        switch (messageType) {
+            case MONITOR:
+                LabelOptions options = LabelOptions.parse(pPayload.getLabel());
+                final long from = options.getLong("from", 0);
+                final long to = options.getLong("to", Long.MAX_VALUE);
+                if (from > to) {
+                    throw new IllegalArgumentException("Bad export range " + options);
+                }
+                mWriter.execute(new Runnable() {
+                    @Override
+                    public void run() {
+                        export(pPayload, from, to);
+                    }
+                });
+                break;
+            default:
+                Log.d(TAG, "Message not supported!");
+                break;
+        }
+    }
+
+    /**
+     * Write the queued samples, seal the active segment and stop the writer thread.
+     */
+    public void close() {
+        mWriter.execute(new Runnable() {
+            @Override
+            public void run() {
+                mDrain.run();
+                seal();
+            }
+        });
+        mWriter.shutdown();
+    }
+
+    /* Writes the queued samples to the active segment. */
+    private final Runnable mDrain = new Runnable() {
+        @Override
+        public void run() {
+            mDrainScheduled.set(false);
+            Sample sample;
+            while ((sample = mQueue.poll()) != null) {
+                try {
+                    write(sample);
+                } catch (IOException e) {
+                    Log.e(TAG, "Unable to log a sample: " + e.getLocalizedMessage());
+                    seal();
+                }
+            }
+            long dropped = mDropped.getAndSet(0);
+            if (dropped > 0) {
+                Log.w(TAG, "Dropped " + dropped + " samples, the log could not keep up.");
+            }
+        }
+    };
+
+    /**
+     * Write a sample to the active segment, rolling to a new segment if needed.
+     * @param pSample
+     * @throws IOException
+     */
+    private void write(Sample pSample) throws IOException {
+        long offset = pSample.mTime - mActiveBase;
+        if (mActive != null && (offset > Integer.MAX_VALUE || offset < Integer.MIN_VALUE)) {
+            seal();
+        }
+        Integer id = mActive == null ? null : mActiveChannels.get(pSample.mChannel);
+        byte[] name = id == null ? pSample.mChannel.getBytes(UTF_8) : null;
+        int needed = SAMPLE_SIZE + 1 + (name == null ? 0 : 1 + 2 + 1 + name.length);
+        if (mActive != null && mActive.remaining() < needed) {
+            seal();
+            name = pSample.mChannel.getBytes(UTF_8);
+        }
+        if (mActive == null) {
+            openSegment(pSample.mTime);
+            id = null;
+        }
+        if (id == null) {
+            if (name.length > 255) {
+                name = Arrays.copyOf(name, 255);
+            }
+            id = mActiveChannels.size();
+            mActiveChannels.put(pSample.mChannel, id);
+            mActive.put(RECORD_CHANNEL);
+            mActive.putShort(id.shortValue());
+            mActive.put((byte) name.length);
+            mActive.put(name);
+        }
+        mActive.put(RECORD_SAMPLE);
+        mActive.putShort(id.shortValue());
+        mActive.putInt((int) (pSample.mTime - mActiveBase));
+        mActive.putFloat(pSample.mValue);
+        mDirty = true;
+        if (mActiveChannels.size() >= Short.MAX_VALUE) {
+            seal();
+        }
+    }
+
+    /**
+     * Create and map a new active segment.
+     * @param pBaseTime
+     * @throws IOException
+     */
+    private void openSegment(long pBaseTime) throws IOException {
+        if (!mDirectory.isDirectory() && !mDirectory.mkdirs()) {
+            throw new IOException("Unable to create " + mDirectory);
+        }
+        File file = new File(mDirectory, pBaseTime + SEGMENT_SUFFIX);
+        while (file.exists()) {
+            pBaseTime++;
+            file = new File(mDirectory, pBaseTime + SEGMENT_SUFFIX);
+        }
+        mActiveFile = new RandomAccessFile(file, "rw");
+        mActiveFile.setLength(SEGMENT_SIZE);
+        mActive = mActiveFile.getChannel().map(FileChannel.MapMode.READ_WRITE, 0, SEGMENT_SIZE);
+        mActive.putInt(MAGIC);
+        mActive.put(VERSION);
+        mActive.put((byte) 0);
+        mActive.putLong(pBaseTime);
+        mActiveBase = pBaseTime;
+        mActiveChannels.clear();
+        mDirty = true;
+        Log.d(TAG, "Opened segment " + file.getName());
+    }
+
+    /**
+     * Force the active segment to disk, truncate it to its used size and close it.
+     */
+    private void seal() {
+        if (mActive == null) {
+            return;
+        }
+        try {
+            mActive.force();
+            int used = mActive.position();
+            if (used < SEGMENT_SIZE) {
+                mActive.put(RECORD_END);
+                used++;
+            }
+            mActive = null;
+            mActiveFile.getChannel().truncate(used);
+            mActiveFile.close();
+        } catch (IOException e) {
+            Log.e(TAG, "Unable to seal the active segment: " + e.getLocalizedMessage());
+        }
+        mActive = null;
+        mActiveFile = null;
+        mActiveChannels.clear();
+        mDirty = false;
+    }
+
+    /**
+     * Force the pending writes of the active segment to disk.
+     */
+    private void flush() {
+        if (mActive != null && mDirty) {
+            mActive.force();
+            mDirty = false;
+        }
+    }
+
+    /**
+     * Apply the retention and compact the old segments.
+     */
+    private void maintain() {
+        List<File> segments = listSegments();
+        long now = System.currentTimeMillis();
+        long total = 0;
+        for (File segment : segments) {
+            total += segment.length();
+        }
+        /* The last listed segment may be the active one, which is never removed here. */
+        for (int i = 0; i < segments.size() - 1; i++) {
+            File segment = segments.get(i);
+            /* All the records of a segment are older than the base of the next one. */
+            long end = baseTimeOf(segments.get(i + 1));
+            if (end < now - RETENTION_MS || total > MAX_BYTES) {
+                total -= segment.length();
+                if (!segment.delete()) {
+                    Log.w(TAG, "Unable to delete " + segment);
+                }
+            } else if (end < now - COMPACT_AFTER_MS) {
+                compact(segment);
+            }
+        }
+    }
+
+    /**
+     * Rewrite a sealed segment without the samples that repeat the previous value of their
+     * channel.
+     * @param pSegment
+     */
+    private void compact(File pSegment) {
+        ByteBuffer source;
+        try {
+            source = map(pSegment);
+        } catch (IOException e) {
+            Log.w(TAG, "Unable to read " + pSegment + ": " + e.getLocalizedMessage());
+            return;
+        }
+        if (source.limit() < HEADER_SIZE || source.getInt(0) != MAGIC
+                || (source.get(5) & FLAG_COMPACTED) != 0) {
+            return;
+        }
+        final ByteBuffer target = ByteBuffer.allocate(source.limit() + 1);
+        target.putInt(MAGIC);
+        target.put(VERSION);
+        target.put(FLAG_COMPACTED);
+        final long base = source.getLong(6);
+        target.putLong(base);
+        final Map<String, Integer> ids = new HashMap<>();
+        final Map<String, Float> lastValues = new HashMap<>();
+        final int[] kept = new int[2];
+        read(source, new Visitor() {
+            @Override
+            public boolean visit(long pTime, String pChannel, float pValue) {
+                kept[1]++;
+                Float last = lastValues.put(pChannel, pValue);
+                if (last != null && last == pValue) {
+                    return true;
+                }
+                Integer id = ids.get(pChannel);
+                if (id == null) {
+                    id = ids.size();
+                    ids.put(pChannel, id);
+                    byte[] name = pChannel.getBytes(UTF_8);
+                    target.put(RECORD_CHANNEL);
+                    target.putShort(id.shortValue());
+                    target.put((byte) name.length);
+                    target.put(name);
+                }
+                target.put(RECORD_SAMPLE);
+                target.putShort(id.shortValue());
+                target.putInt((int) (pTime - base));
+                target.putFloat(pValue);
+                kept[0]++;
+                return true;
+            }
+        });
+        target.put(RECORD_END);
+
+        File temporary = new File(mDirectory, pSegment.getName() + ".tmp");
+        try {
+            FileOutputStream out = new FileOutputStream(temporary);
+            try {
+                out.write(target.array(), 0, target.position());
+                out.getFD().sync();
+            } finally {
+                out.close();
+            }
+            if (!temporary.renameTo(pSegment)) {
+                throw new IOException("Unable to replace " + pSegment);
+            }
+            Log.d(TAG, "Compacted " + pSegment.getName() + ": kept " + kept[0] + " of "
+                    + kept[1] + " samples.");
+        } catch (IOException e) {
+            Log.w(TAG, "Unable to compact " + pSegment + ": " + e.getLocalizedMessage());
+            temporary.delete();
+        }
+    }
+
+    /**
+     * Stream the requested range as chunks.
+     * @param pPayload
+     * @param pFrom the first time exported, in ms.
+     * @param pTo the last time exported, in ms.
+     */
+    private void export(final Payload pPayload, final long pFrom, final long pTo) {
+        mDrain.run();
+        String name = pPayload.getName();
+        final String prefix = name == null || name.isEmpty() ? null : name + "/";
+        final List<String> records = new ArrayList<>(EXPORT_CHUNK_RECORDS);
+        final int[] counts = new int[2];
+
+        Visitor exporter = new Visitor() {
+            @Override
+            public boolean visit(long pTime, String pChannel, float pValue) {
+                if (pTime < pFrom || pTime > pTo
+                        || (prefix != null && !pChannel.startsWith(prefix))) {
+                    return true;
+                }
+                records.add(pTime + "," + pChannel + "," + pValue);
+                if (records.size() == EXPORT_CHUNK_RECORDS) {
+                    publishChunk(pPayload, counts[0]++, records, false);
+                }
+                return ++counts[1] < MAX_EXPORT_RECORDS;
+            }
+        };
+        List<File> segments = listSegments();
+        for (int i = 0; i < segments.size() && counts[1] < MAX_EXPORT_RECORDS; i++) {
+            File segment = segments.get(i);
+            if (baseTimeOf(segment) > pTo
+                    || (i + 1 < segments.size() && baseTimeOf(segments.get(i + 1)) < pFrom)) {
+                continue;
+            }
+            try {
+                if (mActive != null && baseTimeOf(segment) == mActiveBase) {
+                    ByteBuffer active = mActive.duplicate();
+                    active.flip();
+                    read(active, exporter);
+                } else {
+                    read(map(segment), exporter);
+                }
+            } catch (IOException e) {
+                Log.w(TAG, "Unable to read " + segment + ": " + e.getLocalizedMessage());
+            }
+        }
+        publishChunk(pPayload, counts[0], records, true);
+        Log.d(TAG, "Exported " + counts[1] + " records in " + (counts[0] + 1) + " chunks.");
+    }
+
+    /**
+     * Publish a chunk of exported records and clear them.
+     * @param pRequest
+     * @param pSequence
+     * @param pRecords
+     * @param pLast
+     */
+    private void publishChunk(Payload pRequest, int pSequence, List<String> pRecords,
+                              boolean pLast) {
+        Chunk chunk = new Chunk();
+        chunk.setRequestId(Command.requestIdOf(pRequest));
+        chunk.setAction(Action.EVENT);
+        chunk.setName(EXPORT_SERVICE);
+        chunk.setDoubleValue(pRecords.size());
+        chunk.setLabel("seq=" + pSequence + ";count=" + pRecords.size() + ";last="
+                + (pLast ? 1 : 0));
+        chunk.mRecords = pRecords.toArray(new String[pRecords.size()]);
+        pRecords.clear();
+        mPublisher.publish(OutboundScheduler.PriorityClass.BULK,
+                AndroidThingsActivity.getPublishTopic(EXPORT_SERVICE), chunk, false);
+    }
+
+    /**
+     * Read the samples of a segment.
+     * @param pSegment the segment, positioned anywhere.
+     * @param pVisitor
+     */
+    private static void read(ByteBuffer pSegment, Visitor pVisitor) {
+        if (pSegment.limit() < HEADER_SIZE || pSegment.getInt(0) != MAGIC
+                || pSegment.get(4) != VERSION) {
+            Log.w(TAG, "Skipping a segment in an unknown format.");
+            return;
+        }
+        long base = pSegment.getLong(6);
+        List<String> channels = new ArrayList<>();
+        pSegment.position(HEADER_SIZE);
+        while (pSegment.hasRemaining()) {
+            byte type = pSegment.get();
+            if (type == RECORD_CHANNEL && pSegment.remaining() >= 3) {
+                int id = pSegment.getShort();
+                byte[] name = new byte[pSegment.get() & 0xff];
+                if (pSegment.remaining() < name.length) {
+                    return;
+                }
+                pSegment.get(name);
+                while (channels.size() <= id) {
+                    channels.add(null);
+                }
+                channels.set(id, new String(name, UTF_8));
+            } else if (type == RECORD_SAMPLE && pSegment.remaining() >= SAMPLE_SIZE - 1) {
+                int id = pSegment.getShort();
+                long time = base + pSegment.getInt();
+                float value = pSegment.getFloat();
+                String channel = id < channels.size() ? channels.get(id) : null;
+                if (channel != null && !pVisitor.visit(time, channel, value)) {
+                    return;
+                }
+            } else {
+                /* The end of the segment, or a torn write after a crash. */
+                return;
+            }
+        }
+    }
+
+    /**
+     * Map a segment file for reading.
+     * @param pSegment
+     * @return the mapping.
+     * @throws IOException
+     */
+    private static ByteBuffer map(File pSegment) throws IOException {
+        RandomAccessFile file = new RandomAccessFile(pSegment, "r");
+        try {
+            return file.getChannel().map(FileChannel.MapMode.READ_ONLY, 0, file.length());
+        } finally {
+            file.close();
+        }
+    }
+
+    /**
+     * The segment files, oldest first.
+     * @return the segments.
+     */
+    private List<File> listSegments() {
+        File[] files = mDirectory.listFiles();
+        List<File> segments = new ArrayList<>();
+        if (files == null) {
+            return segments;
+        }
+        for (File file : files) {
+            if (file.getName().endsWith(SEGMENT_SUFFIX) && baseTimeOf(file) >= 0) {
+                segments.add(file);
+            }
+        }
+        Collections.sort(segments, new Comparator<File>() {
+            @Override
+            public int compare(File pFirst, File pSecond) {
+                return Long.compare(baseTimeOf(pFirst), baseTimeOf(pSecond));
+            }
+        });
+        return segments;
+    }
+
+    /**
+     * The base time of a segment, from its file name.
+     * @param pSegment
+     * @return the base time, or -1 if the name is not a segment name.
+     */
+    private static long baseTimeOf(File pSegment) {
+        String name = pSegment.getName();
+        try {
+            return Long.parseLong(name.substring(0, name.length() - SEGMENT_SUFFIX.length()));
+        } catch (NumberFormatException e) {
+            return -1;
+        }
+    }
+
+    /**
+     * A sample waiting for the writer thread.
+     */
+    private static class Sample {
+        private final long mTime;
+        private final String mChannel;
+        private final float mValue;
+
+        Sample(long pTime, String pChannel, float pValue) {
+            mTime = pTime;
+            mChannel = pChannel;
+            mValue = pValue;
+        }
+    }
+
+    /**
+     * A chunk of an export, a command reply with the exported records.
+     */
+    private static class Chunk extends Command {
+        private String[] mRecords;
+    }
+}
@@ -0,0 +1,166 @@
+package thilanka.org.companion;
+
+import java.nio.ByteBuffer;
+
+/**
+ * A fixed size ring of the most recent (timestamp, value) samples of one channel.
+ *
+ * The samples are stored off heap in a direct {@link ByteBuffer} split into blocks, and the
+ * oldest block is overwritten when the newest one is full. Within a block, the first sample only
+ * stores its value (its timestamp is in the block index), the second one the delta from the
+ * first timestamp, and the others the delta of the deltas, as zigzag varints: samples at a
+ * steady rate take one byte of timestamp. Values are stored as 4 byte floats.
+ *
+ * All the methods are synchronized; an append is a handful of buffer writes.
+ *
+ * @author Thilanka Munasinghe (thilankawillbe@gmail.com)
+ */
+public class SeriesBuffer {
+
+    /* The size of a block, in bytes. */
+    private static final int BLOCK_SIZE = 512;
+
+    /* The number of blocks in the ring. */
+    private static final int BLOCK_COUNT = 8;
+
+    /* The largest record: a 10 byte varint and a float. */
+    private static final int MAX_RECORD_SIZE = 14;
+
+    /* The memory used by a series, in bytes. */
+    public static final int CAPACITY_BYTES = BLOCK_SIZE * BLOCK_COUNT;
+
+    /* The encoded samples. */
+    private final ByteBuffer mBuffer = ByteBuffer.allocateDirect(CAPACITY_BYTES);
+
+    /* The timestamp of the first sample of each block. */
+    private final long[] mBlockFirstTime = new long[BLOCK_COUNT];
+
+    /* The timestamp of the last sample of each block. */
+    private final long[] mBlockLastTime = new long[BLOCK_COUNT];
+
+    /* The number of samples in each block. */
+    private final int[] mBlockCount = new int[BLOCK_COUNT];
+
+    /* The number of bytes used in each block. */
+    private final int[] mBlockLength = new int[BLOCK_COUNT];
+
+    /* The block being written. */
+    private int mCurrentBlock;
+
+    /* The delta between the last two timestamps of the block being written. */
+    private long mLastDelta;
+
+    /**
+     * Receives the samples read back from a series.
+     */
+    public interface Visitor {
+        /**
+         * Called for every sample, oldest first.
+         * @param pTime
+         * @param pValue
+         */
+        void visit(long pTime, float pValue);
+    }
+
+    /**
+     * Append a sample. Timestamps that go backwards are clamped to the last one.
+     * @param pTime
+     * @param pValue
+     */
+    public synchronized void append(long pTime, float pValue) {
+        int block = mCurrentBlock;
+        if (mBlockLength[block] + MAX_RECORD_SIZE > BLOCK_SIZE) {
+            block = (block + 1) % BLOCK_COUNT;
+            mCurrentBlock = block;
+            mBlockCount[block] = 0;
+            mBlockLength[block] = 0;
+        }
+        int position = block * BLOCK_SIZE + mBlockLength[block];
+        int count = mBlockCount[block];
+        if (count == 0) {
+            mBlockFirstTime[block] = pTime;
+            mBlockLastTime[block] = pTime;
+        } else {
+            long time = Math.max(pTime, mBlockLastTime[block]);
+            long delta = time - mBlockLastTime[block];
+            position = writeVarint(position, count == 1 ? delta : delta - mLastDelta);
+            mLastDelta = delta;
+            mBlockLastTime[block] = time;
+        }
+        mBuffer.putFloat(position, pValue);
+        mBlockLength[block] = position + 4 - block * BLOCK_SIZE;
+        mBlockCount[block] = count + 1;
+    }
+
+    /**
+     * Read back the samples in the given time range, oldest first.
+     * @param pFrom the first timestamp, inclusive.
+     * @param pTo the last timestamp, inclusive.
+     * @param pVisitor
+     */
+    public synchronized void read(long pFrom, long pTo, Visitor pVisitor) {
+        for (int i = 1; i <= BLOCK_COUNT; i++) {
+            int block = (mCurrentBlock + i) % BLOCK_COUNT;
+            if (mBlockCount[block] == 0 || mBlockLastTime[block] < pFrom
+                    || mBlockFirstTime[block] > pTo) {
+                continue;
+            }
+            int position = block * BLOCK_SIZE;
+            long time = mBlockFirstTime[block];
+            long delta = 0;
+            for (int n = 0; n < mBlockCount[block]; n++) {
+                if (n > 0) {
+                    long varint = 0;
+                    int shift = 0;
+                    byte b;
+                    do {
+                        b = mBuffer.get(position++);
+                        varint |= (long) (b & 0x7f) << shift;
+                        shift += 7;
+                    } while ((b & 0x80) != 0);
+                    long decoded = (varint >>> 1) ^ -(varint & 1);
+                    delta = n == 1 ? decoded : delta + decoded;
+                    time += delta;
+                }
+                float value = mBuffer.getFloat(position);
+                position += 4;
+                if (time > pTo) {
+                    break;
+                }
+                if (time >= pFrom) {
+                    pVisitor.visit(time, value);
+                }
+            }
+        }
+    }
+
+    /**
+     * The timestamp of the oldest sample still in the ring.
+     * @return the timestamp, or Long.MAX_VALUE if the series is empty.
+     */
+    public synchronized long getOldestTime() {
+        long oldest = Long.MAX_VALUE;
+        for (int block = 0; block < BLOCK_COUNT; block++) {
+            if (mBlockCount[block] > 0) {
+                oldest = Math.min(oldest, mBlockFirstTime[block]);
+            }
+        }
+        return oldest;
+    }
+
+    /**
+     * Write a signed value as a zigzag varint.
+     * @param pPosition
+     * @param pValue
+     * @return the position after the varint.
+     */
+    private int writeVarint(int pPosition, long pValue) {
+        long zigzag = (pValue << 1) ^ (pValue >> 63);
+        while ((zigzag & ~0x7fL) != 0) {
+            mBuffer.put(pPosition++, (byte) ((zigzag & 0x7f) | 0x80));
+            zigzag >>>= 7;
+        }
+        mBuffer.put(pPosition++, (byte) zigzag);
+        return pPosition;
+    }
+}
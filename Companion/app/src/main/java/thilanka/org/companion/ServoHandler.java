@@ -0,0 +1,377 @@
+package thilanka.org.companion;
+
+import android.os.SystemClock;
+import android.util.Log;
+
+import com.google.android.things.contrib.driver.pwmservo.Servo;
+
+import org.thilanka.messaging.domain.Action;
+import org.thilanka.messaging.domain.Payload;
+import org.thilanka.messaging.domain.PeripheralIO;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Drives hobby servos on PWM channels by angle, with the contrib servo driver, instead of App
+ * Inventor computing the duty cycles. Every servo has its own calibration, and a move of
+ * several servos is interpolated on the device so that they all arrive at the same moment.
+ *
+ * The messages are on the servo sub-topic of the subscribe topic, the name being the PWM
+ * channel:
+ * <ul>
+ *     <li>REGISTER opens the servo, with the optional calibration {@code min_pulse_ms=..;
+ *     max_pulse_ms=..;min_angle=..;max_angle=..;frequency=..} (1 ms, 2 ms, 0, 180 and 50 Hz by
+ *     default) and the starting {@code angle=..} (the middle of the range by default).</li>
+ *     <li>EVENT moves the named servo to the angle in the double value, or, with
+ *     {@code targets=PWM0:90,PWM1:45}, moves all the listed servos together. The move takes
+ *     {@code duration_ms=..}, or is as long as the largest angle change needs at
+ *     {@code speed=..} degrees per second; without either it is immediate. With
+ *     {@code easing=smooth} the servos speed up and slow down instead of moving at a constant
+ *     speed.</li>
+ *     <li>SHUTDOWN stops and closes the servo.</li>
+ * </ul>
+ * The angle of each servo is recorded in its state topic at the end of each move.
+ *
+ * @author Thilanka Munasinghe (thilankawillbe@gmail.com)
+ */
+public class ServoHandler {
+
+    /* The Log Tag*/
+    private static final String TAG = ServoHandler.class.getSimpleName();
+
+    /* The sub-topic the servo messages are received on. */
+    public static final String SERVO_SERVICE = "servo";
+
+    /* The label of the servo states. */
+    private static final String ANGLE_LABEL = "angle";
+
+    /* The default calibration of a servo. */
+    private static final double DEFAULT_MIN_PULSE_MS = 1;
+    private static final double DEFAULT_MAX_PULSE_MS = 2;
+    private static final double DEFAULT_MIN_ANGLE = 0;
+    private static final double DEFAULT_MAX_ANGLE = 180;
+
+    /* The time between two steps of a move, one servo period at 50 Hz. */
+    private static final long STEP_MS = 20;
+
+    /* The easing that speeds up and slows down. */
+    private static final String EASING_SMOOTH = "smooth";
+
+    /* The publisher of the servo states */
+    private final MessagePublisher mPublisher;
+
+    /* Guards the servos and the moves. */
+    private final Object mLock = new Object();
+
+    /* The servos, by PWM channel name. */
+    private final Map<String, ServoChannel> mServos = new LinkedHashMap<>();
+
+    /* Steps the moves in progress. */
+    private final ScheduledExecutorService mStepper = Executors.newSingleThreadScheduledExecutor();
+
+    /* The stepping task, or null when nothing moves. */
+    private ScheduledFuture<?> mStepping;
+
+    /**
+     * The Constructor.
+     * @param pPublisher
+     */
+    public ServoHandler(MessagePublisher pPublisher) {
+        mPublisher = pPublisher;
+    }
+
+    /**
+     * Handle the messages intended for the servos.
+     * @param pPayload
+     * @throws IOException
+     */
+    public void handleMessage(Payload pPayload) throws IOException {
+        Action messageType = pPayload.getAction();
+        switch (messageType) {
+            case REGISTER:
+                register(pPayload.getName(), LabelOptions.parse(pPayload.getLabel()));
+                break;
+            case EVENT:
+                move(pPayload);
+                break;
+            case SHUTDOWN:
+                close(pPayload.getName());
+                break;
+            default:
+                Log.d(TAG, "Message not supported!");
+                break;
+        }
+    }
+
+    /**
+     * Open and calibrate a servo, replacing any servo on the same channel.
+     * @param pName
+     * @param pOptions
+     * @throws IOException
+     */
+    private void register(String pName, LabelOptions pOptions) throws IOException {
+        double minAngle = pOptions.getDouble("min_angle", DEFAULT_MIN_ANGLE);
+        double maxAngle = pOptions.getDouble("max_angle", DEFAULT_MAX_ANGLE);
+        double minPulse = pOptions.getDouble("min_pulse_ms", DEFAULT_MIN_PULSE_MS);
+        double maxPulse = pOptions.getDouble("max_pulse_ms", DEFAULT_MAX_PULSE_MS);
+        if (minAngle >= maxAngle || minPulse >= maxPulse || minPulse <= 0) {
+            throw new IllegalArgumentException("Bad servo calibration " + pOptions);
+        }
+        synchronized (mLock) {
+            close(pName);
+            Servo servo = new Servo(pName, pOptions.getDouble("frequency",
+                    Servo.DEFAULT_FREQUENCY));
+            try {
+                servo.setPulseDurationRange(minPulse, maxPulse);
+                servo.setAngleRange(minAngle, maxAngle);
+                ServoChannel channel = new ServoChannel(pName, servo, minAngle, maxAngle);
+                channel.setAngle(pOptions.getDouble("angle", (minAngle + maxAngle) / 2));
+                servo.setEnabled(true);
+                mServos.put(pName, channel);
+                publishState(channel);
+            } catch (IOException | RuntimeException e) {
+                servo.close();
+                throw e;
+            }
+        }
+        Log.d(TAG, "Registered the servo " + pName + " " + pOptions);
+    }
+
+    /**
+     * Start moving one servo, or several together.
+     * @param pPayload
+     * @throws IOException
+     */
+    private void move(Payload pPayload) throws IOException {
+        LabelOptions options = LabelOptions.parse(pPayload.getLabel());
+        synchronized (mLock) {
+            List<ServoChannel> channels = new ArrayList<>();
+            List<Double> targets = new ArrayList<>();
+            if (options.has("targets")) {
+                for (String target : options.getString("targets", "").split(",")) {
+                    int colon = target.lastIndexOf(':');
+                    if (colon <= 0) {
+                        throw new IllegalArgumentException("Bad servo target " + target);
+                    }
+                    channels.add(getServo(target.substring(0, colon).trim()));
+                    targets.add(Double.parseDouble(target.substring(colon + 1).trim()));
+                }
+            } else {
+                channels.add(getServo(pPayload.getName()));
+                targets.add(pPayload.getDoubleValue());
+            }
+
+            /* The longest way decides the duration when a speed is given. */
+            double longest = 0;
+            for (int i = 0; i < channels.size(); i++) {
+                ServoChannel channel = channels.get(i);
+                targets.set(i, channel.clamp(targets.get(i)));
+                longest = Math.max(longest, Math.abs(targets.get(i) - channel.mAngle));
+            }
+            long duration = options.getLong("duration_ms", 0);
+            double speed = options.getDouble("speed", 0);
+            if (!options.has("duration_ms") && speed > 0) {
+                duration = (long) Math.ceil(longest / speed * 1000);
+            }
+            boolean smooth = EASING_SMOOTH.equalsIgnoreCase(options.getString("easing", null));
+
+            long start = SystemClock.elapsedRealtime();
+            for (int i = 0; i < channels.size(); i++) {
+                ServoChannel channel = channels.get(i);
+                if (duration <= 0) {
+                    channel.mMoving = false;
+                    channel.setAngle(targets.get(i));
+                    publishState(channel);
+                } else {
+                    channel.startMove(targets.get(i), start, duration, smooth);
+                }
+            }
+            if (duration > 0 && mStepping == null) {
+                mStepping = mStepper.scheduleAtFixedRate(mStep, 0, STEP_MS,
+                        TimeUnit.MILLISECONDS);
+            }
+        }
+    }
+
+    /* Moves every moving servo one step along its way. */
+    private final Runnable mStep = new Runnable() {
+        @Override
+        public void run() {
+            long now = SystemClock.elapsedRealtime();
+            synchronized (mLock) {
+                boolean moving = false;
+                for (ServoChannel channel : mServos.values()) {
+                    if (!channel.mMoving) {
+                        continue;
+                    }
+                    try {
+                        if (channel.step(now)) {
+                            moving = true;
+                        } else {
+                            publishState(channel);
+                        }
+                    } catch (IOException e) {
+                        Log.e(TAG, "Unable to move the servo " + channel.mName + ": "
+                                + e.getLocalizedMessage());
+                        channel.mMoving = false;
+                    }
+                }
+                if (!moving && mStepping != null) {
+                    mStepping.cancel(false);
+                    mStepping = null;
+                }
+            }
+        }
+    };
+
+    /**
+     * The registered servo by the given name.
+     * @param pName
+     * @return the servo.
+     */
+    private ServoChannel getServo(String pName) {
+        ServoChannel channel = mServos.get(pName);
+        if (channel == null) {
+            throw new IllegalArgumentException("No servo registered as " + pName);
+        }
+        return channel;
+    }
+
+    /**
+     * Record the angle of a servo in its state topic.
+     * @param pChannel
+     */
+    private void publishState(ServoChannel pChannel) {
+        Payload payload = new Payload();
+        payload.setPeripheralIO(PeripheralIO.PWM);
+        payload.setAction(Action.EVENT);
+        payload.setName(pChannel.mName);
+        payload.setLabel(ANGLE_LABEL);
+        payload.setDoubleValue(pChannel.mAngle);
+        mPublisher.publishState(payload);
+    }
+
+    /**
+     * Stop and close the servo by the given name, if any.
+     * @param pName
+     */
+    private void close(String pName) {
+        synchronized (mLock) {
+            ServoChannel channel = mServos.remove(pName);
+            if (channel != null) {
+                channel.close();
+            }
+        }
+    }
+
+    /**
+     * Stop and close all the servos.
+     */
+    public void closeAll() {
+        synchronized (mLock) {
+            Iterator<ServoChannel> iterator = mServos.values().iterator();
+            while (iterator.hasNext()) {
+                iterator.next().close();
+                iterator.remove();
+            }
+        }
+        mStepper.shutdownNow();
+    }
+
+    /**
+     * A servo, its calibration and its move in progress. Guarded by the handler lock.
+     */
+    private static class ServoChannel {
+        private final String mName;
+        private final Servo mServo;
+        private final double mMinAngle;
+        private final double mMaxAngle;
+        private double mAngle;
+        private boolean mMoving;
+        private double mFrom;
+        private double mTo;
+        private long mStart;
+        private long mDuration;
+        private boolean mSmooth;
+
+        ServoChannel(String pName, Servo pServo, double pMinAngle, double pMaxAngle) {
+            mName = pName;
+            mServo = pServo;
+            mMinAngle = pMinAngle;
+            mMaxAngle = pMaxAngle;
+        }
+
+        /**
+         * Limit an angle to the range of the servo.
+         * @param pAngle
+         * @return the angle within the range.
+         */
+        private double clamp(double pAngle) {
+            return Math.max(mMinAngle, Math.min(mMaxAngle, pAngle));
+        }
+
+        /**
+         * Set the angle now.
+         * @param pAngle
+         * @throws IOException
+         */
+        private void setAngle(double pAngle) throws IOException {
+            mAngle = clamp(pAngle);
+            mServo.setAngle(mAngle);
+        }
+
+        /**
+         * Start a move from the current angle, replacing any move in progress.
+         * @param pTo
+         * @param pStart
+         * @param pDuration
+         * @param pSmooth
+         */
+        private void startMove(double pTo, long pStart, long pDuration, boolean pSmooth) {
+            mFrom = mAngle;
+            mTo = pTo;
+            mStart = pStart;
+            mDuration = pDuration;
+            mSmooth = pSmooth;
+            mMoving = true;
+        }
+
+        /**
+         * Move to where the servo should be at the given time.
+         * @param pNow
+         * @return false once the move is over.
+         * @throws IOException
+         */
+        private boolean step(long pNow) throws IOException {
+            double progress = Math.min(1, (double) (pNow - mStart) / mDuration);
+            if (mSmooth) {
+                progress = progress * progress * (3 - 2 * progress);
+            }
+            setAngle(mFrom + (mTo - mFrom) * progress);
+            mMoving = progress < 1;
+            return mMoving;
+        }
+
+        /**
+         * Disable and close the servo, ignoring the failures.
+         */
+        private void close() {
+            mMoving = false;
+            try {
+                mServo.setEnabled(false);
+                mServo.close();
+            } catch (IOException e) {
+                Log.w(TAG, "Unable to close the servo " + mName + ": " + e.getLocalizedMessage());
+            }
+        }
+    }
+}
@@ -0,0 +1,321 @@
+package thilanka.org.companion;
+
+import android.util.Log;
+
+import org.thilanka.device.pin.PinDirection;
+import org.thilanka.device.pin.PinProperty;
+import org.thilanka.messaging.domain.Action;
+import org.thilanka.messaging.domain.Payload;
+import org.thilanka.messaging.domain.PeripheralIO;
+
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * A versioned shadow of the board: for every pin, PWM and sensor property, the state last
+ * reported by the device and the state last desired by a client command. Every change of a
+ * reported state takes the next reported version, every change of a desired state the next
+ * desired version, so a client that kept the versions it last saw can catch up after a
+ * reconnect with only the entries that changed since.
+ *
+ * A MONITOR on the shadow sub-topic of the subscribe topic, with the version vector
+ * {@code epoch=..;reported=..;desired=..} the client last received, is answered on the shadow
+ * sub-topic of the publish topic with the entries newer than these versions, in chunks with
+ * {@code mReported} and {@code mDesired} arrays of payloads and the label
+ * {@code epoch=..;reported=..;desired=..;full=0|1;seq=..;last=0|1} carrying the new vector. The
+ * reported states that were invalidated since (the handle of their peripheral having been
+ * reopened) are listed as tombstones in the {@code mRemoved} array, by name, or name and
+ * property ({@code BCM4/PIN_STATE}), for the client to forget them. A client without a vector,
+ * or with the epoch of an earlier run of the device, gets every entry and no tombstones, and
+ * starts over from them.
+ *
+ * An output command whose state is already both desired and reported is not run again, so a
+ * client replaying its commands after a reconnect only touches the pins that changed.
+ *
+ * @author Thilanka Munasinghe (thilankawillbe@gmail.com)
+ */
+public class ShadowState {
+
+    /* The Log Tag*/
+    private static final String TAG = ShadowState.class.getSimpleName();
+
+    /* The sub-topic the resynchronizations are requested and answered on. */
+    public static final String SHADOW_SERVICE = "shadow";
+
+    /* The most entries in the shadow. */
+    private static final int MAX_ENTRIES = 512;
+
+    /* The most entries in a chunk of an answer. */
+    private static final int CHUNK_ENTRIES = 64;
+
+    /* The publisher of the answers */
+    private final MessagePublisher mPublisher;
+
+    /* Identifies this run of the device, the versions starting over with every run. */
+    private final String mEpoch = Long.toString(System.currentTimeMillis(), 36);
+
+    /* The entries, by channel. */
+    private final Map<String, Entry> mEntries = new LinkedHashMap<>();
+
+    /* The last versions given. */
+    private long mReportedVersion;
+    private long mDesiredVersion;
+
+    /**
+     * The Constructor.
+     * @param pPublisher
+     */
+    public ShadowState(MessagePublisher pPublisher) {
+        mPublisher = pPublisher;
+    }
+
+    /**
+     * The channel of a state, as in the retained state topics.
+     * @param pPayload
+     * @return the name and the property, or just the name without a property.
+     */
+    private static String keyOf(Payload pPayload) {
+        return pPayload.getProperty() == null ? pPayload.getName()
+                : pPayload.getName() + "/" + pPayload.getProperty();
+    }
+
+    /**
+     * Whether a command sets the state of an output and nothing else, so that its state can be
+     * compared with the shadow.
+     * @param pPayload
+     * @return true for the plain output commands.
+     */
+    private static boolean isOutputCommand(Payload pPayload) {
+        if (pPayload.getAction() != Action.EVENT || pPayload.getName() == null
+                || !Command.DEFAULT_LABEL.equals(pPayload.getLabel())) {
+            return false;
+        }
+        PinProperty property = pPayload.getProperty();
+        if (pPayload.getPeripheralIO() == PeripheralIO.GPIO) {
+            return pPayload.getDirection() == PinDirection.OUT && pPayload.getValue() != null
+                    && (property == null || property == PinProperty.PIN_STATE);
+        }
+        return pPayload.getPeripheralIO() == PeripheralIO.PWM
+                && (property == PinProperty.PIN_STATE && pPayload.getValue() != null
+                || property == PinProperty.DUTY_CYCLE || property == PinProperty.FREQUENCY);
+    }
+
+    /**
+     * Whether two states are the same.
+     * @param pState
+     * @param pOther
+     * @return true if they have the same values.
+     */
+    private static boolean sameState(Payload pState, Payload pOther) {
+        if (pState == null || pOther == null) {
+            return false;
+        }
+        return pState.getPeripheralIO() == pOther.getPeripheralIO()
+                && pState.getValue() == pOther.getValue()
+                && pState.getDirection() == pOther.getDirection()
+                && Double.compare(pState.getDoubleValue(), pOther.getDoubleValue()) == 0
+                && equal(pState.getLabel(), pOther.getLabel());
+    }
+
+    private static boolean equal(String pString, String pOther) {
+        return pString == null ? pOther == null : pString.equals(pOther);
+    }
+
+    /**
+     * The state a command sets, as reported once it is done.
+     * @param pCommand
+     * @return the state.
+     */
+    private static Payload stateOf(Payload pCommand) {
+        Payload state = new Payload();
+        state.setPeripheralIO(pCommand.getPeripheralIO());
+        state.setAction(Action.EVENT);
+        state.setName(pCommand.getName());
+        state.setProperty(pCommand.getPeripheralIO() == PeripheralIO.GPIO
+                ? PinProperty.PIN_STATE : pCommand.getProperty());
+        state.setValue(pCommand.getValue());
+        state.setDirection(pCommand.getDirection());
+        if (pCommand.getPeripheralIO() == PeripheralIO.PWM) {
+            state.setDoubleValue(pCommand.getDoubleValue());
+        }
+        return state;
+    }
+
+    /**
+     * Record a state reported by the device.
+     * @param pPayload
+     */
+    public synchronized void report(Payload pPayload) {
+        if (pPayload.getName() == null) {
+            return;
+        }
+        Entry entry = getEntry(keyOf(pPayload));
+        if (entry == null || sameState(entry.mReported, pPayload)) {
+            return;
+        }
+        entry.mReported = pPayload;
+        entry.mReportedVersion = ++mReportedVersion;
+    }
+
+    /**
+     * Record the state desired by an output command.
+     * @param pCommand
+     */
+    public synchronized void desire(Payload pCommand) {
+        if (!isOutputCommand(pCommand)) {
+            return;
+        }
+        Payload state = stateOf(pCommand);
+        Entry entry = getEntry(keyOf(state));
+        if (entry == null || sameState(entry.mDesired, state)) {
+            return;
+        }
+        entry.mDesired = state;
+        entry.mDesiredVersion = ++mDesiredVersion;
+    }
+
+    /**
+     * Whether an output command would change nothing, its state being both the desired and the
+     * reported one.
+     * @param pCommand
+     * @return true if the command need not run.
+     */
+    public synchronized boolean isCurrent(Payload pCommand) {
+        if (!isOutputCommand(pCommand)) {
+            return false;
+        }
+        Payload state = stateOf(pCommand);
+        Entry entry = mEntries.get(keyOf(state));
+        return entry != null && sameState(entry.mDesired, state)
+                && sameState(entry.mReported, state);
+    }
+
+    /**
+     * Forget the reported states of a peripheral whose handle was reopened, its hardware state
+     * being unknown until it is set again.
+     * @param pName
+     */
+    public synchronized void invalidate(String pName) {
+        for (Entry entry : mEntries.values()) {
+            if (entry.mReported != null && pName.equals(entry.mReported.getName())) {
+                entry.mReported = null;
+                entry.mReportedVersion = ++mReportedVersion;
+            }
+        }
+    }
+
+    private Entry getEntry(String pKey) {
+        Entry entry = mEntries.get(pKey);
+        if (entry == null) {
+            if (mEntries.size() >= MAX_ENTRIES) {
+                Log.w(TAG, "The shadow is full, not keeping " + pKey + ".");
+                return null;
+            }
+            entry = new Entry();
+            mEntries.put(pKey, entry);
+        }
+        return entry;
+    }
+
+    /**
+     * Handle the messages intended for the shadow.
+     * @param pCommand
+     */
+    public void handleMessage(Command pCommand) {
+        Action messageType = pCommand.getAction();
+        switch (messageType) {
+            case MONITOR:
+                resync(pCommand, LabelOptions.parse(pCommand.getLabel()));
+                break;
+            default:
+                Log.d(TAG, "Message not supported!");
+                break;
+        }
+    }
+
+    /**
+     * Answer a client with the entries newer than its version vector.
+     * @param pRequest
+     * @param pOptions
+     */
+    private void resync(Command pRequest, LabelOptions pOptions) {
+        boolean full = !mEpoch.equals(pOptions.getString("epoch", null));
+        long reportedSince = full ? 0 : pOptions.getLong("reported", 0);
+        long desiredSince = full ? 0 : pOptions.getLong("desired", 0);
+        List<Payload> reported = new ArrayList<>();
+        List<Payload> desired = new ArrayList<>();
+        List<String> removed = new ArrayList<>();
+        long reportedVersion;
+        long desiredVersion;
+        synchronized (this) {
+            reportedVersion = mReportedVersion;
+            desiredVersion = mDesiredVersion;
+            for (Map.Entry<String, Entry> mapEntry : mEntries.entrySet()) {
+                Entry entry = mapEntry.getValue();
+                if (entry.mReportedVersion > reportedSince) {
+                    if (entry.mReported != null) {
+                        reported.add(entry.mReported);
+                    } else if (!full) {
+                        removed.add(mapEntry.getKey());
+                    }
+                }
+                if (entry.mDesiredVersion > desiredSince && entry.mDesired != null) {
+                    desired.add(entry.mDesired);
+                }
+            }
+        }
+        String vector = "epoch=" + mEpoch + ";reported=" + reportedVersion + ";desired="
+                + desiredVersion + ";full=" + (full ? 1 : 0);
+        int chunks = Math.max(1, (reported.size() + desired.size() + removed.size()
+                + CHUNK_ENTRIES - 1) / CHUNK_ENTRIES);
+        int nextReported = 0;
+        int nextDesired = 0;
+        int nextRemoved = 0;
+        for (int seq = 0; seq < chunks; seq++) {
+            Diff diff = new Diff();
+            diff.setRequestId(pRequest.getRequestId());
+            diff.setAction(Action.EVENT);
+            diff.setName(SHADOW_SERVICE);
+            int reportedCount = Math.min(CHUNK_ENTRIES, reported.size() - nextReported);
+            int desiredCount = Math.min(CHUNK_ENTRIES - reportedCount,
+                    desired.size() - nextDesired);
+            int removedCount = Math.min(CHUNK_ENTRIES - reportedCount - desiredCount,
+                    removed.size() - nextRemoved);
+            diff.mReported = reported.subList(nextReported, nextReported + reportedCount)
+                    .toArray(new Payload[reportedCount]);
+            diff.mDesired = desired.subList(nextDesired, nextDesired + desiredCount)
+                    .toArray(new Payload[desiredCount]);
+            diff.mRemoved = removed.subList(nextRemoved, nextRemoved + removedCount)
+                    .toArray(new String[removedCount]);
+            nextReported += reportedCount;
+            nextDesired += desiredCount;
+            nextRemoved += removedCount;
+            diff.setDoubleValue(reportedCount + desiredCount + removedCount);
+            diff.setLabel(vector + ";seq=" + seq + ";last=" + (seq == chunks - 1 ? 1 : 0));
+            mPublisher.publishResponse(AndroidThingsActivity.getPublishTopic(SHADOW_SERVICE),
+                    diff);
+        }
+    }
+
+    /**
+     * The reported and desired states of a channel. Guarded by the shadow.
+     */
+    private static class Entry {
+        private Payload mReported;
+        private long mReportedVersion;
+        private Payload mDesired;
+        private long mDesiredVersion;
+    }
+
+    /**
+     * A chunk of a resynchronization, a command reply with the changed entries and the keys of
+     * the invalidated reported states.
+     */
+    private static class Diff extends Command {
+        private Payload[] mReported;
+        private Payload[] mDesired;
+        private String[] mRemoved;
+    }
+}
@@ -0,0 +1,399 @@
+package thilanka.org.companion;
+
+import android.os.Process;
+import android.os.SystemClock;
+import android.util.Log;
+
+import com.google.android.things.pio.Gpio;
+import com.google.android.things.pio.PeripheralManager;
+
+import org.thilanka.messaging.domain.Payload;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Software PWM on ordinary GPIO output lines, for when the board runs out of hardware PWM
+ * channels. A single high priority timing thread drives every soft PWM channel from one merged
+ * timeline: all the active channels are raised at the start of a period and each one is lowered
+ * at its own offset, in order. The timeline is only rebuilt when a duty cycle (or the frequency)
+ * changes, and the timing thread picks the new one up at the next period boundary. While no
+ * channel is active, the timing thread stays parked on the empty timeline, so that there is never
+ * more than one thread driving the lines.
+ *
+ * All the soft PWM channels share one frequency. The lateness of every edge is measured and
+ * published periodically as {@code mean_us=..;max_us=..;edges=..} on the soft PWM topic. If a
+ * line fails, the timing thread stops and {@code stopped=1;error=..} is published there; the
+ * next change of a channel starts a new one.
+ *
+ * @author Thilanka Munasinghe (thilankawillbe@gmail.com)
+ */
+public class SoftPwmEngine {
+
+    /* The Log Tag*/
+    private static final String TAG = SoftPwmEngine.class.getSimpleName();
+
+    /* The sub topic of the publish topic on which the jitter is reported. */
+    public static final String SOFT_PWM_SERVICE = "softpwm";
+
+    /* The default frequency, suitable for servos. */
+    private static final double DEFAULT_FREQUENCY_HZ = 50;
+
+    /* The highest frequency a software timeline can follow reasonably. */
+    private static final double MAX_FREQUENCY_HZ = 1000;
+
+    /* The lowest frequency allowed. */
+    private static final double MIN_FREQUENCY_HZ = 1;
+
+    /* How close to an edge the timing thread stops sleeping and spins. */
+    private static final long SPIN_THRESHOLD_NANOS = TimeUnit.MICROSECONDS.toNanos(200);
+
+    /* How often the measured jitter is published. */
+    private static final long JITTER_REPORT_INTERVAL_MS = 10000;
+
+    /* The Android Things Peripheral Manager */
+    private final PeripheralManager mPeripheralManager;
+
+    /* The publisher of the jitter reports */
+    private final MessagePublisher mPublisher;
+
+    /* Guards the channels, the frequency and the timing thread. */
+    private final Object mLock = new Object();
+
+    /* The soft PWM channels, by GPIO name. */
+    private final Map<String, Channel> mChannels = new LinkedHashMap<>();
+
+    /* The length of a period. */
+    private long mPeriodNanos = toPeriodNanos(DEFAULT_FREQUENCY_HZ);
+
+    /* The timeline the timing thread follows. */
+    private volatile Timeline mTimeline = new Timeline(new ArrayList<Channel>(), mPeriodNanos);
+
+    /* The timing thread, or null until a channel is first active or after it stopped. */
+    private Thread mTimingThread;
+
+    /**
+     * The Constructor.
+     * @param pPeripheralManager
+     * @param pPublisher
+     */
+    public SoftPwmEngine(PeripheralManager pPeripheralManager, MessagePublisher pPublisher) {
+        mPeripheralManager = pPeripheralManager;
+        mPublisher = pPublisher;
+    }
+
+    /**
+     * Whether the GPIO by the given name is driven as a soft PWM channel.
+     * @param pName
+     * @return true if it is.
+     */
+    public boolean hasChannel(String pName) {
+        synchronized (mLock) {
+            return mChannels.containsKey(pName);
+        }
+    }
+
+    /**
+     * Set the frequency shared by all the soft PWM channels.
+     * @param pFrequencyHz values out of range are clamped.
+     */
+    public void setFrequency(double pFrequencyHz) {
+        synchronized (mLock) {
+            mPeriodNanos = toPeriodNanos(pFrequencyHz);
+            rebuildLocked();
+        }
+    }
+
+    /**
+     * Set the duty cycle of a channel, opening its GPIO if needed.
+     * @param pName
+     * @param pDutyCycle the duty cycle, in percent.
+     * @throws IOException
+     */
+    public void setDutyCycle(String pName, double pDutyCycle) throws IOException {
+        synchronized (mLock) {
+            getChannelLocked(pName).mDutyCycle = Math.max(0, Math.min(100, pDutyCycle));
+            rebuildLocked();
+        }
+    }
+
+    /**
+     * Enable or disable a channel, opening its GPIO if needed. A disabled channel stays low.
+     * @param pName
+     * @param pEnabled
+     * @throws IOException
+     */
+    public void setEnabled(String pName, boolean pEnabled) throws IOException {
+        synchronized (mLock) {
+            getChannelLocked(pName).mEnabled = pEnabled;
+            rebuildLocked();
+        }
+    }
+
+    /**
+     * Stop the timing thread, drive every channel low and close the GPIOs.
+     */
+    public void close() {
+        Thread timingThread;
+        synchronized (mLock) {
+            timingThread = mTimingThread;
+            mTimingThread = null;
+        }
+        if (timingThread != null) {
+            timingThread.interrupt();
+            try {
+                timingThread.join(TimeUnit.NANOSECONDS.toMillis(mPeriodNanos) * 2);
+            } catch (InterruptedException e) {
+                Log.e(TAG, e.getLocalizedMessage());
+            }
+        }
+        synchronized (mLock) {
+            for (Channel channel : mChannels.values()) {
+                try {
+                    channel.mGpio.setValue(false);
+                    channel.mGpio.close();
+                } catch (IOException e) {
+                    Log.w(TAG, "Unable to close GPIO " + channel.mName, e);
+                }
+            }
+            mChannels.clear();
+            mTimeline = new Timeline(new ArrayList<Channel>(), mPeriodNanos);
+        }
+    }
+
+    /**
+     * Get the channel by the given name, opening its GPIO as a low output if needed. A GPIO that
+     * cannot be set up is closed.
+     */
+    private Channel getChannelLocked(String pName) throws IOException {
+        Channel channel = mChannels.get(pName);
+        if (channel == null) {
+            Gpio gpio = mPeripheralManager.openGpio(pName);
+            try {
+                gpio.setDirection(Gpio.DIRECTION_OUT_INITIALLY_LOW);
+            } catch (IOException e) {
+                try {
+                    gpio.close();
+                } catch (IOException closeError) {
+                    Log.w(TAG, "Unable to close GPIO " + pName, closeError);
+                }
+                throw e;
+            }
+            channel = new Channel(pName, gpio);
+            mChannels.put(pName, channel);
+            Log.d(TAG, "Driving " + pName + " as a soft PWM channel.");
+        }
+        return channel;
+    }
+
+    /**
+     * Rebuild the timeline after a change, and wake or start the timing thread as needed.
+     */
+    private void rebuildLocked() {
+        List<Channel> active = new ArrayList<>();
+        for (Channel channel : mChannels.values()) {
+            if (channel.mEnabled && channel.mDutyCycle > 0) {
+                active.add(channel);
+            }
+        }
+        Timeline timeline = new Timeline(active, mPeriodNanos);
+        for (Channel channel : mChannels.values()) {
+            if (!active.contains(channel)) {
+                timeline.mParked.add(channel.mGpio);
+            }
+        }
+        mTimeline = timeline;
+
+        if (mTimingThread != null) {
+            /* The thread drives the parked lines low when it adopts the new timeline. */
+            LockSupport.unpark(mTimingThread);
+        } else if (!active.isEmpty()) {
+            mTimingThread = new Thread(mTimingLoop, TAG);
+            mTimingThread.start();
+        }
+    }
+
+    /**
+     * The period of the given frequency, clamped to the supported range.
+     */
+    private static long toPeriodNanos(double pFrequencyHz) {
+        double frequency = Math.max(MIN_FREQUENCY_HZ, Math.min(MAX_FREQUENCY_HZ, pFrequencyHz));
+        return (long) (TimeUnit.SECONDS.toNanos(1) / frequency);
+    }
+
+    /**
+     * Sleep, then spin, until the given deadline.
+     * @return how late the deadline was met, in nanoseconds.
+     */
+    private static long waitUntil(long pDeadline) {
+        long now = System.nanoTime();
+        while (pDeadline - now > SPIN_THRESHOLD_NANOS) {
+            LockSupport.parkNanos(pDeadline - now - SPIN_THRESHOLD_NANOS);
+            now = System.nanoTime();
+        }
+        while (now < pDeadline) {
+            now = System.nanoTime();
+        }
+        return now - pDeadline;
+    }
+
+    /* Follows the timeline, period after period. */
+    private final Runnable mTimingLoop = new Runnable() {
+        @Override
+        public void run() {
+            Process.setThreadPriority(Process.THREAD_PRIORITY_URGENT_AUDIO);
+            Timeline current = null;
+            long periodStart = System.nanoTime();
+            long totalLateness = 0;
+            long maxLateness = 0;
+            long edges = 0;
+            long lastReport = SystemClock.elapsedRealtime();
+            String error = null;
+            try {
+                while (!Thread.currentThread().isInterrupted()) {
+                    Timeline timeline = mTimeline;
+                    if (timeline != current) {
+                        for (Gpio gpio : timeline.mParked) {
+                            gpio.setValue(false);
+                        }
+                        current = timeline;
+                    }
+                    if (current.mRaised.length == 0) {
+                        /* Nothing to drive until the next timeline. */
+                        LockSupport.park(SoftPwmEngine.this);
+                        periodStart = System.nanoTime();
+                        continue;
+                    }
+
+                    long lateness = waitUntil(periodStart);
+                    for (Gpio gpio : current.mRaised) {
+                        gpio.setValue(true);
+                    }
+                    totalLateness += lateness;
+                    maxLateness = Math.max(maxLateness, lateness);
+                    edges++;
+
+                    for (int i = 0; i < current.mOffsets.length; i++) {
+                        lateness = waitUntil(periodStart + current.mOffsets[i]);
+                        current.mLowered[i].setValue(false);
+                        totalLateness += lateness;
+                        maxLateness = Math.max(maxLateness, lateness);
+                        edges++;
+                    }
+
+                    periodStart += current.mPeriodNanos;
+                    long now = System.nanoTime();
+                    if (now - periodStart > current.mPeriodNanos) {
+                        /* Fell more than a period behind, start afresh rather than catch up. */
+                        periodStart = now;
+                    }
+
+                    if (SystemClock.elapsedRealtime() - lastReport >= JITTER_REPORT_INTERVAL_MS) {
+                        publishJitter(totalLateness / edges, maxLateness, edges);
+                        totalLateness = 0;
+                        maxLateness = 0;
+                        edges = 0;
+                        lastReport = SystemClock.elapsedRealtime();
+                    }
+                }
+            } catch (IOException e) {
+                error = String.valueOf(e.getLocalizedMessage());
+                Log.e(TAG, "Soft PWM stopped: " + error);
+            }
+            synchronized (mLock) {
+                if (mTimingThread == Thread.currentThread()) {
+                    mTimingThread = null;
+                }
+            }
+            Log.d(TAG, "Timing thread stopped.");
+            if (error != null) {
+                publishStop(error);
+            }
+        }
+    };
+
+    /**
+     * Publish that the timing thread stopped on a failure.
+     * @param pError
+     */
+    private void publishStop(String pError) {
+        Payload payload = new Payload();
+        payload.setName(SOFT_PWM_SERVICE);
+        payload.setLabel("stopped=1;error=" + pError.replace(';', ',').replace('=', ':'));
+        mPublisher.publish(AndroidThingsActivity.getPublishTopic(SOFT_PWM_SERVICE), payload);
+    }
+
+    /**
+     * Publish the jitter measured over the last report interval.
+     */
+    private void publishJitter(long pMeanNanos, long pMaxNanos, long pEdges) {
+        String report = "mean_us=" + TimeUnit.NANOSECONDS.toMicros(pMeanNanos) + ";max_us="
+                + TimeUnit.NANOSECONDS.toMicros(pMaxNanos) + ";edges=" + pEdges;
+        Log.d(TAG, "Soft PWM jitter: " + report);
+
+        Payload payload = new Payload();
+        payload.setName(SOFT_PWM_SERVICE);
+        payload.setLabel(report);
+        payload.setDoubleValue(TimeUnit.NANOSECONDS.toMicros(pMaxNanos));
+        mPublisher.publish(AndroidThingsActivity.getPublishTopic(SOFT_PWM_SERVICE), payload);
+    }
+
+    /**
+     * A soft PWM channel.
+     */
+    private static class Channel {
+        private final String mName;
+        private final Gpio mGpio;
+        private double mDutyCycle;
+        private boolean mEnabled;
+
+        Channel(String pName, Gpio pGpio) {
+            mName = pName;
+            mGpio = pGpio;
+        }
+    }
+
+    /**
+     * The edges of one period: which lines go high at its start, and when each goes low again.
+     * Immutable once published.
+     */
+    private static class Timeline {
+        private final long mPeriodNanos;
+        private final Gpio[] mRaised;
+        private final long[] mOffsets;
+        private final Gpio[] mLowered;
+        private final List<Gpio> mParked = new ArrayList<>();
+
+        Timeline(List<Channel> pActive, long pPeriodNanos) {
+            mPeriodNanos = pPeriodNanos;
+            List<Channel> sorted = new ArrayList<>(pActive);
+            Collections.sort(sorted, new Comparator<Channel>() {
+                @Override
+                public int compare(Channel pLeft, Channel pRight) {
+                    return Double.compare(pLeft.mDutyCycle, pRight.mDutyCycle);
+                }
+            });
+            mRaised = new Gpio[sorted.size()];
+            List<Channel> lowered = new ArrayList<>();
+            for (int i = 0; i < sorted.size(); i++) {
+                mRaised[i] = sorted.get(i).mGpio;
+                if (sorted.get(i).mDutyCycle < 100) {
+                    lowered.add(sorted.get(i));
+                }
+            }
+            mOffsets = new long[lowered.size()];
+            mLowered = new Gpio[lowered.size()];
+            for (int i = 0; i < lowered.size(); i++) {
+                mOffsets[i] = (long) (pPeriodNanos * lowered.get(i).mDutyCycle / 100);
+                mLowered[i] = lowered.get(i).mGpio;
+            }
+        }
+    }
+}
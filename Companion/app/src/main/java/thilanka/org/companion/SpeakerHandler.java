@@ -0,0 +1,558 @@
+package thilanka.org.companion;
+
+import android.util.Log;
+
+import com.google.android.things.contrib.driver.pwmspeaker.Speaker;
+
+import org.thilanka.messaging.domain.Action;
+import org.thilanka.messaging.domain.Payload;
+
+import java.io.IOException;
+import java.util.ArrayDeque;
+import java.util.Iterator;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Plays tones and melodies on piezo speakers driven by PWM channels, with the contrib speaker
+ * driver. A whole melody arrives in one message and is played by a thread of the speaker that
+ * times every note from the start of the melody, so the network never affects the rhythm and
+ * the timing errors do not add up.
+ *
+ * The messages are on the speaker sub-topic of the subscribe topic, the name being the PWM
+ * channel:
+ * <ul>
+ *     <li>REGISTER opens the speaker.</li>
+ *     <li>EVENT plays {@code melody=C4/4,E4/8,R/8,G4/4.,440/2} (a note name and octave, an
+ *     {@code R} for a rest or a frequency in Hz, then the length: 1 for a whole note, 4 for a
+ *     quarter, a trailing dot for a dotted note) at {@code tempo=..} quarter notes per minute
+ *     (120 by default), {@code repeat=..} times (1 by default, 0 to loop until interrupted).
+ *     Without a melody, it plays a tone at the frequency in the double value for
+ *     {@code duration_ms=..}. The melody is queued after the ones already playing, unless
+ *     {@code mode=interrupt}, which stops them first. Notes are separated by
+ *     {@code gap_ms=..} of silence (10 by default). Notes and tones last from 1 ms to an
+ *     hour.</li>
+ *     <li>MONITOR stops the melodies, without closing the speaker.</li>
+ *     <li>SHUTDOWN stops the melodies and closes the speaker.</li>
+ * </ul>
+ * When a melody ends, {@code status=done|interrupted;notes=..} is published on the speaker
+ * sub-topic of the publish topic, with the request ID of the message that queued it. If the
+ * speaker fails, the melody playing ends with {@code status=failed;notes=..;error=..}, the ones
+ * waiting are interrupted and the speaker must be registered again.
+ *
+ * @author Thilanka Munasinghe (thilankawillbe@gmail.com)
+ */
+public class SpeakerHandler {
+
+    /* The Log Tag*/
+    private static final String TAG = SpeakerHandler.class.getSimpleName();
+
+    /* The sub-topic the speaker messages are received and the melody endings published on. */
+    public static final String SPEAKER_SERVICE = "speaker";
+
+    /* The default tempo, in quarter notes per minute. */
+    private static final double DEFAULT_TEMPO = 120;
+
+    /* The default silence between two notes. */
+    private static final long DEFAULT_GAP_MS = 10;
+
+    /* The most melodies waiting on a speaker. */
+    private static final int MAX_QUEUED = 16;
+
+    /* The most notes in a melody. */
+    private static final int MAX_NOTES = 1024;
+
+    /* The shortest and longest note or tone. */
+    private static final long MIN_NOTE_NANOS = TimeUnit.MILLISECONDS.toNanos(1);
+    private static final long MAX_NOTE_NANOS = TimeUnit.HOURS.toNanos(1);
+
+    /* How long a speaker is waited for to be closed. */
+    private static final long CLOSE_TIMEOUT_MS = 1000;
+
+    /* The mode that stops the melodies playing instead of waiting for them. */
+    private static final String MODE_INTERRUPT = "interrupt";
+
+    /* The semitones of the natural notes, from A. */
+    private static final int[] SEMITONES_FROM_A = {0, 2, -9, -7, -5, -4, -2};
+
+    /* The publisher of the melody endings */
+    private final MessagePublisher mPublisher;
+
+    /* The players, by PWM channel name. A failed player removes itself. */
+    private final ConcurrentMap<String, Player> mPlayers = new ConcurrentHashMap<>();
+
+    /**
+     * The Constructor.
+     * @param pPublisher
+     */
+    public SpeakerHandler(MessagePublisher pPublisher) {
+        mPublisher = pPublisher;
+    }
+
+    /**
+     * Handle the messages intended for the speakers.
+     * @param pPayload
+     * @throws IOException
+     */
+    public void handleMessage(Payload pPayload) throws IOException {
+        Action messageType = pPayload.getAction();
+        switch (messageType) {
+            case REGISTER:
+                register(pPayload.getName());
+                break;
+            case EVENT:
+                play(pPayload);
+                break;
+            case MONITOR:
+                getPlayer(pPayload.getName()).stopAll();
+                break;
+            case SHUTDOWN:
+                close(pPayload.getName());
+                break;
+            default:
+                Log.d(TAG, "Message not supported!");
+                break;
+        }
+    }
+
+    /**
+     * Open a speaker, replacing any speaker on the same channel.
+     * @param pName
+     * @throws IOException
+     */
+    private synchronized void register(String pName) throws IOException {
+        if (!close(pName)) {
+            throw new IOException("The speaker " + pName + " is still closing");
+        }
+        Player player = new Player(pName, new Speaker(pName));
+        mPlayers.put(pName, player);
+        player.start();
+        Log.d(TAG, "Registered the speaker " + pName);
+    }
+
+    /**
+     * Queue a melody, or a single tone.
+     * @param pPayload
+     * @throws IllegalArgumentException if the melody or the tone is malformed.
+     */
+    private void play(Payload pPayload) {
+        LabelOptions options = LabelOptions.parse(pPayload.getLabel());
+        long gapMs = options.getLong("gap_ms", DEFAULT_GAP_MS);
+        if (gapMs < 0) {
+            throw new IllegalArgumentException("Bad gap " + gapMs + " ms");
+        }
+        long gapNanos = TimeUnit.MILLISECONDS.toNanos(gapMs);
+        Melody melody;
+        if (options.has("melody")) {
+            melody = parseMelody(options.getString("melody", ""),
+                    options.getDouble("tempo", DEFAULT_TEMPO), gapNanos);
+        } else {
+            long durationMs = options.getLong("duration_ms", 0);
+            melody = new Melody(1);
+            melody.add(pPayload.getDoubleValue(), checkLength(
+                    TimeUnit.MILLISECONDS.toNanos(durationMs), "duration " + durationMs + " ms"),
+                    0);
+        }
+        melody.mRepeat = (int) options.getLong("repeat", 1);
+        melody.mRequestId = Command.requestIdOf(pPayload);
+        getPlayer(pPayload.getName()).queue(melody,
+                MODE_INTERRUPT.equalsIgnoreCase(options.getString("mode", null)));
+    }
+
+    /**
+     * Read a melody.
+     * @param pMelody the notes, separated by commas.
+     * @param pTempo the quarter notes per minute.
+     * @param pGapNanos the silence between two notes.
+     * @return the melody.
+     * @throws IllegalArgumentException if a note is malformed, or shorter than a millisecond or
+     * longer than an hour.
+     */
+    static Melody parseMelody(String pMelody, double pTempo, long pGapNanos) {
+        if (!(pTempo > 0)) {
+            throw new IllegalArgumentException("Bad tempo " + pTempo);
+        }
+        String[] notes = pMelody.split(",");
+        if (notes.length > MAX_NOTES) {
+            throw new IllegalArgumentException("Too many notes: " + notes.length);
+        }
+        double wholeNanos = 4 * TimeUnit.MINUTES.toNanos(1) / pTempo;
+        Melody melody = new Melody(notes.length);
+        for (String note : notes) {
+            note = note.trim();
+            int slash = note.indexOf('/');
+            if (slash <= 0) {
+                throw new IllegalArgumentException("Bad note " + note);
+            }
+            String length = note.substring(slash + 1);
+            boolean dotted = length.endsWith(".");
+            if (dotted) {
+                length = length.substring(0, length.length() - 1);
+            }
+            double nanos = wholeNanos / Double.parseDouble(length) * (dotted ? 1.5 : 1);
+            melody.add(frequencyOf(note.substring(0, slash)),
+                    checkLength((long) nanos, "note " + note), pGapNanos);
+        }
+        return melody;
+    }
+
+    /**
+     * Check the length of a note or tone, so that a melody can neither spin nor overflow its
+     * deadlines.
+     * @param pNanos
+     * @param pWhat the note or tone, for the error.
+     * @return the length.
+     * @throws IllegalArgumentException if it is shorter than a millisecond or longer than an
+     * hour.
+     */
+    private static long checkLength(long pNanos, String pWhat) {
+        if (pNanos < MIN_NOTE_NANOS || pNanos > MAX_NOTE_NANOS) {
+            throw new IllegalArgumentException("Bad length of " + pWhat);
+        }
+        return pNanos;
+    }
+
+    /**
+     * The frequency of a note.
+     * @param pNote a note name with an optional sharp or flat and an octave (A4, C#5, Bb3), R
+     *              for a rest, or a frequency in Hz.
+     * @return the frequency, 0 for a rest.
+     */
+    static double frequencyOf(String pNote) {
+        char name = Character.toUpperCase(pNote.charAt(0));
+        if (name == 'R') {
+            return 0;
+        }
+        if (name < 'A' || name > 'G') {
+            return Double.parseDouble(pNote);
+        }
+        int semitone = SEMITONES_FROM_A[name - 'A'];
+        int octaveStart = 1;
+        if (pNote.length() > 1 && (pNote.charAt(1) == '#' || pNote.charAt(1) == 'b')) {
+            semitone += pNote.charAt(1) == '#' ? 1 : -1;
+            octaveStart = 2;
+        }
+        int octave = Integer.parseInt(pNote.substring(octaveStart));
+        return 440 * Math.pow(2, (semitone + (octave - 4) * 12) / 12.0);
+    }
+
+    /**
+     * The registered speaker by the given name.
+     * @param pName
+     * @return the player of the speaker.
+     */
+    private synchronized Player getPlayer(String pName) {
+        Player player = mPlayers.get(pName);
+        if (player == null) {
+            throw new IllegalArgumentException("No speaker registered as " + pName);
+        }
+        return player;
+    }
+
+    /**
+     * Stop and close the speaker by the given name, if any, and wait for it to be closed.
+     * @param pName
+     * @return false if the speaker is still not closed.
+     */
+    private synchronized boolean close(String pName) {
+        Player player = mPlayers.remove(pName);
+        if (player == null) {
+            return true;
+        }
+        player.shutdown();
+        return player.awaitClosed(CLOSE_TIMEOUT_MS);
+    }
+
+    /**
+     * Stop and close all the speakers, and wait for them to be closed.
+     */
+    public synchronized void closeAll() {
+        Iterator<Player> iterator = mPlayers.values().iterator();
+        while (iterator.hasNext()) {
+            Player player = iterator.next();
+            iterator.remove();
+            player.shutdown();
+            if (!player.awaitClosed(CLOSE_TIMEOUT_MS)) {
+                Log.w(TAG, "The speaker " + player.mName + " is still closing.");
+            }
+        }
+    }
+
+    /**
+     * Publish the end of a melody.
+     * @param pMelody
+     * @param pName
+     * @param pStatus
+     * @param pError the failure of the speaker, or null.
+     */
+    private void publishEnd(Melody pMelody, String pName, String pStatus, String pError) {
+        Command payload = new Command();
+        payload.setRequestId(pMelody.mRequestId);
+        payload.setAction(Action.EVENT);
+        payload.setName(pName);
+        payload.setDoubleValue(pMelody.mPlayed);
+        payload.setLabel("status=" + pStatus + ";notes=" + pMelody.mPlayed + (pError == null ? ""
+                : ";error=" + pError.replace(';', ',').replace('=', ':')));
+        mPublisher.publishResponse(AndroidThingsActivity.getPublishTopic(SPEAKER_SERVICE),
+                payload);
+    }
+
+    /**
+     * The status of a melody that ended.
+     * @param pInterrupted
+     * @return the status in the label of the ending.
+     */
+    private static String statusOf(boolean pInterrupted) {
+        return pInterrupted ? "interrupted" : "done";
+    }
+
+    /**
+     * The notes of a melody, as frequencies and lengths.
+     */
+    static class Melody {
+        private final double[] mFrequencies;
+        private final long[] mSoundNanos;
+        private final long[] mSilenceNanos;
+        private int mLength;
+        private int mRepeat = 1;
+        private String mRequestId;
+        private int mPlayed;
+
+        Melody(int pCapacity) {
+            mFrequencies = new double[pCapacity];
+            mSoundNanos = new long[pCapacity];
+            mSilenceNanos = new long[pCapacity];
+        }
+
+        /**
+         * Add a note, the gap being taken from its end.
+         * @param pFrequency 0 for a rest.
+         * @param pNanos
+         * @param pGapNanos
+         */
+        private void add(double pFrequency, long pNanos, long pGapNanos) {
+            long gap = pFrequency > 0 ? Math.min(pGapNanos, pNanos / 2) : 0;
+            mFrequencies[mLength] = pFrequency;
+            mSoundNanos[mLength] = pNanos - gap;
+            mSilenceNanos[mLength] = gap;
+            mLength++;
+        }
+    }
+
+    /**
+     * The thread that plays the melodies of a speaker, one after the other.
+     */
+    private class Player extends Thread {
+        private final String mName;
+        private final Speaker mSpeaker;
+        private final ReentrantLock mLock = new ReentrantLock();
+        private final Condition mChanged = mLock.newCondition();
+        private final ArrayDeque<Melody> mQueue = new ArrayDeque<>();
+        private Melody mCurrent;
+        private boolean mInterrupted;
+        private boolean mRunning = true;
+
+        Player(String pName, Speaker pSpeaker) {
+            super(TAG + "-" + pName);
+            mName = pName;
+            mSpeaker = pSpeaker;
+        }
+
+        /**
+         * Queue a melody.
+         * @param pMelody
+         * @param pInterrupt whether to stop the melodies playing or waiting first.
+         */
+        private void queue(Melody pMelody, boolean pInterrupt) {
+            mLock.lock();
+            try {
+                if (!mRunning) {
+                    throw new IllegalStateException("The speaker " + mName + " is closed");
+                }
+                if (pInterrupt) {
+                    stopAllLocked();
+                } else if (mQueue.size() >= MAX_QUEUED) {
+                    throw new IllegalStateException("Too many melodies queued on " + mName);
+                }
+                mQueue.add(pMelody);
+                mChanged.signal();
+            } finally {
+                mLock.unlock();
+            }
+        }
+
+        /**
+         * Stop the melody playing and drop the ones waiting.
+         */
+        private void stopAll() {
+            mLock.lock();
+            try {
+                stopAllLocked();
+            } finally {
+                mLock.unlock();
+            }
+        }
+
+        private void stopAllLocked() {
+            for (Melody melody : mQueue) {
+                publishEnd(melody, mName, statusOf(true), null);
+            }
+            mQueue.clear();
+            if (mCurrent != null) {
+                mInterrupted = true;
+                mChanged.signal();
+            }
+        }
+
+        /**
+         * Wait for the speaker to be closed, after a shutdown.
+         * @param pTimeoutMs
+         * @return false if it is still not closed.
+         */
+        private boolean awaitClosed(long pTimeoutMs) {
+            try {
+                join(pTimeoutMs);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+            return !isAlive();
+        }
+
+        /**
+         * Stop playing and close the speaker.
+         */
+        private void shutdown() {
+            mLock.lock();
+            try {
+                stopAllLocked();
+                mRunning = false;
+                mChanged.signal();
+            } finally {
+                mLock.unlock();
+            }
+        }
+
+        @Override
+        public void run() {
+            try {
+                while (true) {
+                    Melody melody;
+                    mLock.lock();
+                    try {
+                        while (mRunning && mQueue.isEmpty()) {
+                            mChanged.awaitUninterruptibly();
+                        }
+                        if (!mRunning) {
+                            return;
+                        }
+                        melody = mQueue.poll();
+                        mCurrent = melody;
+                        mInterrupted = false;
+                    } finally {
+                        mLock.unlock();
+                    }
+                    boolean interrupted = !play(melody);
+                    mSpeaker.stop();
+                    mLock.lock();
+                    try {
+                        mCurrent = null;
+                    } finally {
+                        mLock.unlock();
+                    }
+                    publishEnd(melody, mName, statusOf(interrupted), null);
+                }
+            } catch (IOException e) {
+                Log.e(TAG, "Unable to play on " + mName + ": " + e.getLocalizedMessage());
+                fail(String.valueOf(e.getLocalizedMessage()));
+            } finally {
+                try {
+                    mSpeaker.stop();
+                    mSpeaker.close();
+                } catch (IOException e) {
+                    Log.w(TAG, "Unable to close the speaker " + mName + ": "
+                            + e.getLocalizedMessage());
+                }
+            }
+        }
+
+        /**
+         * Give the speaker up after a failure: end the melody playing as failed, interrupt the
+         * ones waiting and unregister the speaker.
+         * @param pError
+         */
+        private void fail(String pError) {
+            Melody current;
+            mLock.lock();
+            try {
+                current = mCurrent;
+                mCurrent = null;
+                mRunning = false;
+                stopAllLocked();
+            } finally {
+                mLock.unlock();
+            }
+            mPlayers.remove(mName, this);
+            if (current != null) {
+                publishEnd(current, mName, "failed", pError);
+            }
+        }
+
+        /**
+         * Play a melody, every note being timed from the start of the melody.
+         * @param pMelody
+         * @return false if interrupted.
+         * @throws IOException
+         */
+        private boolean play(Melody pMelody) throws IOException {
+            long deadline = System.nanoTime();
+            for (int round = 0; pMelody.mRepeat <= 0 || round < pMelody.mRepeat; round++) {
+                for (int i = 0; i < pMelody.mLength; i++) {
+                    if (pMelody.mFrequencies[i] > 0) {
+                        mSpeaker.play(pMelody.mFrequencies[i]);
+                    } else {
+                        mSpeaker.stop();
+                    }
+                    deadline += pMelody.mSoundNanos[i];
+                    if (!waitUntil(deadline)) {
+                        return false;
+                    }
+                    if (pMelody.mSilenceNanos[i] > 0) {
+                        mSpeaker.stop();
+                        deadline += pMelody.mSilenceNanos[i];
+                        if (!waitUntil(deadline)) {
+                            return false;
+                        }
+                    }
+                    pMelody.mPlayed++;
+                }
+                if (pMelody.mLength == 0) {
+                    return true;
+                }
+            }
+            return true;
+        }
+
+        /**
+         * Wait until the given time, unless interrupted.
+         * @param pDeadline the {@link System#nanoTime()} to wait for.
+         * @return false if interrupted.
+         */
+        private boolean waitUntil(long pDeadline) {
+            mLock.lock();
+            try {
+                long wait;
+                while (!mInterrupted && (wait = pDeadline - System.nanoTime()) > 0) {
+                    mChanged.awaitNanos(wait);
+                }
+                return !mInterrupted;
+            } catch (InterruptedException e) {
+                return false;
+            } finally {
+                mLock.unlock();
+            }
+        }
+    }
+}
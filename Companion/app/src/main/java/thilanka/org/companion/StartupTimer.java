@@ -0,0 +1,71 @@
+package thilanka.org.companion;
+
+import android.os.Process;
+import android.os.SystemClock;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Records how long each phase of a cold start takes, measured from the moment the process was
+ * started, so that the time to the first command can be broken down and tracked.
+ *
+ * @author Thilanka Munasinghe (thilankawillbe@gmail.com)
+ */
+public class StartupTimer {
+
+    /* The process start time, on the elapsed realtime clock. */
+    private final long mProcessStart = Process.getStartElapsedRealtime();
+
+    /* The duration of every recorded phase, in completion order. */
+    private final Map<String, Long> mPhases = new LinkedHashMap<>();
+
+    /**
+     * The current time, to be passed back to {@link #record(String, long)} when the phase ends.
+     * @return the current elapsed realtime, in milliseconds.
+     */
+    public long now() {
+        return SystemClock.elapsedRealtime();
+    }
+
+    /**
+     * Record a phase that started at the given time and ends now.
+     * @param pPhase
+     * @param pStart the value of {@link #now()} when the phase started.
+     */
+    public synchronized void record(String pPhase, long pStart) {
+        mPhases.put(pPhase, SystemClock.elapsedRealtime() - pStart);
+    }
+
+    /**
+     * Record a milestone, measured from the process start.
+     * @param pMilestone
+     */
+    public synchronized void mark(String pMilestone) {
+        mPhases.put(pMilestone, sinceProcessStart());
+    }
+
+    /**
+     * The time since the process was started.
+     * @return the elapsed time, in milliseconds.
+     */
+    public long sinceProcessStart() {
+        return SystemClock.elapsedRealtime() - mProcessStart;
+    }
+
+    /**
+     * The recorded phases and milestones, e.g. {@code "created=120;layout=15;connect=840"}. Phases
+     * may have run in parallel, so they do not add up to the milestones.
+     * @return the report, in the label option format.
+     */
+    public synchronized String report() {
+        StringBuilder report = new StringBuilder();
+        for (Map.Entry<String, Long> phase : mPhases.entrySet()) {
+            if (report.length() > 0) {
+                report.append(';');
+            }
+            report.append(phase.getKey()).append('=').append(phase.getValue());
+        }
+        return report.toString();
+    }
+}
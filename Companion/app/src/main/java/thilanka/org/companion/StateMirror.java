@@ -0,0 +1,76 @@
+package thilanka.org.companion;
+
+import org.thilanka.messaging.domain.Payload;
+
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Mirrors the latest value of every pin and sensor to a retained topic per channel, so that an
+ * App Inventor client gets the whole board state from the broker as soon as it subscribes to
+ * {@code <board identifier>/appinventor/state/#}, without the board touching the hardware.
+ * Updates are coalesced: each channel is published at most once per {@link #MIRROR_INTERVAL_MS}
+ * with its latest value.
+ *
+ * @author Thilanka Munasinghe (thilankawillbe@gmail.com)
+ */
+public class StateMirror {
+
+    /* The sub topic of the publish topic under which the channel states are retained. */
+    public static final String STATE_SERVICE = "state";
+
+    /* The shortest time between two publishes of the same channel. */
+    private static final long MIRROR_INTERVAL_MS = 1000;
+
+    /* The publisher of the retained messages. */
+    private final MessagePublisher mPublisher;
+
+    /* The values not mirrored yet, by channel topic. */
+    private final ConcurrentHashMap<String, Payload> mDirty = new ConcurrentHashMap<>();
+
+    /**
+     * The Constructor.
+     * @param pPublisher
+     * @param pScheduler
+     */
+    public StateMirror(MessagePublisher pPublisher, ScheduledExecutorService pScheduler) {
+        mPublisher = pPublisher;
+        pScheduler.scheduleWithFixedDelay(mFlush, MIRROR_INTERVAL_MS, MIRROR_INTERVAL_MS,
+                TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Record the latest value of a channel. It reaches the broker with the next flush.
+     * @param pPayload
+     */
+    public void update(Payload pPayload) {
+        mDirty.put(getStateTopic(pPayload), pPayload);
+    }
+
+    /**
+     * The retained topic of the channel the payload belongs to. Payloads without a property
+     * (such as the encoder reports) are kept directly under the name.
+     * @param pPayload
+     * @return the topic
+     */
+    public static String getStateTopic(Payload pPayload) {
+        String topic = AndroidThingsActivity.getPublishTopic() + STATE_SERVICE + "/"
+                + pPayload.getName();
+        return pPayload.getProperty() == null ? topic : topic + "/" + pPayload.getProperty();
+    }
+
+    /* Publishes the latest value of every channel that changed since the last flush. */
+    private final Runnable mFlush = new Runnable() {
+        @Override
+        public void run() {
+            for (Map.Entry<String, Payload> entry : mDirty.entrySet()) {
+                /* Only drop the entry if no newer value arrived in the meantime. */
+                if (mDirty.remove(entry.getKey(), entry.getValue())) {
+                    mPublisher.publish(entry.getKey(), entry.getValue(), true);
+                }
+            }
+        }
+    };
+}
@@ -0,0 +1,275 @@
+package thilanka.org.companion;
+
+import android.os.SystemClock;
+import android.util.Log;
+
+import org.thilanka.device.pin.PinProperty;
+import org.thilanka.device.pin.PinValue;
+import org.thilanka.messaging.domain.Action;
+import org.thilanka.messaging.domain.Payload;
+
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Report-by-exception filter for the outbound telemetry. Every channel (a pin or sensor name plus
+ * the reported property) only publishes when its value moves out of the deadband around the last
+ * published value, no more often than its minimum interval, and at least as often as its maximum
+ * interval (a heartbeat that republishes the last value).
+ *
+ * The settings are changed on the filter topic: the payload name is the channel name (or empty
+ * for the defaults), the double value is the deadband and the label holds the intervals in
+ * milliseconds, e.g. {@code "min=500;max=60000"}. A SHUTDOWN restores the defaults of a channel.
+ *
+ * @author Thilanka Munasinghe (thilankawillbe@gmail.com)
+ */
+public class TelemetryFilter {
+
+    /**
+     * Receives the payloads that pass the filter.
+     */
+    public interface Sink {
+        void send(Payload pPayload);
+    }
+
+    /* The Log Tag*/
+    private static final String TAG = TelemetryFilter.class.getSimpleName();
+
+    /* How often the channels are checked for a due heartbeat. */
+    private static final long HEARTBEAT_SWEEP_MS = 1000;
+
+    /* The destination of the payloads that pass. */
+    private final Sink mSink;
+
+    /* Runs the delayed and heartbeat publishes. */
+    private final ScheduledExecutorService mScheduler;
+
+    /* The settings that apply to channels without their own. */
+    private volatile Settings mDefaults = new Settings(0, AndroidThingsActivity.SLEEP_TIME, 0);
+
+    /* The settings by channel name. */
+    private final Map<String, Settings> mSettings = new ConcurrentHashMap<>();
+
+    /* The state of every channel seen so far, by channel key. */
+    private final ConcurrentHashMap<String, Channel> mChannels = new ConcurrentHashMap<>();
+
+    /**
+     * The Constructor.
+     * @param pSink
+     * @param pScheduler
+     */
+    public TelemetryFilter(Sink pSink, ScheduledExecutorService pScheduler) {
+        mSink = pSink;
+        mScheduler = pScheduler;
+        mScheduler.scheduleWithFixedDelay(mHeartbeat, HEARTBEAT_SWEEP_MS, HEARTBEAT_SWEEP_MS,
+                TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Handle the messages that change the filter settings.
+     * @param pPayload
+     * @throws IllegalArgumentException if the settings are not numbers, or are negative.
+     */
+    public void handleMessage(Payload pPayload) {
+        String name = pPayload.getName();
+        Action messageType = pPayload.getAction();
+        switch (messageType) {
+            case REGISTER:
+                LabelOptions options = LabelOptions.parse(pPayload.getLabel());
+                Settings current = name == null || name.isEmpty() ? mDefaults
+                        : settingsFor(name);
+                Settings settings = new Settings(pPayload.getDoubleValue(),
+                        options.getLong("min", current.mMinIntervalMs),
+                        options.getLong("max", current.mMaxIntervalMs));
+                if (settings.mDeadband < 0 || settings.mMinIntervalMs < 0
+                        || settings.mMaxIntervalMs < 0) {
+                    throw new IllegalArgumentException("Bad filter settings " + settings);
+                }
+                if (name == null || name.isEmpty()) {
+                    mDefaults = settings;
+                } else {
+                    mSettings.put(name, settings);
+                }
+                Log.d(TAG, "Filter for " + (name == null ? "defaults" : name) + " = " + settings);
+                break;
+            case SHUTDOWN:
+                if (name != null) {
+                    mSettings.remove(name);
+                }
+                break;
+            default:
+                Log.d(TAG, "Message not supported!");
+                break;
+        }
+    }
+
+    /**
+     * Offer a telemetry payload. It is passed on now, later, or not at all.
+     * @param pPayload
+     */
+    public void offer(Payload pPayload) {
+        String key = channelKey(pPayload.getName(), pPayload.getProperty());
+        Channel channel = mChannels.get(key);
+        if (channel == null) {
+            channel = new Channel(pPayload.getName());
+            Channel existing = mChannels.putIfAbsent(key, channel);
+            if (existing != null) {
+                channel = existing;
+            }
+        }
+        Settings settings = settingsFor(pPayload.getName());
+        double value = valueOf(pPayload);
+        long now = SystemClock.elapsedRealtime();
+
+        synchronized (channel) {
+            channel.mLastValue = pPayload;
+            if (channel.mLastPublished != null
+                    && Math.abs(value - channel.mLastPublishedValue) <= settings.mDeadband) {
+                /* Back within the deadband, so a held value is no longer worth sending either. */
+                channel.mPending = null;
+                return;
+            }
+            long wait = channel.mLastPublishTime + settings.mMinIntervalMs - now;
+            if (channel.mLastPublished != null && wait > 0) {
+                channel.mPending = pPayload;
+                if (!channel.mFlushScheduled) {
+                    channel.mFlushScheduled = true;
+                    mScheduler.schedule(new Flush(channel), wait, TimeUnit.MILLISECONDS);
+                }
+                return;
+            }
+            emit(channel, pPayload, value, now);
+        }
+    }
+
+    /**
+     * The last value offered on a channel, whether or not it was published.
+     * @param pName
+     * @param pProperty
+     * @return the last payload, or null if the channel has not reported yet.
+     */
+    public Payload getLastValue(String pName, PinProperty pProperty) {
+        Channel channel = mChannels.get(channelKey(pName, pProperty));
+        if (channel == null) {
+            return null;
+        }
+        synchronized (channel) {
+            return channel.mLastValue;
+        }
+    }
+
+    /**
+     * Publish a payload on a channel. Must hold the channel's lock.
+     */
+    private void emit(Channel pChannel, Payload pPayload, double pValue, long pNow) {
+        pChannel.mLastPublished = pPayload;
+        pChannel.mLastPublishedValue = pValue;
+        pChannel.mLastPublishTime = pNow;
+        pChannel.mPending = null;
+        mSink.send(pPayload);
+    }
+
+    /**
+     * The settings that apply to the given channel name.
+     */
+    private Settings settingsFor(String pName) {
+        Settings settings = pName == null ? null : mSettings.get(pName);
+        return settings == null ? mDefaults : settings;
+    }
+
+    /**
+     * The key of a channel.
+     */
+    static String channelKey(String pName, PinProperty pProperty) {
+        return pName + "/" + pProperty;
+    }
+
+    /**
+     * The numeric value of a payload, used for the deadband.
+     */
+    static double valueOf(Payload pPayload) {
+        if (pPayload.getProperty() == PinProperty.PIN_STATE) {
+            return pPayload.getValue() == PinValue.HIGH ? 1 : 0;
+        }
+        return pPayload.getDoubleValue();
+    }
+
+    /* Republishes the last value of the channels that have been quiet for too long. */
+    private final Runnable mHeartbeat = new Runnable() {
+        @Override
+        public void run() {
+            long now = SystemClock.elapsedRealtime();
+            for (Channel channel : mChannels.values()) {
+                long maxInterval = settingsFor(channel.mName).mMaxIntervalMs;
+                synchronized (channel) {
+                    if (maxInterval > 0 && channel.mLastPublished != null
+                            && now - channel.mLastPublishTime >= maxInterval) {
+                        emit(channel, channel.mLastPublished, channel.mLastPublishedValue, now);
+                    }
+                }
+            }
+        }
+    };
+
+    /**
+     * Publishes the value held back by the minimum interval, once the interval has passed.
+     */
+    private class Flush implements Runnable {
+        private final Channel mChannel;
+
+        Flush(Channel pChannel) {
+            mChannel = pChannel;
+        }
+
+        @Override
+        public void run() {
+            synchronized (mChannel) {
+                mChannel.mFlushScheduled = false;
+                if (mChannel.mPending != null) {
+                    emit(mChannel, mChannel.mPending, valueOf(mChannel.mPending),
+                            SystemClock.elapsedRealtime());
+                }
+            }
+        }
+    }
+
+    /**
+     * The filter settings of a channel.
+     */
+    private static class Settings {
+        private final double mDeadband;
+        private final long mMinIntervalMs;
+        private final long mMaxIntervalMs;
+
+        Settings(double pDeadband, long pMinIntervalMs, long pMaxIntervalMs) {
+            mDeadband = pDeadband;
+            mMinIntervalMs = pMinIntervalMs;
+            mMaxIntervalMs = pMaxIntervalMs;
+        }
+
+        @Override
+        public String toString() {
+            return "[deadband: " + mDeadband + ", min: " + mMinIntervalMs + " ms, max: "
+                    + mMaxIntervalMs + " ms]";
+        }
+    }
+
+    /**
+     * The state of a channel.
+     */
+    private static class Channel {
+        private final String mName;
+        private Payload mLastValue;
+        private Payload mLastPublished;
+        private double mLastPublishedValue;
+        private long mLastPublishTime;
+        private Payload mPending;
+        private boolean mFlushScheduled;
+
+        Channel(String pName) {
+            mName = pName;
+        }
+    }
+}
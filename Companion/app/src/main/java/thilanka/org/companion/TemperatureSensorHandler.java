@@ -10,15 +10,13 @@ import android.util.Log;
 import com.google.android.things.contrib.driver.bmx280.Bmx280;
 import com.google.android.things.contrib.driver.bmx280.Bmx280SensorDriver;
 
-import org.eclipse.paho.client.mqttv3.MqttClient;
-import org.eclipse.paho.client.mqttv3.MqttMessage;
 import org.thilanka.device.pin.PinProperty;
 import org.thilanka.messaging.domain.Action;
-import org.thilanka.messaging.domain.Message;
 import org.thilanka.messaging.domain.Payload;
 import org.thilanka.messaging.domain.PeripheralIO;
 
 import java.io.IOException;
+import java.util.concurrent.TimeUnit;
 
 /**
  * The logic that handles Temperature Sensor events.
@@ -30,16 +28,95 @@ public class TemperatureSensorHandler implements SensorEventListener {
     /* The Log Tag*/
     private static final String TAG = GpioHandler.class.getSimpleName();
 
-    /* The MQTT Client*/
-    private final MqttClient mMqttClient;
+    /* How long a poll waits for the first reading of the monitor. */
+    private static final long FIRST_READING_TIMEOUT_MS = 2000;
+
+    /* How long the monitor waits for the polls on the sensor to be over before starting. */
+    private static final long POLLS_TIMEOUT_MS = 2000;
+
+    /* The register block of the temperature, for the merging of the polls. */
+    private static final String TEMPERATURE_BLOCK = "temperature";
+
+    /* Opens the sensor for the polls. */
+    private static final I2cBusManager.DeviceFactory<Bmx280> POLL_DEVICE =
+            new I2cBusManager.DeviceFactory<Bmx280>() {
+                @Override
+                public Bmx280 open(String pBus, int pAddress) throws IOException {
+                    Bmx280 bmx280 = new Bmx280(pBus, pAddress);
+                    bmx280.setTemperatureOversampling(Bmx280.OVERSAMPLING_1X);
+                    return bmx280;
+                }
+            };
+
+    /* Opens the sensor driver for the monitoring. */
+    private static final I2cBusManager.DeviceFactory<Bmx280SensorDriver> MONITOR_DEVICE =
+            new I2cBusManager.DeviceFactory<Bmx280SensorDriver>() {
+                @Override
+                public Bmx280SensorDriver open(String pBus, int pAddress) throws IOException {
+                    return new Bmx280SensorDriver(pBus, pAddress);
+                }
+            };
+
+    /* Reads the temperature once. */
+    private static final I2cBusManager.Transaction<Bmx280, Float> READ_TEMPERATURE =
+            new I2cBusManager.Transaction<Bmx280, Float>() {
+                @Override
+                public Float run(Bmx280 pDevice) throws IOException {
+                    return pDevice.readTemperature();
+                }
+            };
+
+    /* Registers the temperature sensor of the driver. */
+    private static final I2cBusManager.Transaction<Bmx280SensorDriver, Void> REGISTER_SENSOR =
+            new I2cBusManager.Transaction<Bmx280SensorDriver, Void>() {
+                @Override
+                public Void run(Bmx280SensorDriver pDevice) throws IOException {
+                    pDevice.registerTemperatureSensor();
+                    return null;
+                }
+            };
+
+    /* Unregisters the temperature sensor of the driver. */
+    private static final I2cBusManager.Transaction<Bmx280SensorDriver, Void> UNREGISTER_SENSOR =
+            new I2cBusManager.Transaction<Bmx280SensorDriver, Void>() {
+                @Override
+                public Void run(Bmx280SensorDriver pDevice) throws IOException {
+                    pDevice.unregisterTemperatureSensor();
+                    return null;
+                }
+            };
+
+    /* The publisher of the outbound messages */
+    private final MessagePublisher mPublisher;
+
+    /* The owner of the I2C bus of the sensor. */
+    private final I2cBusManager mI2cBuses;
+
+    /* The leases that decide whether the monitored sensor is sampled. */
+    private final SamplingLeases mLeases;
+
+    /* Whether the sensor was asked to be monitored. */
+    private boolean mMonitoring;
+
+    /* The rule engine evaluated on every reading, if any. */
+    private RuleEngine mRuleEngine;
 
     /* The static reference to the parent activity to run things in the foreground */
     private static AndroidThingsActivity sParent;
 
     /**
-     * Third Party Sensor Driver.
+     * The session on the third party sensor driver, while monitoring.
      */
-    private Bmx280SensorDriver mTemperatureSensorDriver;
+    private volatile I2cBusManager.Session<Bmx280SensorDriver> mMonitorSession;
+
+    /* The number of polls holding the sensor, the monitor waiting for them to be over. */
+    private int mPolls;
+
+    /* The last monitored temperature, NaN until the first reading. Guarded by mReadingLock. */
+    private double mLatestTemperature = Double.NaN;
+
+    /* Notified on every monitored reading and when the monitor stops. */
+    private final Object mReadingLock = new Object();
 
     /**
      * Android Sensor Manager.
@@ -58,18 +135,63 @@ public class TemperatureSensorHandler implements SensorEventListener {
                         sensor, SensorManager.SENSOR_DELAY_NORMAL);
             }
         }
+
+        @Override
+        public void onDynamicSensorDisconnected(Sensor sensor) {
+            if (sensor.getType() == Sensor.TYPE_AMBIENT_TEMPERATURE) {
+                Log.i(TAG, "Temperature sensor disconnected");
+                mSensorManager.unregisterListener(TemperatureSensorHandler.this, sensor);
+            }
+        }
+    };
+
+    /* Closes the sensor driver while nobody holds a lease on the temperature. */
+    private final SamplingLeases.Channel mMonitorChannel = new SamplingLeases.Channel() {
+        @Override
+        public void resume() {
+            synchronized (TemperatureSensorHandler.this) {
+                if (!mMonitoring) {
+                    return;
+                }
+                try {
+                    startMonitor();
+                } catch (IOException e) {
+                    Log.e(TAG, "Unable to resume the temperature monitor: "
+                            + e.getLocalizedMessage());
+                }
+            }
+        }
+
+        @Override
+        public void suspend() {
+            stopMonitor();
+        }
     };
 
     /**
      * The Constructor.
      * @param pAndroidThingsActivity
-     * @param pMqttClient
+     * @param pPublisher
+     * @param pI2cBuses
+     * @param pLeases
      */
-    public TemperatureSensorHandler(AndroidThingsActivity pAndroidThingsActivity, MqttClient pMqttClient) {
-        mMqttClient = pMqttClient;
+    public TemperatureSensorHandler(AndroidThingsActivity pAndroidThingsActivity,
+                                    MessagePublisher pPublisher, I2cBusManager pI2cBuses,
+                                    SamplingLeases pLeases) {
+        mPublisher = pPublisher;
+        mI2cBuses = pI2cBuses;
+        mLeases = pLeases;
         sParent = pAndroidThingsActivity;
     }
 
+    /**
+     * Set the rule engine that reacts to the temperature readings on the device.
+     * @param pRuleEngine
+     */
+    public void setRuleEngine(RuleEngine pRuleEngine) {
+        mRuleEngine = pRuleEngine;
+    }
+
     /**
      * Handle the messages intended for GPIO.
      * @param pPayload
@@ -79,7 +201,7 @@ public class TemperatureSensorHandler implements SensorEventListener {
         Action messageType = pPayload.getAction();
         switch (messageType) {
             case REGISTER:
-                handleRegister();
+                handleRegister(pPayload);
                 break;
             case MONITOR:
                 handleMonitor();
@@ -91,61 +213,180 @@ public class TemperatureSensorHandler implements SensorEventListener {
     }
 
     /**
-     * Handle Temperature Monitor Requests.
+     * Handle Temperature Monitor Requests. The sensor driver is only opened once, and only
+     * while the temperature is wanted by the leases.
      * @throws IOException
      */
-    private void handleMonitor() throws IOException {
-        mSensorManager = (SensorManager) sParent.getSystemService(Context.SENSOR_SERVICE);
-        mSensorManager.registerDynamicSensorCallback(mDynamicSensorCallback);
-        mTemperatureSensorDriver = new Bmx280SensorDriver(BoardDefaults.getI2CPort());
-        mTemperatureSensorDriver.registerTemperatureSensor();
-   }
+    private synchronized void handleMonitor() throws IOException {
+        mMonitoring = true;
+        if (mLeases.attach(PeripheralIO.TEMPERATURE_SENSOR.getName(), mMonitorChannel)) {
+            startMonitor();
+        }
+    }
+
+    /**
+     * Open the sensor driver and register its sensor, unless already done.
+     * @throws IOException
+     */
+    private synchronized void startMonitor() throws IOException {
+        if (mMonitorSession != null) {
+            return;
+        }
+        awaitPolls();
+        if (mSensorManager == null) {
+            mSensorManager = (SensorManager) sParent.getSystemService(Context.SENSOR_SERVICE);
+            mSensorManager.registerDynamicSensorCallback(mDynamicSensorCallback);
+        }
+        I2cBusManager.Session<Bmx280SensorDriver> session = mI2cBuses.open(
+                BoardDefaults.getI2CPort(), Bmx280.DEFAULT_I2C_ADDRESS, MONITOR_DEVICE);
+        try {
+            I2cBusManager.await(session.execute(REGISTER_SENSOR));
+        } catch (IOException e) {
+            session.close();
+            throw e;
+        }
+        mMonitorSession = session;
+        Log.d(TAG, "Monitoring the temperature.");
+    }
+
+    /**
+     * Unregister the sensor and close the sensor driver, unless already done.
+     */
+    private synchronized void stopMonitor() {
+        I2cBusManager.Session<Bmx280SensorDriver> session = mMonitorSession;
+        if (session == null) {
+            return;
+        }
+        mMonitorSession = null;
+        synchronized (mReadingLock) {
+            mLatestTemperature = Double.NaN;
+            mReadingLock.notifyAll();
+        }
+        try {
+            I2cBusManager.await(session.execute(UNREGISTER_SENSOR));
+        } catch (IOException e) {
+            Log.w(TAG, "Unable to unregister the temperature sensor: " + e.getLocalizedMessage());
+        } finally {
+            session.close();
+        }
+        Log.d(TAG, "Stopped monitoring the temperature.");
+    }
+
+    /**
+     * Wait for the polls holding the sensor to be over, the monitor's driver being unable to
+     * share the sensor with theirs. Must hold the lock.
+     * @throws IOException if the polls take too long.
+     */
+    private void awaitPolls() throws IOException {
+        long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(POLLS_TIMEOUT_MS);
+        try {
+            while (mPolls > 0) {
+                long remaining = TimeUnit.NANOSECONDS.toMillis(deadline - System.nanoTime());
+                if (remaining <= 0) {
+                    throw new IOException("The temperature sensor is busy with polls");
+                }
+                wait(remaining);
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException("Interrupted while waiting for the temperature polls");
+        }
+    }
 
     /**
-     * Handle one time temperature poll requests.
+     * Handle one time temperature poll requests. The reply carries the request ID of the poll.
+     * While the sensor is monitored, the poll is answered with the last reading of the monitor,
+     * the driver of the monitor holding the sensor; otherwise the polls arriving together share
+     * one read of the sensor.
+     * @param pPayload
      * @throws IOException
      */
-    private void handleRegister() throws IOException {
-        Bmx280 bmx280 = new Bmx280(BoardDefaults.getI2CPort());
-        bmx280.setTemperatureOversampling(Bmx280.OVERSAMPLING_1X);
-        publishTemperature(bmx280.readTemperature());
+    private void handleRegister(Payload pPayload) throws IOException {
+        I2cBusManager.Session<Bmx280> session = null;
+        synchronized (this) {
+            if (mMonitorSession == null) {
+                session = mI2cBuses.open(BoardDefaults.getI2CPort(), Bmx280.DEFAULT_I2C_ADDRESS,
+                        POLL_DEVICE);
+                mPolls++;
+            }
+        }
+        double temperature;
+        if (session == null) {
+            temperature = awaitMonitoredTemperature();
+        } else {
+            try {
+                temperature = I2cBusManager.await(session.read(TEMPERATURE_BLOCK,
+                        READ_TEMPERATURE));
+            } finally {
+                session.close();
+                synchronized (this) {
+                    mPolls--;
+                    notifyAll();
+                }
+            }
+        }
+        Payload payload = createTemperaturePayload(temperature);
+        mPublisher.publishResponse(AndroidThingsActivity.getPublishTopic(),
+                Command.tag(payload, pPayload));
+        mPublisher.publishState(payload);
     }
 
     /**
-     * Publish the obtained temperature to App Inventor.
+     * Wait for the monitor to have a reading. The sensor only reports on change, so its last
+     * reading holds until the next one, however old.
+     * @return the last reading of the monitor.
+     * @throws IOException if the monitor stopped or had no reading in time.
+     */
+    private double awaitMonitoredTemperature() throws IOException {
+        long deadline = System.nanoTime()
+                + TimeUnit.MILLISECONDS.toNanos(FIRST_READING_TIMEOUT_MS);
+        synchronized (mReadingLock) {
+            try {
+                while (Double.isNaN(mLatestTemperature) && mMonitorSession != null) {
+                    long remaining = TimeUnit.NANOSECONDS.toMillis(deadline - System.nanoTime());
+                    if (remaining <= 0) {
+                        break;
+                    }
+                    mReadingLock.wait(remaining);
+                }
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new IOException("Interrupted while waiting for the temperature");
+            }
+            if (Double.isNaN(mLatestTemperature)) {
+                throw new IOException("No reading from the temperature monitor");
+            }
+            return mLatestTemperature;
+        }
+    }
+
+    /**
+     * Create the message that reports the obtained temperature to App Inventor.
      * @param pTemperature
+     * @return the payload.
      */
-    private void publishTemperature(double pTemperature) {
+    private Payload createTemperaturePayload(double pTemperature) {
         Payload payload = new Payload();
         payload.setPeripheralIO(PeripheralIO.GPIO);
         payload.setName(PeripheralIO.TEMPERATURE_SENSOR.getName());
         payload.setProperty(PinProperty.TEMPERATURE);
         payload.setDoubleValue(pTemperature);
-
-        String messageStr = Message.constructMessage(payload);
-
-        MqttMessage message = new MqttMessage(messageStr.getBytes());
-        message.setQos(AndroidThingsActivity.QOS);
-        message.setRetained(false);
-
-        // Publish the message
-        Log.d(TAG,"Publishing to topic \"" + AndroidThingsActivity.getPublishTopic()
-                + "\" qos " + AndroidThingsActivity.QOS + ", the message = " + messageStr);
-        try {
-            mMqttClient.publish(AndroidThingsActivity.getPublishTopic(),
-                    message);
-            Thread.sleep(AndroidThingsActivity.SLEEP_TIME);
-        } catch (Exception e) {
-            Log.e(TAG, e.getLocalizedMessage());
-        }
-
+        return payload;
     }
 
     @Override
     public void onSensorChanged(SensorEvent event) {
         Log.i(TAG, "sensor changed: " + event.values[0] + " : " + event.values[1] + " : " +
                 event.values[2]);
-        publishTemperature(event.values[0]);
+        synchronized (mReadingLock) {
+            mLatestTemperature = event.values[0];
+            mReadingLock.notifyAll();
+        }
+        RuleEngine ruleEngine = mRuleEngine;
+        if (ruleEngine != null) {
+            ruleEngine.onTemperature(event.values[0]);
+        }
+        mPublisher.publishTelemetry(createTemperaturePayload(event.values[0]));
     }
 
     @Override
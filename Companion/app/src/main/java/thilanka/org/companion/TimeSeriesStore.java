@@ -0,0 +1,156 @@
+package thilanka.org.companion;
+
+import android.util.Log;
+
+import org.thilanka.messaging.domain.Action;
+import org.thilanka.messaging.domain.Payload;
+
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Keeps the recent history of every pin and sensor channel in memory, so that a client can
+ * fill a chart with one query instead of waiting for live data. Each channel (name/property)
+ * has a fixed size {@link SeriesBuffer}, and the number of channels is capped, so the memory
+ * used never grows.
+ *
+ * A MONITOR on the history topic queries the channel named by the payload name and property.
+ * The label may set the range, either {@code from=<ms>;to=<ms>} (epoch milliseconds) or
+ * {@code seconds=<n>} back from now, and the number of points ({@code points=<n>}). The reply,
+ * on the same sub-topic of the publish topic, has the number of samples in the range as the
+ * double value and {@code from=..;step_ms=..;values=v1,v2,..} as the label, each value being
+ * the mean of its step, or empty when there is no sample in it.
+ *
+ * @author Thilanka Munasinghe (thilankawillbe@gmail.com)
+ */
+public class TimeSeriesStore {
+
+    /* The Log Tag*/
+    private static final String TAG = TimeSeriesStore.class.getSimpleName();
+
+    /* The sub-topic the history queries and replies are on. */
+    public static final String HISTORY_SERVICE = "history";
+
+    /* The most channels kept. Samples of further channels are dropped. */
+    private static final int MAX_CHANNELS = 64;
+
+    /* The default number of points of a reply. */
+    private static final int DEFAULT_POINTS = 60;
+
+    /* The most points of a reply. */
+    private static final int MAX_POINTS = 500;
+
+    /* The publisher of the replies */
+    private final MessagePublisher mPublisher;
+
+    /* The series by channel. */
+    private final ConcurrentHashMap<String, SeriesBuffer> mSeries = new ConcurrentHashMap<>();
+
+    /**
+     * The Constructor.
+     * @param pPublisher
+     */
+    public TimeSeriesStore(MessagePublisher pPublisher) {
+        mPublisher = pPublisher;
+    }
+
+    /**
+     * Record the value of a pin or sensor payload, timestamped now.
+     * @param pPayload
+     */
+    public void record(Payload pPayload) {
+        String key = TelemetryFilter.channelKey(pPayload.getName(), pPayload.getProperty());
+        SeriesBuffer series = mSeries.get(key);
+        if (series == null) {
+            if (mSeries.size() >= MAX_CHANNELS) {
+                return;
+            }
+            series = new SeriesBuffer();
+            SeriesBuffer existing = mSeries.putIfAbsent(key, series);
+            if (existing != null) {
+                series = existing;
+            }
+        }
+        series.append(System.currentTimeMillis(), (float) TelemetryFilter.valueOf(pPayload));
+    }
+
+    /**
+     * Handle the history queries.
+     * @param pPayload
+     * @throws IllegalArgumentException if the query is malformed.
+     */
+    public void handleMessage(Payload pPayload) {
+        Action messageType = pPayload.getAction();
+        switch (messageType) {
+            case MONITOR:
+                handleQuery(pPayload);
+                break;
+            default:
+                Log.d(TAG, "Message not supported!");
+                break;
+        }
+    }
+
+    /**
+     * Reply to a history query with the downsampled range.
+     * @param pPayload
+     * @throws IllegalArgumentException if the range or the number of points is not a number,
+     * or the seconds are negative; nothing is replied then.
+     */
+    private void handleQuery(Payload pPayload) {
+        LabelOptions options = LabelOptions.parse(pPayload.getLabel());
+        SeriesBuffer series = mSeries.get(TelemetryFilter.channelKey(pPayload.getName(),
+                pPayload.getProperty()));
+        long now = System.currentTimeMillis();
+        long to = options.getLong("to", now);
+        long from;
+        if (options.has("seconds")) {
+            long seconds = options.getLong("seconds", 0);
+            if (seconds < 0) {
+                throw new IllegalArgumentException("Bad history query " + options);
+            }
+            from = to - seconds * 1000;
+        } else {
+            from = options.getLong("from", series == null ? to : series.getOldestTime());
+        }
+        int points = (int) Math.max(1, Math.min(MAX_POINTS, options.getLong("points",
+                DEFAULT_POINTS)));
+        from = Math.min(from, to);
+
+        final long start = from;
+        final long step = Math.max(1, (to - from + points) / points);
+        final double[] sums = new double[points];
+        final int[] counts = new int[points];
+        if (series != null) {
+            series.read(from, to, new SeriesBuffer.Visitor() {
+                @Override
+                public void visit(long pTime, float pValue) {
+                    int bucket = (int) Math.min(sums.length - 1, (pTime - start) / step);
+                    sums[bucket] += pValue;
+                    counts[bucket]++;
+                }
+            });
+        }
+
+        int samples = 0;
+        StringBuilder values = new StringBuilder();
+        for (int i = 0; i < points; i++) {
+            if (i > 0) {
+                values.append(',');
+            }
+            if (counts[i] > 0) {
+                values.append((float) (sums[i] / counts[i]));
+                samples += counts[i];
+            }
+        }
+
+        Payload reply = new Payload();
+        reply.setPeripheralIO(pPayload.getPeripheralIO());
+        reply.setAction(Action.EVENT);
+        reply.setName(pPayload.getName());
+        reply.setProperty(pPayload.getProperty());
+        reply.setDoubleValue(samples);
+        reply.setLabel("from=" + from + ";step_ms=" + step + ";values=" + values);
+        mPublisher.publishResponse(AndroidThingsActivity.getPublishTopic(HISTORY_SERVICE),
+                Command.tag(reply, pPayload));
+    }
+}
@@ -0,0 +1,66 @@
+package thilanka.org.companion;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * A token bucket: allows a steady rate of events, plus bursts up to the size of the bucket.
+ * Not thread safe; the callers guard it with their own lock.
+ *
+ * @author Thilanka Munasinghe (thilankawillbe@gmail.com)
+ */
+public class TokenBucket {
+
+    /* The tokens added per nanosecond. */
+    private final double mRatePerNano;
+
+    /* The most tokens the bucket holds. */
+    private final double mBurst;
+
+    /* The tokens available, as of the last refill. */
+    private double mTokens;
+
+    /* The {@link System#nanoTime()} of the last refill. */
+    private long mRefilledAt;
+
+    /**
+     * The Constructor. The bucket starts full.
+     * @param pRatePerSecond
+     * @param pBurst
+     */
+    public TokenBucket(double pRatePerSecond, double pBurst) {
+        mRatePerNano = pRatePerSecond / TimeUnit.SECONDS.toNanos(1);
+        mBurst = Math.max(1, pBurst);
+        mTokens = mBurst;
+        mRefilledAt = System.nanoTime();
+    }
+
+    /**
+     * Refill the bucket and tell how long until a token is available.
+     * @param pNow the {@link System#nanoTime()}.
+     * @return 0 if a token is available now, otherwise the wait in nanoseconds.
+     */
+    public long refill(long pNow) {
+        mTokens = Math.min(mBurst, mTokens + (pNow - mRefilledAt) * mRatePerNano);
+        mRefilledAt = pNow;
+        if (mTokens >= 1) {
+            return 0;
+        }
+        return (long) Math.ceil((1 - mTokens) / mRatePerNano);
+    }
+
+    /**
+     * Whether a token is available now.
+     * @param pNow the {@link System#nanoTime()}.
+     * @return true if {@link #take()} may be called.
+     */
+    public boolean hasToken(long pNow) {
+        return refill(pNow) == 0;
+    }
+
+    /**
+     * Take a token. Only call when one is available.
+     */
+    public void take() {
+        mTokens -= 1;
+    }
+}
@@ -0,0 +1,186 @@
+package thilanka.org.companion;
+
+import org.junit.Test;
+import org.thilanka.device.pin.PinDirection;
+import org.thilanka.device.pin.PinProperty;
+import org.thilanka.device.pin.PinValue;
+import org.thilanka.messaging.domain.Action;
+import org.thilanka.messaging.domain.Message;
+import org.thilanka.messaging.domain.Payload;
+import org.thilanka.messaging.domain.PeripheralIO;
+
+import java.nio.charset.Charset;
+
+import static org.junit.Assert.*;
+
+/**
+ * Checks that the command decoder reads the messages exactly as the Gson parsing it replaces,
+ * for what {@code Message.constructMessage} writes and for the JSON it may meet from other
+ * clients, and that it refuses the messages it cannot read instead of misreading them.
+ */
+public class CommandDecoderTest {
+
+    private static final Charset UTF_8 = Charset.forName("UTF-8");
+
+    @Test
+    public void decodesGpioCommand() throws Exception {
+        Payload payload = new Payload();
+        payload.setPeripheralIO(PeripheralIO.GPIO);
+        payload.setAction(Action.EVENT);
+        payload.setName("BCM21");
+        payload.setProperty(PinProperty.PIN_STATE);
+        payload.setValue(PinValue.HIGH);
+        payload.setDirection(PinDirection.OUT);
+        Command command = assertDecodedAsGson(Message.constructMessage(payload));
+        assertEquals(PeripheralIO.GPIO, command.getPeripheralIO());
+        assertEquals(PinValue.HIGH, command.getValue());
+    }
+
+    @Test
+    public void decodesRule() throws Exception {
+        Payload payload = new Payload();
+        payload.setAction(Action.REGISTER);
+        payload.setName("fan");
+        payload.setLabel("GPIO BCM4 HIGH -> GPIO BCM21 HIGH");
+        String message = Message.constructMessage(payload);
+        /* Gson escapes the '>' of the rule. */
+        assertTrue(message.contains("\\u003e"));
+        Command command = assertDecodedAsGson(message);
+        assertEquals("GPIO BCM4 HIGH -> GPIO BCM21 HIGH", command.getLabel());
+    }
+
+    @Test
+    public void decodesEscapes() throws Exception {
+        Command command = assertDecodedAsGson("{\"mName\":\"BCM4\",\"mLabel\":"
+                + "\"q\\\"b\\\\s\\/n\\nt\\tr\\rb\\bf\\f\"}");
+        assertEquals("q\"b\\s/n\nt\tr\rb\bf\f", command.getLabel());
+        assertDecodedAsGson("{\"mLabel\":\"\\u0041\\u00e9\\u20ac\\ud83d\\ude00\\u003d\"}");
+        /* An escape at the very start and end of the string. */
+        assertDecodedAsGson("{\"mClientId\":\"\\u0061b\\u0063\"}");
+        /* An escaped field name is still recognized. */
+        command = assertDecodedAsGson("{\"m\\u004eame\":\"BCM4\"}");
+        assertEquals("BCM4", command.getName());
+        /* An escaped enum name is still looked up. */
+        command = assertDecodedAsGson("{\"mAction\":\"EV\\u0045NT\"}");
+        assertEquals(Action.EVENT, command.getAction());
+    }
+
+    @Test
+    public void decodesNonAsciiNames() throws Exception {
+        Command command = assertDecodedAsGson("{\"mName\":\"capteur-\u00e9t\u00e9\","
+                + "\"mLabel\":\"\u65e5\u672c\u8a9e \ud83d\ude00\"}");
+        assertEquals("capteur-\u00e9t\u00e9", command.getName());
+        command = assertDecodedAsGson("{\"mName\":\"capteur-\\u00e9t\\u00e9\"}");
+        assertEquals("capteur-\u00e9t\u00e9", command.getName());
+        /* Non ASCII enum names are unknown. */
+        command = assertDecodedAsGson("{\"mAction\":\"\u00c9VENT\"}");
+        assertNull(command.getAction());
+    }
+
+    @Test
+    public void decodesMissingFields() throws Exception {
+        Command command = assertDecodedAsGson("{}");
+        assertEquals("default", command.getLabel());
+        assertEquals(0, command.getDoubleValue(), 0);
+        command = assertDecodedAsGson(" { \"mAction\" : \"MONITOR\" } ");
+        assertEquals(Action.MONITOR, command.getAction());
+        assertNull(command.getName());
+        assertNull(command.getRequestId());
+    }
+
+    @Test
+    public void skipsUnknownFields() throws Exception {
+        Command command = assertDecodedAsGson("{\"mExtra\":{\"a\":[1,-2.5e3,true,false,null,"
+                + "\"x\\\"y\",{}],\"b\":[]},\"mName\":\"BCM4\",\"mFlag\":true,\"mCount\":12,"
+                + "\"mNothing\":null,\"mText\":\"\u00e9\\u00e9\"}");
+        assertEquals("BCM4", command.getName());
+        /* Unknown enum names read as null. */
+        command = assertDecodedAsGson("{\"mAction\":\"JUMP\",\"mProperty\":\"COLOUR\"}");
+        assertNull(command.getAction());
+        assertNull(command.getProperty());
+    }
+
+    @Test
+    public void decodesNullFields() throws Exception {
+        Command command = assertDecodedAsGson("{\"mPeripheralIO\":null,\"mAction\":null,"
+                + "\"mName\":null,\"mProperty\":null,\"mValue\":null,\"mDirection\":null,"
+                + "\"mLabel\":null,\"mRequestId\":null,\"mClientId\":null}");
+        assertNull(command.getLabel());
+        /* A null number leaves the number as it was. */
+        command = assertDecodedAsGson("{\"mDoubleValue\":null}");
+        assertEquals(0, command.getDoubleValue(), 0);
+    }
+
+    @Test
+    public void decodesNumbers() throws Exception {
+        String[] numbers = {"0", "-0", "37.5", "-12", "1e3", "1E+2", "-2.5E-3", "6.02e23",
+                "4.9e-324", "1.7976931348623157e308", "123456789012345678e-5",
+                "0.30000000000000004", "9007199254740993", "1e-400", "2e400"};
+        for (String number : numbers) {
+            Command command = assertDecodedAsGson("{\"mDoubleValue\":" + number + "}");
+            assertEquals(number, Double.parseDouble(number), command.getDoubleValue(), 0);
+        }
+    }
+
+    @Test
+    public void refusesTruncatedMessages() throws Exception {
+        Command command = new Command();
+        command.setRequestId("r7");
+        command.setPeripheralIO(PeripheralIO.PWM);
+        command.setAction(Action.EVENT);
+        command.setName("PWM0");
+        command.setProperty(PinProperty.DUTY_CYCLE);
+        command.setLabel("\u00e9t\u00e9 \"quoted\" -> x");
+        command.setDoubleValue(-2.5e-3);
+        byte[] message = Message.constructMessage(command).getBytes(UTF_8);
+        CommandDecoder decoder = new CommandDecoder();
+        for (int length = 0; length < message.length; length++) {
+            byte[] truncated = new byte[length];
+            System.arraycopy(message, 0, truncated, 0, length);
+            assertFalse("Read " + new String(truncated, UTF_8),
+                    decoder.decode(truncated, new Command()));
+        }
+        assertDecodedAsGson(new String(message, UTF_8));
+    }
+
+    @Test
+    public void refusesMalformedMessages() throws Exception {
+        String[] messages = {"", "[]", "{\"mName\":\"BCM4\"", "{\"mName\":\"BCM4\"}}",
+                "{\"mName\":BCM4}", "{\"mDoubleValue\":\"1\"}", "{\"mDoubleValue\":1.}",
+                "{\"mDoubleValue\":1e}", "{\"mLabel\":\"\\x\"}", "{\"mLabel\":\"\\u12\"}",
+                "{\"mLabel\":\"a\nb\"}", "{\"mName\" \"BCM4\"}", "{'mName':'BCM4'}",
+                /* Lone surrogates have no UTF-8 form, they are left to Gson. */
+                "{\"mLabel\":\"\\ud83dx\"}", "{\"mLabel\":\"\\ude00\"}",
+                "{\"mLabel\":\"\\ud83d\\u0041\"}"};
+        CommandDecoder decoder = new CommandDecoder();
+        for (String message : messages) {
+            assertFalse("Read " + message, decoder.decode(message.getBytes(UTF_8),
+                    new Command()));
+        }
+    }
+
+    /**
+     * Decode a message and check that every field is the one Gson reads.
+     * @param pMessage
+     * @return the decoded command.
+     */
+    private static Command assertDecodedAsGson(String pMessage) {
+        Command command = new Command();
+        assertTrue("Refused " + pMessage, new CommandDecoder().decode(pMessage.getBytes(UTF_8),
+                command));
+        Command expected = Command.parse(pMessage);
+        assertEquals(pMessage, expected.getPeripheralIO(), command.getPeripheralIO());
+        assertEquals(pMessage, expected.getAction(), command.getAction());
+        assertEquals(pMessage, expected.getName(), command.getName());
+        assertEquals(pMessage, expected.getProperty(), command.getProperty());
+        assertEquals(pMessage, expected.getValue(), command.getValue());
+        assertEquals(pMessage, expected.getAndroidThingsBoard(),
+                command.getAndroidThingsBoard());
+        assertEquals(pMessage, expected.getDirection(), command.getDirection());
+        assertEquals(pMessage, expected.getLabel(), command.getLabel());
+        assertEquals(pMessage, expected.getDoubleValue(), command.getDoubleValue(), 0);
+        assertEquals(pMessage, expected.getRequestId(), command.getRequestId());
+        assertEquals(pMessage, expected.getClientId(), command.getClientId());
+        return command;
+    }
+}